@@ -39,6 +39,18 @@ public interface IDynamicConfig {
 
         clicfg_matrix_trace_app_start_up_threshold,
         clicfg_matrix_trace_warm_app_start_up_threshold,
+        clicfg_matrix_trace_thread_buffer_size,
+        clicfg_matrix_trace_thread_buffer_budget,
+        clicfg_matrix_trace_buffer_size,
+        clicfg_matrix_trace_precise_clock_sampling,
+        clicfg_matrix_trace_sampling_interval,
+        clicfg_matrix_trace_sampling_threshold,
+        clicfg_matrix_trace_sampling_max_depth,
+        clicfg_matrix_trace_dispatch_histogram_flush,
+        clicfg_matrix_trace_frame_histogram_flush,
+        clicfg_matrix_trace_anr_snapshot_interval,
+        clicfg_matrix_trace_thread_state_flush,
+        clicfg_matrix_trace_lock_contention_flush,
 
 
         //io
@@ -18,6 +18,7 @@ package com.tencent.matrix.javalib.util;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
@@ -201,6 +202,23 @@ public class FileUtil {
         }
     }
 
+    /**
+     * read the stream to the end and close it.
+     */
+    public static byte[] readBytes(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(is.available(), BUFFER_SIZE));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                os.write(buffer, 0, length);
+            }
+            return os.toByteArray();
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
     public static boolean checkDirectory(String dir) {
         File dirObj = new File(dir);
         deleteDir(dirObj);
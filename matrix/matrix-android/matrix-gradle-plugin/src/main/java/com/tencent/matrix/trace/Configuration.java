@@ -15,10 +15,18 @@ public class Configuration {
     public String ignoreMethodMapFilePath;
     public String blackListFilePath;
     public String traceClassOut;
+    public String startupProfilePath;
+    public String startupProfileMethodMapPath;
+    public boolean lockTraceEnable;
+    public String lockBlackListFilePath;
+    public String traceCachePath;
     public HashSet<String> blackSet = new HashSet<>();
+    public HashSet<String> lockBlackSet = new HashSet<>();
 
     Configuration(String packageName, String mappingDir, String baseMethodMapPath, String methodMapFilePath,
-                  String ignoreMethodMapFilePath, String blackListFilePath, String traceClassOut) {
+                  String ignoreMethodMapFilePath, String blackListFilePath, String traceClassOut,
+                  String startupProfilePath, String startupProfileMethodMapPath, boolean lockTraceEnable, String lockBlackListFilePath,
+                  String traceCachePath) {
         this.packageName = packageName;
         this.mappingDir = Util.nullAsNil(mappingDir);
         this.baseMethodMapPath = Util.nullAsNil(baseMethodMapPath);
@@ -26,11 +34,29 @@ public class Configuration {
         this.ignoreMethodMapFilePath = Util.nullAsNil(ignoreMethodMapFilePath);
         this.blackListFilePath = Util.nullAsNil(blackListFilePath);
         this.traceClassOut = Util.nullAsNil(traceClassOut);
+        this.startupProfilePath = Util.nullAsNil(startupProfilePath);
+        this.startupProfileMethodMapPath = Util.nullAsNil(startupProfileMethodMapPath);
+        this.lockTraceEnable = lockTraceEnable;
+        this.lockBlackListFilePath = Util.nullAsNil(lockBlackListFilePath);
+        this.traceCachePath = Util.nullAsNil(traceCachePath);
     }
 
     public int parseBlackFile(MappingCollector processor) {
         String blackStr = TraceBuildConstants.DEFAULT_BLACK_TRACE + FileUtil.readFileAsString(blackListFilePath);
+        return parseBlackList(processor, blackStr, blackSet);
+    }
 
+    /**
+     * the lock probes are only inserted into the methods traced, so blackSet applies to them as well.
+     */
+    public int parseLockBlackFile(MappingCollector processor) {
+        if (!lockTraceEnable || Util.isNullOrNil(lockBlackListFilePath)) {
+            return 0;
+        }
+        return parseBlackList(processor, FileUtil.readFileAsString(lockBlackListFilePath), lockBlackSet);
+    }
+
+    private static int parseBlackList(MappingCollector processor, String blackStr, HashSet<String> blackSet) {
         String[] blackArray = blackStr.trim().replace("/", ".").split("\n");
 
         if (blackArray != null) {
@@ -66,7 +92,12 @@ public class Configuration {
                 + "|* methodMapFilePath:\t" + methodMapFilePath + "\n"
                 + "|* ignoreMethodMapFilePath:\t" + ignoreMethodMapFilePath + "\n"
                 + "|* blackListFilePath:\t" + blackListFilePath + "\n"
-                + "|* traceClassOut:\t" + traceClassOut + "\n";
+                + "|* traceClassOut:\t" + traceClassOut + "\n"
+                + "|* startupProfilePath:\t" + startupProfilePath + "\n"
+                + "|* startupProfileMethodMapPath:\t" + startupProfileMethodMapPath + "\n"
+                + "|* lockTraceEnable:\t" + lockTraceEnable + "\n"
+                + "|* lockBlackListFilePath:\t" + lockBlackListFilePath + "\n"
+                + "|* traceCachePath:\t" + traceCachePath + "\n";
     }
 
     public static class Builder {
@@ -78,6 +109,11 @@ public class Configuration {
         public String ignoreMethodMapFile;
         public String blackListFile;
         public String traceClassOut;
+        public String startupProfile;
+        public String startupProfileMethodMap;
+        public boolean lockTraceEnable;
+        public String lockBlackListFile;
+        public String traceCachePath;
 
         public Builder setPackageName(String packageName) {
             this.packageName = packageName;
@@ -114,8 +150,35 @@ public class Configuration {
             return this;
         }
 
+        public Builder setStartupProfile(String startupProfile) {
+            this.startupProfile = startupProfile;
+            return this;
+        }
+
+        public Builder setStartupProfileMethodMap(String startupProfileMethodMap) {
+            this.startupProfileMethodMap = startupProfileMethodMap;
+            return this;
+        }
+
+        public Builder setLockTraceEnable(boolean lockTraceEnable) {
+            this.lockTraceEnable = lockTraceEnable;
+            return this;
+        }
+
+        public Builder setLockBlackListFile(String lockBlackListFile) {
+            this.lockBlackListFile = lockBlackListFile;
+            return this;
+        }
+
+        public Builder setTraceCachePath(String traceCachePath) {
+            this.traceCachePath = traceCachePath;
+            return this;
+        }
+
         public Configuration build() {
-            return new Configuration(packageName, mappingPath, baseMethodMap, methodMapFile, ignoreMethodMapFile, blackListFile, traceClassOut);
+            return new Configuration(packageName, mappingPath, baseMethodMap, methodMapFile, ignoreMethodMapFile, blackListFile, traceClassOut,
+                    startupProfile, startupProfileMethodMap, lockTraceEnable, lockBlackListFile,
+                    traceCachePath);
         }
 
     }
@@ -1,12 +1,12 @@
 package com.tencent.matrix.trace;
 
+import com.tencent.matrix.javalib.util.FileUtil;
 import com.tencent.matrix.javalib.util.Log;
 import com.tencent.matrix.trace.item.TraceMethod;
 import com.tencent.matrix.trace.retrace.MappingCollector;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
@@ -15,7 +15,7 @@ import org.objectweb.asm.tree.MethodNode;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
@@ -23,15 +23,20 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -51,14 +56,25 @@ public class MethodCollector {
     private final AtomicInteger methodId;
     private final AtomicInteger ignoreCount = new AtomicInteger();// 被忽略方法计数器
     private final AtomicInteger incrementCount = new AtomicInteger();//需要插桩方法 计数器
+    private final ConcurrentHashMap<String, byte[]> collectedClassBytes = new ConcurrentHashMap<>();//存储 类文件路径 -> 类字节码，插桩时不再重复读取
+    private final AtomicLong readCost = new AtomicLong();
+    private final AtomicLong parseCost = new AtomicLong();
+    private final AtomicInteger cacheHitCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Future> entryFutures = new ConcurrentLinkedQueue<>();//jar 拆分出的 CollectJarEntriesTask
+    private final ConcurrentHashMap<File, Long> jarCostMap = new ConcurrentHashMap<>();
+    private final TraceCache traceCache;
 
+    /**
+     * @param traceCache the inputs collected by the last transform, null to collect everything from scratch
+     */
     public MethodCollector(ExecutorService executor, MappingCollector mappingCollector, AtomicInteger methodId,
-                           Configuration configuration, ConcurrentHashMap<String, TraceMethod> collectedMethodMap) {
+                           Configuration configuration, ConcurrentHashMap<String, TraceMethod> collectedMethodMap, TraceCache traceCache) {
         this.executor = executor;
         this.mappingCollector = mappingCollector;
         this.configuration = configuration;
         this.methodId = methodId;
         this.collectedMethodMap = collectedMethodMap;
+        this.traceCache = traceCache;
     }
 
     public ConcurrentHashMap<String, String> getCollectedClassExtendMap() {
@@ -69,16 +85,26 @@ public class MethodCollector {
         return collectedMethodMap;
     }
 
+    /**
+     * the bytes of the classes collected, {@link MethodTracer} removes them once instrumented.
+     */
+    public ConcurrentHashMap<String, byte[]> getCollectedClassBytes() {
+        return collectedClassBytes;
+    }
+
     /**
      *
      * @param srcFolderList 原始文件集合
      * @param dependencyJarList 原始 jar 集合
+     * @param isIncremental 增量时 traceCache 中未出现在本次输入里的类保持不变，否则被丢弃
      * @throws ExecutionException
      * @throws InterruptedException
      */
 
-    public void collect(Set<File> srcFolderList, Set<File> dependencyJarList) throws ExecutionException, InterruptedException {
+    public void collect(Set<File> srcFolderList, Set<File> dependencyJarList, boolean isIncremental) throws ExecutionException, InterruptedException {
         List<Future> futures = new LinkedList<>();
+        List<CollectSrcTask> srcTasks = new ArrayList<>();
+        List<CollectJarTask> jarTasks = new ArrayList<>();
 
         for (File srcFile : srcFolderList) {
             ArrayList<File> classFileList = new ArrayList<>();//将所有源文件添加到 classFileList 中
@@ -89,19 +115,82 @@ public class MethodCollector {
             }
 
             for (File classFile : classFileList) {
-                futures.add(executor.submit(new CollectSrcTask(classFile)));
+                srcTasks.add(new CollectSrcTask(classFile));
             }
         }
 
         for (File jarFile : dependencyJarList) {
-            futures.add(executor.submit(new CollectJarTask(jarFile)));
+            jarTasks.add(new CollectJarTask(jarFile));
+        }
+
+        if (null != traceCache) {//先比对所有输入，只载入未变输入上次收集的方法，已有的方法沿用上次的 id
+            List<Future<Boolean>> checkFutures = new ArrayList<>();
+            for (final CollectSrcTask task : srcTasks) {
+                checkFutures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        try {
+                            return task.check();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            return true;//读取失败时当作改动，交给收集任务处理
+                        }
+                    }
+                }));
+            }
+            for (final CollectJarTask task : jarTasks) {
+                checkFutures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        try {
+                            return task.check();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            return true;//读取失败时当作改动，交给收集任务处理
+                        }
+                    }
+                }));
+            }
+            List<Runnable> changedTasks = new ArrayList<>();
+            for (int i = 0; i < checkFutures.size(); i++) {
+                if (checkFutures.get(i).get()) {
+                    changedTasks.add(i < srcTasks.size() ? srcTasks.get(i) : jarTasks.get(i - srcTasks.size()));
+                }
+            }
+            traceCache.preload(isIncremental, collectedMethodMap, collectedIgnoreMethodMap, collectedClassExtendMap);
+            if (methodId.get() < traceCache.getMaxId()) {
+                methodId.set(traceCache.getMaxId());
+            }
+            for (Runnable task : changedTasks) {
+                futures.add(executor.submit(task));
+            }
+        } else {
+            for (CollectSrcTask task : srcTasks) {
+                futures.add(executor.submit(task));
+            }
+            for (CollectJarTask task : jarTasks) {
+                futures.add(executor.submit(task));
+            }
         }
 
         for (Future future : futures) {
             future.get();
         }
         futures.clear();
+        Future entryFuture;
+        while (null != (entryFuture = entryFutures.poll())) {//jar 的任务都结束后，拆分出的任务已全部提交
+            entryFuture.get();
+        }
+        logJarCost(TAG, "collect", jarCostMap);
+        Log.i(TAG, "[collect] classes:%s read cost:%sms parse cost:%sms (summed over threads), inputs unchanged:%s", collectedClassBytes.size(),
+                readCost.get() / 1000000, parseCost.get() / 1000000, cacheHitCount.get());
+
+        assignMethodId();
 
+        long start = System.currentTimeMillis();
+        if (null != traceCache) {//须在 saveCollectedMethod 还原混淆名之前保存
+            traceCache.save(isIncremental, methodId.get());
+        }
         futures.add(executor.submit(new Runnable() {
             @Override
             public void run() {
@@ -120,77 +209,256 @@ public class MethodCollector {
             future.get();
         }
         futures.clear();
+        Log.i(TAG, "[collect] save method mapping cost:%sms", System.currentTimeMillis() - start);
 
     }
 
 
+    /**
+     * number the methods new to this transform in the order of their names, after all of them are collected,
+     * rather than in the order the threads come across them, so that the same inputs always get the same ids.
+     * The methods of baseMethodMap and of the last transform keep theirs, the new ones follow the max.
+     */
+    private void assignMethodId() {
+        List<TraceMethod> newMethodList = new ArrayList<>();
+        for (TraceMethod traceMethod : collectedMethodMap.values()) {
+            if (0 == traceMethod.id) {
+                newMethodList.add(traceMethod);
+            }
+        }
+        Collections.sort(newMethodList, new Comparator<TraceMethod>() {
+            @Override
+            public int compare(TraceMethod o1, TraceMethod o2) {
+                return o1.getMethodName().compareTo(o2.getMethodName());
+            }
+        });
+        for (TraceMethod traceMethod : newMethodList) {
+            traceMethod.id = methodId.incrementAndGet();
+        }
+        Log.i(TAG, "[assignMethodId] new methods:%s max id:%s", newMethodList.size(), methodId.get());
+    }
+
+    /**
+     * parse the class only for collecting, without a ClassWriter or the debug info and frames, and keep its
+     * bytes for {@link MethodTracer}, so that every class is read from disk once per transform.
+     */
+    private void collectClass(String key, byte[] bytes, TraceCache.Unit unit) {
+        long start = System.nanoTime();
+        ClassReader classReader = new ClassReader(bytes);
+        ClassVisitor visitor = new TraceClassAdapter(Opcodes.ASM5, null, unit);
+        classReader.accept(visitor, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        parseCost.addAndGet(System.nanoTime() - start);
+        collectedClassBytes.put(key, bytes);
+    }
+
+    /**
+     * @return the key of a class in a jar for {@link #getCollectedClassBytes()}, a class file is keyed by
+     * its absolute path
+     */
+    public static String getClassKey(File jarFile, String entryName) {
+        return jarFile.getAbsolutePath() + "!/" + entryName;
+    }
+
     class CollectSrcTask implements Runnable {
 
         File classFile;
+        byte[] bytes;
+        String hash;
 
         CollectSrcTask(File classFile) {
             this.classFile = classFile;
         }
 
+        /**
+         * read the class and check it against {@link #traceCache}.
+         *
+         * @return false if it's the same as last time and needn't be collected again
+         */
+        boolean check() throws IOException {
+            long start = System.nanoTime();
+            bytes = FileUtil.readBytes(new FileInputStream(classFile));
+            readCost.addAndGet(System.nanoTime() - start);
+            String key = classFile.getAbsolutePath();
+            hash = TraceCache.hash(bytes);
+            if (null != traceCache.hit(key, hash)) {//内容未变，沿用上次收集的结果
+                cacheHitCount.incrementAndGet();
+                collectedClassBytes.put(key, bytes);
+                return false;
+            }
+            return true;
+        }
+
         @Override
         public void run() {
-            InputStream is = null;
             try {
-                is = new FileInputStream(classFile);
-                ClassReader classReader = new ClassReader(is);
-                ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-                ClassVisitor visitor = new TraceClassAdapter(Opcodes.ASM5, classWriter);//收集Method信息
-                classReader.accept(visitor, 0);
+                if (null == bytes) {
+                    long start = System.nanoTime();
+                    bytes = FileUtil.readBytes(new FileInputStream(classFile));
+                    readCost.addAndGet(System.nanoTime() - start);
+                }
+                String key = classFile.getAbsolutePath();
+                if (null == traceCache || null == hash) {
+                    collectClass(key, bytes, null);//收集Method信息
+                    return;
+                }
+                TraceCache.Unit unit = new TraceCache.Unit(key, hash);
+                collectClass(key, bytes, unit);
+                traceCache.putUnit(unit);
 
             } catch (Exception e) {
                 e.printStackTrace();
-            } finally {
-                try {
-                    is.close();
-                } catch (Exception e) {
-                }
             }
         }
     }
 
+    /**
+     * Opens the jar and collects its first {@link TraceBuildConstants#JAR_ENTRIES_PER_TASK} classes, the rest
+     * are split into {@link CollectJarEntriesTask}s on the executor, so that a huge jar doesn't keep one
+     * thread busy while the others are idle.
+     */
     class CollectJarTask implements Runnable {
 
         File fromJar;
+        TraceCache.Unit unit;
 
         CollectJarTask(File jarFile) {
             this.fromJar = jarFile;
         }
 
+        /**
+         * check the jar against {@link #traceCache}.
+         *
+         * @return false if it's the same as last time and needn't be collected again
+         */
+        boolean check() throws IOException {
+            String key = fromJar.getAbsolutePath();
+            String hash = TraceCache.hash(fromJar);
+            if (null != traceCache.hit(key, hash)) {//jar 未变，插桩时再读取
+                cacheHitCount.incrementAndGet();
+                return false;
+            }
+            unit = new TraceCache.Unit(key, hash);
+            return true;
+        }
+
         @Override
         public void run() {
             ZipFile zipFile = null;
 
             try {
+                long start = System.currentTimeMillis();
                 zipFile = new ZipFile(fromJar);
+                List<ZipEntry> entryList = new ArrayList<>();
                 Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
                 while (enumeration.hasMoreElements()) {
                     ZipEntry zipEntry = enumeration.nextElement();
-                    String zipEntryName = zipEntry.getName();
-                    if (isNeedTraceFile(zipEntryName)) {//是需要被插桩的文件
-                        InputStream inputStream = zipFile.getInputStream(zipEntry);
-                        ClassReader classReader = new ClassReader(inputStream);
-                        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-                        ClassVisitor visitor = new TraceClassAdapter(Opcodes.ASM5, classWriter);
-                        classReader.accept(visitor, 0);
+                    if (isNeedTraceFile(zipEntry.getName())) {//是需要被插桩的文件
+                        entryList.add(zipEntry);
                     }
                 }
+                int perTask = TraceBuildConstants.JAR_ENTRIES_PER_TASK;
+                CollectingJar jar = new CollectingJar(fromJar, zipFile, unit, start, Math.max(1, (entryList.size() + perTask - 1) / perTask));
+                zipFile = null;//由最后一个结束的任务关闭
+                for (int i = perTask; i < entryList.size(); i += perTask) {
+                    entryFutures.add(executor.submit(new CollectJarEntriesTask(jar, entryList.subList(i, Math.min(i + perTask, entryList.size())))));
+                }
+                new CollectJarEntriesTask(jar, entryList.subList(0, Math.min(perTask, entryList.size()))).run();
             } catch (Exception e) {
                 e.printStackTrace();
             } finally {
-                try {
-                    zipFile.close();
-                } catch (Exception e) {
-                    Log.e(TAG, "close stream err! fromJar:%s", fromJar.getAbsolutePath());
+                closeZipFile(zipFile, fromJar);
+            }
+        }
+    }
+
+    /**
+     * a jar being collected by several tasks.
+     */
+    private class CollectingJar {
+        final File fromJar;
+        final ZipFile zipFile;
+        final TraceCache.Unit unit;
+        final long start;
+        final AtomicInteger pendingTasks;
+
+        CollectingJar(File fromJar, ZipFile zipFile, TraceCache.Unit unit, long start, int taskCount) {
+            this.fromJar = fromJar;
+            this.zipFile = zipFile;
+            this.unit = unit;
+            this.start = start;
+            this.pendingTasks = new AtomicInteger(taskCount);
+        }
+
+        void onTaskEnd() {
+            if (0 != pendingTasks.decrementAndGet()) {
+                return;
+            }
+            if (null != unit) {
+                traceCache.putUnit(unit);
+            }
+            closeZipFile(zipFile, fromJar);
+            jarCostMap.put(fromJar, System.currentTimeMillis() - start);
+        }
+    }
+
+    class CollectJarEntriesTask implements Runnable {
+
+        final CollectingJar jar;
+        final List<ZipEntry> entryList;
+
+        CollectJarEntriesTask(CollectingJar jar, List<ZipEntry> entryList) {
+            this.jar = jar;
+            this.entryList = entryList;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (ZipEntry zipEntry : entryList) {
+                    long start = System.nanoTime();
+                    byte[] bytes = FileUtil.readBytes(jar.zipFile.getInputStream(zipEntry));
+                    readCost.addAndGet(System.nanoTime() - start);
+                    collectClass(getClassKey(jar.fromJar, zipEntry.getName()), bytes, jar.unit);
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                jar.onTaskEnd();
             }
         }
     }
 
+    private static void closeZipFile(ZipFile zipFile, File jarFile) {
+        try {
+            if (null != zipFile) {
+                zipFile.close();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "close stream err! fromJar:%s", jarFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * log the cost of every jar, and the slowest ones, from its first task to the last.
+     */
+    static void logJarCost(String tag, String step, Map<File, Long> jarCostMap) {
+        List<Map.Entry<File, Long>> costList = new ArrayList<>(jarCostMap.entrySet());
+        Collections.sort(costList, new Comparator<Map.Entry<File, Long>>() {
+            @Override
+            public int compare(Map.Entry<File, Long> o1, Map.Entry<File, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        StringBuilder slowest = new StringBuilder();
+        for (int i = 0; i < costList.size(); i++) {
+            Map.Entry<File, Long> entry = costList.get(i);
+            Log.d(tag, "[%s] jar:%s cost:%sms", step, entry.getKey().getName(), entry.getValue());
+            if (i < 5) {
+                slowest.append(entry.getKey().getName()).append(':').append(entry.getValue()).append("ms ");
+            }
+        }
+        Log.i(tag, "[%s] jars:%s slowest:%s", step, costList.size(), slowest);
+    }
 
     private void saveIgnoreCollectedMethod(MappingCollector mappingCollector) {//将被忽略的 方法名 存入 ignoreMethodMapping.txt 中
 
@@ -202,10 +470,11 @@ public class MethodCollector {
         ignoreMethodList.addAll(collectedIgnoreMethodMap.values());
         Log.i(TAG, "[saveIgnoreCollectedMethod] size:%s path:%s", collectedIgnoreMethodMap.size(), methodMapFile.getAbsolutePath());
 
-        Collections.sort(ignoreMethodList, new Comparator<TraceMethod>() {//通过class名字进行排序
+        Collections.sort(ignoreMethodList, new Comparator<TraceMethod>() {//通过class名字进行排序，同一个类的方法再按方法名排序，保证每次输出一致
             @Override
             public int compare(TraceMethod o1, TraceMethod o2) {
-                return o1.className.compareTo(o2.className);
+                int result = o1.className.compareTo(o2.className);
+                return 0 != result ? result : o1.getMethodName().compareTo(o2.getMethodName());
             }
         });
 
@@ -271,15 +540,22 @@ public class MethodCollector {
                 pw.close();
             }
         }
+        try {//相同输入两次构建的 md5 应一致，用于校验构建可复现
+            Log.i(TAG, "[saveCollectedMethod] md5:%s", TraceCache.hash(methodMapFile));
+        } catch (IOException e) {
+            Log.e(TAG, "[saveCollectedMethod] md5 err:%s", e.toString());
+        }
     }
 
     private class TraceClassAdapter extends ClassVisitor {
         private String className;
         private boolean isABSClass = false;
         private boolean hasWindowFocusMethod = false;
+        private final TraceCache.Unit unit;
 
-        TraceClassAdapter(int i, ClassVisitor classVisitor) {
+        TraceClassAdapter(int i, ClassVisitor classVisitor, TraceCache.Unit unit) {
             super(i, classVisitor);
+            this.unit = unit;
         }
 
         @Override
@@ -290,6 +566,9 @@ public class MethodCollector {
                 this.isABSClass = true;//如果是虚拟类或者接口 isABSClass =true
             }
             collectedClassExtendMap.put(className, superName);//存到 collectedClassExtendMap 中
+            if (null != unit) {
+                unit.addClass(className, superName);
+            }
         }
 
         @Override
@@ -301,7 +580,7 @@ public class MethodCollector {
                 if (!hasWindowFocusMethod) {//该方法是否与onWindowFocusChange方法的签名一致,该类中是否复写了onWindowFocusChange方法，Activity不用考虑Class混淆
                     hasWindowFocusMethod = isWindowFocusChangeMethod(name, desc);
                 }
-                return new CollectMethodNode(className, access, name, desc, signature, exceptions);//CollectMethodNode中执行method收集操作
+                return new CollectMethodNode(className, access, name, desc, signature, exceptions, unit);//CollectMethodNode中执行method收集操作
             }
         }
     }
@@ -309,12 +588,14 @@ public class MethodCollector {
     private class CollectMethodNode extends MethodNode {
         private String className;
         private boolean isConstructor;
+        private final TraceCache.Unit unit;
 
 
         CollectMethodNode(String className, int access, String name, String desc,
-                          String signature, String[] exceptions) {
+                          String signature, String[] exceptions, TraceCache.Unit unit) {
             super(Opcodes.ASM5, access, name, desc, signature, exceptions);
             this.className = className;
+            this.unit = unit;
         }
 
         @Override
@@ -332,17 +613,27 @@ public class MethodCollector {
                     && isNeedTrace) {
                 ignoreCount.incrementAndGet();//忽略方法递增
                 collectedIgnoreMethodMap.put(traceMethod.getMethodName(), traceMethod);//加入到被忽略方法 map
+                if (null != unit) {
+                    unit.addIgnoreMethod(traceMethod);
+                }
                 return;
             }
 
-            if (isNeedTrace && !collectedMethodMap.containsKey(traceMethod.getMethodName())) {//不在黑名单中而且没在在methodMapping中配置过的方法加入待插桩的集合；
-                traceMethod.id = methodId.incrementAndGet();
-                collectedMethodMap.put(traceMethod.getMethodName(), traceMethod);
-                incrementCount.incrementAndGet();
+            if (isNeedTrace && !collectedMethodMap.containsKey(traceMethod.getMethodName())) {//不在黑名单中而且没在在methodMapping中配置过的方法加入待插桩的集合；id 在收集完后由 assignMethodId 统一分配
+                if (null == collectedMethodMap.putIfAbsent(traceMethod.getMethodName(), traceMethod)) {
+                    incrementCount.incrementAndGet();
+                }
             } else if (!isNeedTrace && !collectedIgnoreMethodMap.containsKey(traceMethod.className)) {
                 ignoreCount.incrementAndGet();
                 collectedIgnoreMethodMap.put(traceMethod.getMethodName(), traceMethod);
             }
+            if (null != unit) {//已有的方法（上次收集或 baseMethodMap 中的）沿用原 id
+                if (isNeedTrace) {
+                    unit.addMethod(collectedMethodMap.get(traceMethod.getMethodName()));
+                } else {
+                    unit.addIgnoreMethod(traceMethod);
+                }
+            }
 
         }
 
@@ -421,22 +712,34 @@ public class MethodCollector {
     }
 
     public static boolean isNeedTrace(Configuration configuration, String clsName, MappingCollector mappingCollector) {
-        boolean isNeed = true;
-        if (configuration.blackSet.contains(clsName)) {
-            isNeed = false;
+        return !isInBlackSet(configuration.blackSet, clsName, mappingCollector);
+    }
+
+    /**
+     * @return whether lock probes go into the class, which is traced as well
+     */
+    public static boolean isNeedTraceLock(Configuration configuration, String clsName, MappingCollector mappingCollector) {
+        return configuration.lockTraceEnable && !isInBlackSet(configuration.lockBlackSet, clsName, mappingCollector)
+                && isNeedTrace(configuration, clsName, mappingCollector);
+    }
+
+    private static boolean isInBlackSet(HashSet<String> blackSet, String clsName, MappingCollector mappingCollector) {
+        boolean isBlack = false;
+        if (blackSet.contains(clsName)) {
+            isBlack = true;
         } else {
             if (null != mappingCollector) {
                 clsName = mappingCollector.originalClassName(clsName, clsName);
             }
             clsName = clsName.replaceAll("/", ".");
-            for (String packageName : configuration.blackSet) {
+            for (String packageName : blackSet) {
                 if (clsName.startsWith(packageName.replaceAll("/", "."))) {
-                    isNeed = false;
+                    isBlack = true;
                     break;
                 }
             }
         }
-        return isNeed;
+        return isBlack;
     }
 
 
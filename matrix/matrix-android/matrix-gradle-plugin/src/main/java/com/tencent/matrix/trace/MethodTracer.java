@@ -21,6 +21,9 @@ import com.tencent.matrix.javalib.util.Log;
 import com.tencent.matrix.trace.item.TraceMethod;
 import com.tencent.matrix.trace.retrace.MappingCollector;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
@@ -28,26 +31,28 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.AdviceAdapter;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by caichongyang on 2017/6/4.
@@ -60,29 +65,78 @@ public class MethodTracer {
 
     private static final String TAG = "Matrix.MethodTracer";
     private static AtomicInteger traceMethodCount = new AtomicInteger();
+    private static AtomicInteger traceLockCount = new AtomicInteger();//锁探针单独计数，不计入 method probes
     private final Configuration configuration;
     private final ConcurrentHashMap<String, TraceMethod> collectedMethodMap;
     private final ConcurrentHashMap<String, String> collectedClassExtendMap;
+    private final ConcurrentHashMap<String, byte[]> collectedClassBytes;
     private final ExecutorService executor;
     private MappingCollector mappingCollector;
-
-    public MethodTracer(ExecutorService executor, MappingCollector mappingCollector, Configuration config, ConcurrentHashMap<String, TraceMethod> collectedMap, ConcurrentHashMap<String, String> collectedClassExtendMap) {
+    private final AtomicInteger cacheMissCount = new AtomicInteger();
+    private final AtomicLong instrumentCost = new AtomicLong();
+    private final ConcurrentLinkedQueue<Future> entryFutures = new ConcurrentLinkedQueue<>();//jar 拆分出的 TraceJarEntriesTask
+    private final ConcurrentHashMap<File, Long> jarCostMap = new ConcurrentHashMap<>();
+    private final AtomicInteger copiedJarCount = new AtomicInteger();//没有需要插桩的类而整个拷贝的 jar
+    private final AtomicInteger rawCopiedEntryCount = new AtomicInteger();//不经解压、压缩直接拷贝的 jar 条目
+    private final Set<String> tracedClassSet = new HashSet<>();//collectedMethodMap 中有方法的类，即使在黑名单中也要插桩
+    private final AtomicLong instrumentDigest = new AtomicLong();//所有插桩后类的 md5 前 8 字节之和，与插桩顺序无关，相同输入两次构建应一致
+
+    /**
+     * @param collectedClassBytes the bytes of the classes read by {@link MethodCollector}, the classes not in
+     *                            it are read from disk again
+     */
+    public MethodTracer(ExecutorService executor, MappingCollector mappingCollector, Configuration config, ConcurrentHashMap<String, TraceMethod> collectedMap,
+                        ConcurrentHashMap<String, String> collectedClassExtendMap, ConcurrentHashMap<String, byte[]> collectedClassBytes) {
         this.configuration = config;
         this.mappingCollector = mappingCollector;
         this.executor = executor;
         this.collectedClassExtendMap = collectedClassExtendMap;
         this.collectedMethodMap = collectedMap;
+        this.collectedClassBytes = collectedClassBytes;
     }
 
 
     public void trace(Map<File, File> srcFolderList, Map<File, File> dependencyJarList) throws ExecutionException, InterruptedException {
         List<Future> futures = new LinkedList<>();
+        for (TraceMethod traceMethod : collectedMethodMap.values()) {//插桩开始后只读
+            tracedClassSet.add(traceMethod.className);
+        }
         traceMethodFromSrc(srcFolderList, futures);//对源文件进行插桩
         traceMethodFromJar(dependencyJarList, futures);//对jar进行插桩
         for (Future future : futures) {
             future.get();
         }
         futures.clear();
+        Future entryFuture;
+        while (null != (entryFuture = entryFutures.poll())) {//jar 的任务都结束后，拆分出的任务已全部提交
+            entryFuture.get();
+        }
+        MethodCollector.logJarCost(TAG, "trace", jarCostMap);
+        Log.i(TAG, "[trace] instrument cost:%sms (summed over threads), classes read again:%s, method probes:%s, lock probes:%s, digest:%s",
+                instrumentCost.get() / 1000000, cacheMissCount.get(), traceMethodCount.get(), traceLockCount.get(), Long.toHexString(instrumentDigest.get()));
+        Log.i(TAG, "[trace] jars copied as a whole:%s, jar entries copied without inflating:%s", copiedJarCount.get(), rawCopiedEntryCount.get());
+    }
+
+    /**
+     * instrument the bytes collected, or read the class again if it wasn't collected.
+     */
+    private byte[] traceClass(String key, InputStream is) throws IOException {
+        byte[] bytes = collectedClassBytes.remove(key);
+        if (null == bytes) {
+            cacheMissCount.incrementAndGet();
+            bytes = FileUtil.readBytes(is);
+        } else {
+            FileUtil.closeQuietly(is);
+        }
+        long start = System.nanoTime();
+        ClassReader classReader = new ClassReader(bytes);
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        ClassVisitor classVisitor = new TraceClassAdapter(Opcodes.ASM5, classWriter);// TraceClassAdapter 进行插桩
+        classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES);
+        byte[] data = classWriter.toByteArray();
+        instrumentCost.addAndGet(System.nanoTime() - start);
+        instrumentDigest.addAndGet(ByteBuffer.wrap(TraceCache.digest(data)).getLong());
+        return data;
     }
 
     private void traceMethodFromSrc(Map<File, File> srcMap, List<Future> futures) {
@@ -131,20 +185,21 @@ public class MethodTracer {
                 }
                 changedFileOutput.createNewFile();
 
-                if (MethodCollector.isNeedTraceFile(classFile.getName())) {//需要插桩
+                boolean isNeedTraceFile = MethodCollector.isNeedTraceFile(classFile.getName());
+                byte[] bytes = isNeedTraceFile ? collectedClassBytes.get(changedFileInputFullPath) : null;
+                if (null != bytes && !isNeedTraceClass(new ClassReader(bytes).getClassName())) {//黑名单中的类原样拷贝，与 jar 中一致
+                    collectedClassBytes.remove(changedFileInputFullPath);
+                    FileUtil.copyFileUsingStream(classFile, changedFileOutput);
+                } else if (isNeedTraceFile) {//需要插桩
                     is = new FileInputStream(classFile);
-                    ClassReader classReader = new ClassReader(is);
-                    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-                    ClassVisitor classVisitor = new TraceClassAdapter(Opcodes.ASM5, classWriter);// TraceClassAdapter 进行插桩
-                    classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES);
-                    is.close();
+                    byte[] data = traceClass(changedFileInputFullPath, is);
 
                     if (output.isDirectory()) {
                         os = new FileOutputStream(changedFileOutput);
                     } else {
                         os = new FileOutputStream(output);
                     }
-                    os.write(classWriter.toByteArray());//将修改后的内容写入到 插装后的文件中
+                    os.write(data);//将修改后的内容写入到 插装后的文件中
                     os.close();
                 } else {//不需要插桩，直接copy
                     FileUtil.copyFileUsingStream(classFile, changedFileOutput);
@@ -167,55 +222,170 @@ public class MethodTracer {
         }
     }
 
+    /**
+     * Instruments the first {@link TraceBuildConstants#JAR_ENTRIES_PER_TASK} classes of the jar, and splits
+     * the rest into {@link TraceJarEntriesTask}s on the executor. The last task to end writes the jar, in the
+     * order of its entries. Only the instrumented classes of the jars in progress are kept in memory, their
+     * original bytes are dropped from the collected ones as they're instrumented.
+     * <p>
+     * The classes in the black list without any method to trace are left as they are, and a jar without any
+     * other class is copied as a whole.
+     * </p>
+     */
     private void innerTraceMethodFromJar(File input, File output) {
-        ZipOutputStream zipOutputStream = null;
         ZipFile zipFile = null;
         try {
-            zipOutputStream = new ZipOutputStream(new FileOutputStream(output));
+            long start = System.currentTimeMillis();
             zipFile = new ZipFile(input);
-            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            List<ZipArchiveEntry> entryList = new ArrayList<>();
+            List<Integer> classIndexList = new ArrayList<>();
+            Enumeration<ZipArchiveEntry> enumeration = zipFile.getEntries();
             while (enumeration.hasMoreElements()) {
-                ZipEntry zipEntry = enumeration.nextElement();
+                ZipArchiveEntry zipEntry = enumeration.nextElement();
                 String zipEntryName = zipEntry.getName();
                 if (MethodCollector.isNeedTraceFile(zipEntryName)) {
-                    InputStream inputStream = zipFile.getInputStream(zipEntry);
-                    ClassReader classReader = new ClassReader(inputStream);
-                    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-                    ClassVisitor classVisitor = new TraceClassAdapter(Opcodes.ASM5, classWriter);
-                    classReader.accept(classVisitor, ClassReader.EXPAND_FRAMES);
-                    byte[] data = classWriter.toByteArray();
-                    InputStream byteArrayInputStream = new ByteArrayInputStream(data);
-                    ZipEntry newZipEntry = new ZipEntry(zipEntryName);
-                    FileUtil.addZipEntry(zipOutputStream, newZipEntry, byteArrayInputStream);
-                } else {
-                    InputStream inputStream = zipFile.getInputStream(zipEntry);
-                    ZipEntry newZipEntry = new ZipEntry(zipEntryName);
-                    FileUtil.addZipEntry(zipOutputStream, newZipEntry, inputStream);//直接copy jar 到插装过后的 存放区
+                    if (isNeedTraceClass(zipEntryName.substring(0, zipEntryName.length() - ".class".length()))) {
+                        classIndexList.add(entryList.size());
+                    } else {
+                        collectedClassBytes.remove(MethodCollector.getClassKey(input, zipEntryName));
+                    }
                 }
+                entryList.add(zipEntry);
+            }
+            if (classIndexList.isEmpty()) {//没有需要插桩的类，整个 jar 直接拷贝
+                zipFile.close();
+                zipFile = null;
+                Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                copiedJarCount.incrementAndGet();
+                jarCostMap.put(input, System.currentTimeMillis() - start);
+                return;
+            }
+            int perTask = TraceBuildConstants.JAR_ENTRIES_PER_TASK;
+            TracingJar jar = new TracingJar(input, output, zipFile, entryList, start, Math.max(1, (classIndexList.size() + perTask - 1) / perTask));
+            zipFile = null;//由最后一个结束的任务写出 jar 后关闭
+            for (int i = perTask; i < classIndexList.size(); i += perTask) {
+                entryFutures.add(executor.submit(new TraceJarEntriesTask(jar, classIndexList.subList(i, Math.min(i + perTask, classIndexList.size())))));
             }
+            new TraceJarEntriesTask(jar, classIndexList.subList(0, Math.min(perTask, classIndexList.size()))).run();
         } catch (Exception e) {
             Log.e(TAG, "[innerTraceMethodFromJar] input:%s output:%s e:%s", input.getName(), output, e);
             try {
+                if (zipFile != null) {
+                    zipFile.close();
+                }
                 Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
             } catch (Exception e1) {
                 e1.printStackTrace();
             }
-        } finally {
+        }
+    }
+
+    /**
+     * a jar being instrumented by several tasks, the instrumented classes are kept by the index of their
+     * entries until it's written.
+     */
+    private class TracingJar {
+        final File input;
+        final File output;
+        final ZipFile zipFile;
+        final List<ZipArchiveEntry> entryList;
+        final byte[][] data;
+        final long start;
+        final AtomicInteger pendingTasks;
+        volatile Exception error;
+
+        TracingJar(File input, File output, ZipFile zipFile, List<ZipArchiveEntry> entryList, long start, int taskCount) {
+            this.input = input;
+            this.output = output;
+            this.zipFile = zipFile;
+            this.entryList = entryList;
+            this.data = new byte[entryList.size()][];
+            this.start = start;
+            this.pendingTasks = new AtomicInteger(taskCount);
+        }
+
+        void onTaskEnd() {
+            if (0 != pendingTasks.decrementAndGet()) {
+                return;
+            }
+            ZipArchiveOutputStream zipOutputStream = null;
             try {
-                if (zipOutputStream != null) {
-                    zipOutputStream.finish();
-                    zipOutputStream.flush();
-                    zipOutputStream.close();
+                if (null != error) {
+                    throw error;
                 }
-                if (zipFile != null) {
+                zipOutputStream = new ZipArchiveOutputStream(output);
+                for (int i = 0; i < entryList.size(); i++) {
+                    ZipArchiveEntry zipEntry = entryList.get(i);
+                    if (null != data[i]) {
+                        ZipArchiveEntry newZipEntry = new ZipArchiveEntry(zipEntry.getName());
+                        newZipEntry.setTime(zipEntry.getTime());//沿用原时间，否则每次构建的 jar 都不同
+                        zipOutputStream.putArchiveEntry(newZipEntry);
+                        zipOutputStream.write(data[i]);
+                        zipOutputStream.closeArchiveEntry();
+                        data[i] = null;
+                    } else {
+                        rawCopiedEntryCount.incrementAndGet();
+                        zipOutputStream.addRawArchiveEntry(zipEntry, zipFile.getRawInputStream(zipEntry));//未插桩的条目直接拷贝压缩后的数据，不再解压、压缩
+                    }
+                }
+                zipOutputStream.finish();
+                zipOutputStream.close();
+            } catch (Exception e) {
+                Log.e(TAG, "[innerTraceMethodFromJar] input:%s output:%s e:%s", input.getName(), output, e);
+                FileUtil.closeQuietly(zipOutputStream);
+                try {
+                    Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+            } finally {
+                try {
                     zipFile.close();
+                } catch (Exception e) {
+                    Log.e(TAG, "close stream err!");
+                }
+                jarCostMap.put(input, System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+    private class TraceJarEntriesTask implements Runnable {
+
+        final TracingJar jar;
+        final List<Integer> indexList;
+
+        TraceJarEntriesTask(TracingJar jar, List<Integer> indexList) {
+            this.jar = jar;
+            this.indexList = indexList;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int index : indexList) {
+                    if (null != jar.error) {
+                        break;
+                    }
+                    ZipArchiveEntry zipEntry = jar.entryList.get(index);
+                    jar.data[index] = traceClass(MethodCollector.getClassKey(jar.input, zipEntry.getName()), jar.zipFile.getInputStream(zipEntry));
                 }
             } catch (Exception e) {
-                Log.e(TAG, "close stream err!");
+                jar.error = e;
+            } finally {
+                jar.onTaskEnd();
             }
         }
     }
 
+    /**
+     * @return whether the class isn't in the black list or has methods to trace anyway, such as the ones of
+     * baseMethodMap, {@link TraceClassAdapter} changes nothing in the others
+     */
+    private boolean isNeedTraceClass(String className) {
+        return MethodCollector.isNeedTrace(configuration, className, mappingCollector)
+                || tracedClassSet.contains(className.replace("/", "."));
+    }
+
     private void listClassFiles(ArrayList<File> classFiles, File folder) {
         File[] files = folder.listFiles();
         if (null == files) {
@@ -244,6 +414,7 @@ public class MethodTracer {
         private boolean hasWindowFocusMethod = false;
         private boolean isActivityOrSubClass;
         private boolean isNeedTrace;
+        private boolean isNeedTraceLock;
 
         TraceClassAdapter(int i, ClassVisitor classVisitor) {
             super(i, classVisitor);
@@ -255,6 +426,7 @@ public class MethodTracer {
             this.className = name;
             this.isActivityOrSubClass = isActivityOrSubClass(className, collectedClassExtendMap);//是否是 activity 或者其 子类
             this.isNeedTrace = MethodCollector.isNeedTrace(configuration, className, mappingCollector);//是否需要被插桩
+            this.isNeedTraceLock = isNeedTrace && MethodCollector.isNeedTraceLock(configuration, className, mappingCollector);//是否插入锁探针
             if ((access & Opcodes.ACC_ABSTRACT) > 0 || (access & Opcodes.ACC_INTERFACE) > 0) {//是否是抽象类、接口
                 this.isABSClass = true;
             }
@@ -272,7 +444,7 @@ public class MethodTracer {
                 }
                 MethodVisitor methodVisitor = cv.visitMethod(access, name, desc, signature, exceptions);
                 return new TraceMethodAdapter(api, methodVisitor, access, name, desc, this.className,
-                        hasWindowFocusMethod, isActivityOrSubClass, isNeedTrace);
+                        hasWindowFocusMethod, isActivityOrSubClass, isNeedTrace, isNeedTraceLock);
             }
         }
 
@@ -294,9 +466,14 @@ public class MethodTracer {
         private final boolean hasWindowFocusMethod;
         private final boolean isNeedTrace;
         private final boolean isActivityOrSubClass;
+        private final boolean isNeedTraceLock;
+        private final boolean isSynchronized;
+        // the id of this method as a lock site, 0 if it isn't traced or lock probes aren't needed
+        private int lockSiteId;
 
         protected TraceMethodAdapter(int api, MethodVisitor mv, int access, String name, String desc, String className,
-                                     boolean hasWindowFocusMethod, boolean isActivityOrSubClass, boolean isNeedTrace) {
+                                     boolean hasWindowFocusMethod, boolean isActivityOrSubClass, boolean isNeedTrace,
+                                     boolean isNeedTraceLock) {
             super(api, mv, access, name, desc);
             TraceMethod traceMethod = TraceMethod.create(0, access, className, name, desc);
             this.methodName = traceMethod.getMethodName();
@@ -305,7 +482,12 @@ public class MethodTracer {
             this.name = name;
             this.isActivityOrSubClass = isActivityOrSubClass;
             this.isNeedTrace = isNeedTrace;
-
+            this.isNeedTraceLock = isNeedTraceLock;
+            this.isSynchronized = (access & Opcodes.ACC_SYNCHRONIZED) != 0;
+            if (isNeedTraceLock) {
+                TraceMethod lockMethod = collectedMethodMap.get(methodName);
+                this.lockSiteId = null == lockMethod ? 0 : lockMethod.id;
+            }
         }
 
         @Override
@@ -315,9 +497,44 @@ public class MethodTracer {
                 traceMethodCount.incrementAndGet();//traceMethodCount +1
                 mv.visitLdcInsn(traceMethod.id);
                 mv.visitMethodInsn(INVOKESTATIC, TraceBuildConstants.MATRIX_TRACE_CLASS, "i", "(I)V", false);
+                if (isSynchronized && lockSiteId > 0) {//synchronized 方法入口已持有锁
+                    traceLock(TraceBuildConstants.MATRIX_TRACE_LOCK_ACQUIRED, lockSiteId);
+                }
             }
         }
 
+        @Override
+        public void visitInsn(int opcode) {
+            if (lockSiteId > 0 && opcode == Opcodes.MONITORENTER) {//synchronized 代码块
+                traceLock(TraceBuildConstants.MATRIX_TRACE_LOCK_ENTER, lockSiteId);
+                super.visitInsn(opcode);
+                traceLock(TraceBuildConstants.MATRIX_TRACE_LOCK_ACQUIRED, lockSiteId);
+                return;
+            }
+            if (lockSiteId > 0 && opcode == Opcodes.MONITOREXIT) {
+                traceLock(TraceBuildConstants.MATRIX_TRACE_LOCK_EXIT, lockSiteId);
+            }
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (isNeedTraceLock) {//调用 synchronized 方法处开始等锁，由被调方法入口的 acquired 结束
+                TraceMethod callee = collectedMethodMap.get(owner.replace("/", ".") + "." + name + "." + desc.replace("/", "."));
+                if (callee != null && (callee.accessFlag & Opcodes.ACC_SYNCHRONIZED) != 0
+                        && MethodCollector.isNeedTraceLock(configuration, owner, mappingCollector)) {
+                    traceLock(TraceBuildConstants.MATRIX_TRACE_LOCK_ENTER, callee.id);
+                }
+            }
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        private void traceLock(String probe, int siteId) {
+            traceLockCount.incrementAndGet();
+            mv.visitLdcInsn(siteId);
+            mv.visitMethodInsn(INVOKESTATIC, TraceBuildConstants.MATRIX_TRACE_CLASS, probe, "(I)V", false);
+        }
+
         // pass jni method trace, because its super method can cover it
         /*@Override
         public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
@@ -340,6 +557,9 @@ public class MethodTracer {
         protected void onMethodExit(int opcode) {//函数出口处添加 AppMethodBeat.O（）方法
             TraceMethod traceMethod = collectedMethodMap.get(methodName);
             if (traceMethod != null) {
+                if (isSynchronized && lockSiteId > 0) {
+                    traceLock(TraceBuildConstants.MATRIX_TRACE_LOCK_EXIT, lockSiteId);
+                }
                 if (hasWindowFocusMethod && isActivityOrSubClass && isNeedTrace) {//是 onWindowFocusChanged 方法 则在出口添加 AppMethodBeat.at()
                     TraceMethod windowFocusChangeMethod = TraceMethod.create(-1, Opcodes.ACC_PUBLIC, className,
                             TraceBuildConstants.MATRIX_TRACE_ON_WINDOW_FOCUS_METHOD, TraceBuildConstants.MATRIX_TRACE_ON_WINDOW_FOCUS_METHOD_ARGS);
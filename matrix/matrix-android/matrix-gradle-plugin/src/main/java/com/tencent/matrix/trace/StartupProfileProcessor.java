@@ -0,0 +1,186 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.javalib.util.FileUtil;
+import com.tencent.matrix.javalib.util.Log;
+import com.tencent.matrix.javalib.util.Util;
+import com.tencent.matrix.trace.item.TraceMethod;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * Turns the startup method-order profile collected by trace canary (see StartupProfile of matrix-trace-canary)
+ * into the inputs of dex layout and AOT compilation, with the methodMapping.txt of the build which collected it:
+ * <p>
+ * startupClasses.txt：启动阶段首次加载的类，按首次执行顺序，每行一个类名
+ * baseline-prof.txt：ART profile 格式，类按首次执行顺序，其方法标记为 HSP，可作为 baseline profile 或 startup profile
+ * </p>
+ */
+public class StartupProfileProcessor {
+
+    private static final String TAG = "Matrix.StartupProfileProcessor";
+    private static final int PROFILE_MAGIC = 0x4D535450;
+    private static final int PROFILE_VERSION = 1;
+    public static final String STARTUP_CLASSES_FILE = "startupClasses.txt";
+    public static final String BASELINE_PROFILE_FILE = "baseline-prof.txt";
+
+    private final File profileFile;
+    private final File methodMapFile;
+
+    public StartupProfileProcessor(File profileFile, File methodMapFile) {
+        this.profileFile = profileFile;
+        this.methodMapFile = methodMapFile;
+    }
+
+    /**
+     * @return the count of classes written, -1 if the profile or mapping can't be read
+     */
+    public int process(File outDir) {
+        int[] ids = readProfile(profileFile);
+        if (null == ids) {
+            return -1;
+        }
+        Map<Integer, TraceMethod> methods = readMethodMap(methodMapFile);
+        if (methods.isEmpty()) {
+            Log.e(TAG, "[process] no method in %s", methodMapFile.getAbsolutePath());
+            return -1;
+        }
+
+        // 类按其方法首次执行的顺序排列
+        LinkedHashMap<String, List<TraceMethod>> classes = new LinkedHashMap<>();
+        int missCount = 0;
+        for (int id : ids) {
+            TraceMethod method = methods.get(id);
+            if (null == method) {
+                missCount++;
+                continue;
+            }
+            List<TraceMethod> list = classes.get(method.className);
+            if (null == list) {
+                list = new ArrayList<>();
+                classes.put(method.className, list);
+            }
+            list.add(method);
+        }
+        if (missCount > 0) {
+            Log.w(TAG, "[process] %s of %s ids are not found in %s, is it the mapping of the build collected the profile?",
+                    missCount, ids.length, methodMapFile.getAbsolutePath());
+        }
+
+        if (!outDir.exists()) {
+            outDir.mkdirs();
+        }
+        PrintWriter classWriter = null;
+        PrintWriter profileWriter = null;
+        try {
+            classWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, STARTUP_CLASSES_FILE), false), "UTF-8"));
+            profileWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, BASELINE_PROFILE_FILE), false), "UTF-8"));
+            for (Map.Entry<String, List<TraceMethod>> entry : classes.entrySet()) {
+                String descriptor = "L" + entry.getKey().replace('.', '/') + ";";
+                classWriter.println(entry.getKey());
+                profileWriter.println(descriptor);
+                for (TraceMethod method : entry.getValue()) {
+                    if (Util.isNullOrNil(method.desc)) {
+                        continue;
+                    }
+                    profileWriter.println("HSP" + descriptor + "->" + method.methodName + method.desc.replace('.', '/'));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "[process] write err! %s", e.toString());
+            return -1;
+        } finally {
+            FileUtil.closeQuietly(classWriter);
+            FileUtil.closeQuietly(profileWriter);
+        }
+        Log.i(TAG, "[process] %s methods of %s classes into %s", ids.length - missCount, classes.size(), outDir.getAbsolutePath());
+        return classes.size();
+    }
+
+    private static int[] readProfile(File file) {
+        if (!file.isFile()) {
+            Log.e(TAG, "[readProfile] not exist! %s", file.getAbsolutePath());
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int magic = in.readInt();
+            int version = in.readInt();
+            if (magic != PROFILE_MAGIC || version != PROFILE_VERSION) {
+                Log.e(TAG, "[readProfile] unknown profile! magic:%x version:%s", magic, version);
+                return null;
+            }
+            int count = in.readInt();
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                int id = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = in.readUnsignedByte();
+                    id |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                ids[i] = id;
+            }
+            return ids;
+        } catch (IOException e) {
+            Log.e(TAG, "[readProfile] err! %s", e.toString());
+            return null;
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+    }
+
+    /**
+     * the lines of methodMapping.txt are "id,accessFlag,className methodName desc"
+     */
+    private static Map<Integer, TraceMethod> readMethodMap(File file) {
+        Map<Integer, TraceMethod> methods = new HashMap<>();
+        if (!file.isFile()) {
+            Log.e(TAG, "[readMethodMap] not exist! %s", file.getAbsolutePath());
+            return methods;
+        }
+        Scanner fileReader = null;
+        try {
+            fileReader = new Scanner(file, "UTF-8");
+            while (fileReader.hasNextLine()) {
+                String line = fileReader.nextLine().trim();
+                if (Util.isNullOrNil(line) || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",", 3);
+                String[] methodField = fields[2].split(" ");
+                TraceMethod method = new TraceMethod();
+                method.id = Integer.parseInt(fields[0]);
+                method.accessFlag = Integer.parseInt(fields[1]);
+                method.className = methodField[0];
+                method.methodName = methodField[1];
+                if (methodField.length > 2) {
+                    method.desc = methodField[2];
+                }
+                methods.put(method.id, method);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "[readMethodMap] err! %s", e.toString());
+        } finally {
+            if (fileReader != null) {
+                fileReader.close();
+            }
+        }
+        return methods;
+    }
+}
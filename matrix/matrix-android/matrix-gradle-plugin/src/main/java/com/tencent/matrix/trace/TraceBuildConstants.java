@@ -33,6 +33,10 @@ public class TraceBuildConstants {
     public final static String MATRIX_TRACE_APPLICATION_CLASS = "android/app/Application";
     public final static String MATRIX_TRACE_METHOD_BEAT_CLASS = "com/tencent/matrix/trace/core/AppMethodBeat";
     public final static String MATRIX_TRACE_ON_WINDOW_FOCUS_METHOD_ARGS = "(Z)V";
+    public final static String MATRIX_TRACE_LOCK_ENTER = "lockEnter";
+    public final static String MATRIX_TRACE_LOCK_ACQUIRED = "lockAcquired";
+    public final static String MATRIX_TRACE_LOCK_EXIT = "lockExit";
+    public final static int JAR_ENTRIES_PER_TASK = 256; // a jar is collected and traced by tasks of so many classes each
     public static final String[] UN_TRACE_CLASS = {"R.class", "R$", "Manifest", "BuildConfig"};
     public final static String DEFAULT_BLACK_TRACE =
                     "[package]\n"
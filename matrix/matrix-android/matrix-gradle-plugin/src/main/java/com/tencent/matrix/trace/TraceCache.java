@@ -0,0 +1,338 @@
+package com.tencent.matrix.trace;
+
+import com.tencent.matrix.javalib.util.FileUtil;
+import com.tencent.matrix.javalib.util.Log;
+import com.tencent.matrix.javalib.util.Util;
+import com.tencent.matrix.trace.item.TraceMethod;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The methods and classes collected from every input of the last transform, kept between builds so that an
+ * incremental build only collects the inputs changed, while the methods of the others keep their ids and the
+ * class hierarchy stays complete.
+ * <p>
+ * An input is a class file or a jar, keyed by its absolute path and checked by the md5 of its content. The
+ * whole cache is dropped once the fingerprint changes, which covers the version of the format, the black
+ * lists, the base method map and the proguard mapping.
+ * </p>
+ */
+public class TraceCache {
+
+    private static final String TAG = "Matrix.TraceCache";
+    private static final int MAGIC = 0x4D545243; // MTRC
+    private static final int VERSION = 1;
+    private static final Comparator<TraceMethod> METHOD_COMPARATOR = new Comparator<TraceMethod>() {
+        @Override
+        public int compare(TraceMethod o1, TraceMethod o2) {
+            int result = o1.getMethodName().compareTo(o2.getMethodName());
+            if (0 == result) {
+                result = o1.id < o2.id ? -1 : (o1.id == o2.id ? 0 : 1);
+            }
+            return 0 != result ? result : o1.accessFlag < o2.accessFlag ? -1 : (o1.accessFlag == o2.accessFlag ? 0 : 1);
+        }
+    };
+
+    private final File file;
+    private final String fingerprint;
+    private final ConcurrentHashMap<String, Unit> units = new ConcurrentHashMap<>();
+    private final Set<String> seenUnits = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> changedUnits = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private int maxId = 0;
+    private boolean isValid = false;
+
+    private TraceCache(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return the cache of the last transform, or an empty and invalid one if it's missing or out of date
+     */
+    public static TraceCache load(File file, String fingerprint) {
+        TraceCache cache = new TraceCache(file, fingerprint);
+        if (!file.isFile()) {
+            Log.i(TAG, "[load] no cache at %s", file.getAbsolutePath());
+            return cache;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), FileUtil.BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !fingerprint.equals(in.readUTF())) {
+                Log.i(TAG, "[load] cache is out of date, ignore it");
+                return cache;
+            }
+            cache.maxId = in.readInt();
+            int unitCount = in.readInt();
+            for (int i = 0; i < unitCount; i++) {
+                Unit unit = new Unit(in.readUTF(), in.readUTF());
+                int classCount = in.readInt();
+                for (int j = 0; j < classCount; j++) {
+                    unit.addClass(in.readUTF(), nilAsNull(in.readUTF()));
+                }
+                readMethods(in, unit.methods);
+                readMethods(in, unit.ignoreMethods);
+                cache.units.put(unit.key, unit);
+            }
+            cache.isValid = true;
+            Log.i(TAG, "[load] %s inputs, max method id:%s", unitCount, cache.maxId);
+        } catch (IOException e) {
+            Log.e(TAG, "[load] %s", e.toString());
+            cache.units.clear();
+            cache.maxId = 0;
+        } finally {
+            FileUtil.closeQuietly(in);
+        }
+        return cache;
+    }
+
+    /**
+     * write the inputs collected or confirmed in this transform, and, if it isn't incremental, drop the
+     * others which are gone.
+     */
+    public void save(boolean isIncremental, int maxId) {
+        if (!isIncremental) {
+            units.keySet().retainAll(seenUnits);
+        }
+        this.maxId = Math.max(this.maxId, maxId);
+        File parent = file.getParentFile();
+        if (null != parent && !parent.exists()) {
+            parent.mkdirs();
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false), FileUtil.BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(this.maxId);
+            List<Unit> list = new ArrayList<>(units.values());
+            Collections.sort(list, new Comparator<Unit>() {//按 key 排序，相同输入写出的文件一致
+                @Override
+                public int compare(Unit o1, Unit o2) {
+                    return o1.key.compareTo(o2.key);
+                }
+            });
+            out.writeInt(list.size());
+            for (Unit unit : list) {
+                out.writeUTF(unit.key);
+                out.writeUTF(unit.hash);
+                out.writeInt(unit.classes.size());
+                for (Map.Entry<String, String> entry : new TreeMap<>(unit.classes).entrySet()) {//jar 的类由多个线程收集，按类名写出
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(Util.nullAsNil(entry.getValue()));
+                }
+                writeMethods(out, unit.methods);
+                writeMethods(out, unit.ignoreMethods);
+            }
+            Log.i(TAG, "[save] %s inputs, max method id:%s", list.size(), this.maxId);
+            out.close();
+        } catch (IOException e) {
+            Log.e(TAG, "[save] %s", e.toString());
+            FileUtil.closeQuietly(out);
+            file.delete();
+        }
+    }
+
+    public boolean isValid() {
+        return isValid;
+    }
+
+    public int getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * @return the unit of the input if its content is the same as last time, it's kept then, otherwise it's
+     * dropped by {@link #preload}
+     */
+    public Unit hit(String key, String hash) {
+        Unit unit = units.get(key);
+        if (null != unit && unit.hash.equals(hash)) {
+            seenUnits.add(key);
+            return unit;
+        }
+        if (null != unit) {
+            changedUnits.add(key);
+        }
+        return null;
+    }
+
+    public void putUnit(Unit unit) {
+        units.put(unit.key, unit);
+        seenUnits.add(unit.key);
+    }
+
+    public void removeUnit(String key) {
+        units.remove(key);
+    }
+
+    /**
+     * fill the maps of {@link MethodCollector} with the inputs of the last transform, after every input of
+     * this transform is checked by {@link #hit} and before collecting the changed ones, so that a method
+     * already seen keeps its id. The units of the inputs changed are dropped, and, if it isn't incremental,
+     * the ones not seen either, so that the methods and classes removed since don't come back.
+     */
+    public void preload(boolean isIncremental, Map<String, TraceMethod> collectedMethodMap,
+                        Map<String, TraceMethod> collectedIgnoreMethodMap, Map<String, String> collectedClassExtendMap) {
+        units.keySet().removeAll(changedUnits);
+        if (!isIncremental) {//全量时未出现在本次输入中的都已删除
+            units.keySet().retainAll(seenUnits);
+        }
+        for (Unit unit : units.values()) {
+            for (Map.Entry<String, String> entry : unit.classes.entrySet()) {
+                if (null != entry.getValue()) {
+                    collectedClassExtendMap.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (TraceMethod traceMethod : unit.methods) {
+                if (!collectedMethodMap.containsKey(traceMethod.getMethodName())) {
+                    collectedMethodMap.put(traceMethod.getMethodName(), traceMethod);
+                }
+            }
+            for (TraceMethod traceMethod : unit.ignoreMethods) {
+                collectedIgnoreMethodMap.put(traceMethod.getMethodName(), traceMethod);
+            }
+        }
+    }
+
+    /**
+     * @return the md5 of everything which decides the method ids and the instrumentation besides the inputs
+     */
+    public static String fingerprint(Configuration config) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(VERSION).append('|').append(config.lockTraceEnable).append('|');
+        sb.append(hashIfExists(config.blackListFilePath)).append('|');
+        if (config.lockTraceEnable) {
+            sb.append(hashIfExists(config.lockBlackListFilePath)).append('|');
+        }
+        sb.append(hashIfExists(config.baseMethodMapPath)).append('|');
+        sb.append(hashIfExists(new File(config.mappingDir, "mapping.txt").getAbsolutePath()));
+        return hash(sb.toString().getBytes(Charset.forName("UTF-8")));
+    }
+
+    private static String hashIfExists(String path) {
+        File file = new File(path);
+        if (Util.isNullOrNil(path) || !file.isFile()) {
+            return "";
+        }
+        try {
+            return hash(file);
+        } catch (IOException e) {
+            Log.e(TAG, "[hashIfExists] %s %s", path, e.toString());
+            return "";
+        }
+    }
+
+    public static String hash(byte[] bytes) {
+        return Util.byteArrayToHex(digest(bytes));
+    }
+
+    public static byte[] digest(byte[] bytes) {
+        MessageDigest digest = newDigest();
+        digest.update(bytes);
+        return digest.digest();
+    }
+
+    public static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            byte[] buffer = new byte[FileUtil.BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, length);
+            }
+        } finally {
+            FileUtil.closeQuietly(is);
+        }
+        return Util.byteArrayToHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void readMethods(DataInputStream in, List<TraceMethod> methods) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            TraceMethod traceMethod = new TraceMethod();
+            traceMethod.id = in.readInt();
+            traceMethod.accessFlag = in.readInt();
+            traceMethod.className = in.readUTF();
+            traceMethod.methodName = in.readUTF();
+            traceMethod.desc = nilAsNull(in.readUTF());
+            methods.add(traceMethod);
+        }
+    }
+
+    private static void writeMethods(DataOutputStream out, List<TraceMethod> methods) throws IOException {
+        List<TraceMethod> list = new ArrayList<>(methods);
+        Collections.sort(list, METHOD_COMPARATOR);//收集顺序与线程调度有关，排序后相同输入写出的文件一致
+        out.writeInt(list.size());
+        for (TraceMethod traceMethod : list) {
+            out.writeInt(traceMethod.id);
+            out.writeInt(traceMethod.accessFlag);
+            out.writeUTF(traceMethod.className);
+            out.writeUTF(traceMethod.methodName);
+            out.writeUTF(Util.nullAsNil(traceMethod.desc));
+        }
+    }
+
+    private static String nilAsNull(String str) {
+        return Util.isNullOrNil(str) ? null : str;
+    }
+
+    /**
+     * what is collected from an input, a jar may be collected by several threads at once.
+     */
+    public static class Unit {
+        final String key;
+        final String hash;
+        final Map<String, String> classes = new HashMap<>();
+        final List<TraceMethod> methods = new ArrayList<>();
+        final List<TraceMethod> ignoreMethods = new ArrayList<>();
+
+        public Unit(String key, String hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+
+        synchronized void addClass(String className, String superName) {
+            classes.put(className, superName);
+        }
+
+        synchronized void addMethod(TraceMethod traceMethod) {
+            methods.add(traceMethod);
+        }
+
+        synchronized void addIgnoreMethod(TraceMethod traceMethod) {
+            ignoreMethods.add(traceMethod);
+        }
+    }
+}
@@ -5,6 +5,10 @@ public class MatrixTraceExtension {
     String baseMethodMapFile;
     String blackListFile;
     String customDexTransformName;
+    String startupProfileFile;
+    String startupProfileMethodMapFile;
+    boolean lockTraceEnable;
+    String lockBlackListFile;
 
     public String getBaseMethodMapFile() {
         return baseMethodMapFile;
@@ -18,6 +22,36 @@ public class MatrixTraceExtension {
         return customDexTransformName;
     }
 
+    /**
+     * the startup method-order profile pulled from the device, see TraceConfig.Builder#enableStartupProfile
+     */
+    public String getStartupProfileFile() {
+        return startupProfileFile;
+    }
+
+    /**
+     * the methodMapping.txt of the build collected the profile, the one of this build is taken if it's not set,
+     * which is right only if the method ids are kept by baseMethodMapFile.
+     */
+    public String getStartupProfileMethodMapFile() {
+        return startupProfileMethodMapFile;
+    }
+
+    /**
+     * insert the probes of AppMethodBeat around synchronized blocks and the calls to synchronized methods,
+     * see TraceConfig.Builder#enableLockContention
+     */
+    public boolean isLockTraceEnable() {
+        return lockTraceEnable;
+    }
+
+    /**
+     * the classes and packages without lock probes, in the format of blackListFile
+     */
+    public String getLockBlackListFile() {
+        return lockBlackListFile;
+    }
+
     public boolean isEnable() {
         return enable;
     }
@@ -24,7 +24,9 @@ import com.tencent.matrix.javalib.util.Util;
 import com.tencent.matrix.trace.Configuration;
 import com.tencent.matrix.trace.MethodCollector;
 import com.tencent.matrix.trace.MethodTracer;
+import com.tencent.matrix.trace.StartupProfileProcessor;
 import com.tencent.matrix.trace.TraceBuildConstants;
+import com.tencent.matrix.trace.TraceCache;
 import com.tencent.matrix.trace.extension.MatrixTraceExtension;
 import com.tencent.matrix.trace.item.TraceMethod;
 import com.tencent.matrix.trace.retrace.MappingCollector;
@@ -44,6 +46,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.lang.reflect.Field;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -64,7 +67,7 @@ public class MatrixTraceTransform extends Transform {
     private static final String TAG = "MatrixTraceTransform";
     private Configuration config;
     private Transform origTransform;
-    private ExecutorService executor = Executors.newFixedThreadPool(16);
+    private ExecutorService executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));//按 CPU 核数，jar 已拆分为多个任务
 
     public static void inject(Project project, MatrixTraceExtension extension, VariantScope variantScope) {
 
@@ -90,6 +93,11 @@ public class MatrixTraceTransform extends Transform {
                 .setIgnoreMethodMapFilePath(mappingOut + "/ignoreMethodMapping.txt") // 记录 没有被 插桩的方法
                 .setMappingPath(mappingOut)//mapping文件存储目录
                 .setTraceClassOut(traceClassOut)//插桩后的 class存储目录
+                .setStartupProfile(extension.getStartupProfileFile())//运行时采集的启动方法顺序
+                .setStartupProfileMethodMap(extension.getStartupProfileMethodMapFile())
+                .setLockTraceEnable(extension.isLockTraceEnable())//在 synchronized 代码块及方法处插入锁探针
+                .setLockBlackListFile(extension.getLockBlackListFile())
+                .setTraceCachePath(traceClassOut + File.separator + "traceCache.bin")//上次收集的方法及类继承关系，用于增量编译
                 .build();
 
         try {
@@ -173,14 +181,21 @@ public class MatrixTraceTransform extends Transform {
     }
 
     private void doTransform(TransformInvocation transformInvocation) throws ExecutionException, InterruptedException {
-        final boolean isIncremental = transformInvocation.isIncremental() && this.isIncremental(); //是否增量编译
+        final boolean isInvocationIncremental = transformInvocation.isIncremental() && this.isIncremental(); //是否增量编译
+        long start = System.currentTimeMillis();
+        final TraceCache traceCache = TraceCache.load(new File(config.traceCachePath), TraceCache.fingerprint(config));
+        // 缓存失效时，未改动的类的 methodId 无从得知，所有输入都需要重新收集、插桩
+        final boolean isIncremental = isInvocationIncremental && traceCache.isValid();
+        final boolean isMarkAllChanged = isInvocationIncremental && !isIncremental;
+        Log.i(TAG, "[doTransform] load trace cache cost:%sms, incremental:%s, invocation incremental:%s",
+                System.currentTimeMillis() - start, isIncremental, isInvocationIncremental);
 
         /**
          * step 1
          * 1.解析mapping 文件混淆后方法对应关系
          * 2.替换文件目录
          */
-        long start = System.currentTimeMillis();
+        start = System.currentTimeMillis();
 
         List<Future> futures = new LinkedList<>();
 
@@ -192,16 +207,17 @@ public class MatrixTraceTransform extends Transform {
 
         Map<File, File> dirInputOutMap = new ConcurrentHashMap<>();//存放原始源文件和输出源文件的对应关系
         Map<File, File> jarInputOutMap = new ConcurrentHashMap<>(); //存放原始jar文件和输出jar文件对应关系
+        Set<File> removedInputs = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>()); //增量编译时被删除的Class文件和jar
         Collection<TransformInput> inputs = transformInvocation.getInputs();
 
         for (TransformInput input : inputs) {
 
             for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
-                futures.add(executor.submit(new CollectDirectoryInputTask(dirInputOutMap, directoryInput, isIncremental)));
+                futures.add(executor.submit(new CollectDirectoryInputTask(dirInputOutMap, removedInputs, directoryInput, isIncremental, isMarkAllChanged)));
             }
 
             for (JarInput inputJar : input.getJarInputs()) {
-                futures.add(executor.submit(new CollectJarInputTask(inputJar, isIncremental, jarInputOutMap, dirInputOutMap)));
+                futures.add(executor.submit(new CollectJarInputTask(inputJar, isIncremental, isInvocationIncremental, jarInputOutMap, dirInputOutMap, removedInputs)));
             }
         }
 
@@ -209,8 +225,12 @@ public class MatrixTraceTransform extends Transform {
             future.get();
         }
         futures.clear();
+        for (File removedInput : removedInputs) {
+            traceCache.removeUnit(removedInput.getAbsolutePath());
+        }
 
-        Log.i(TAG, "[doTransform] Step(1)[Parse]... cost:%sms", System.currentTimeMillis() - start);
+        Log.i(TAG, "[doTransform] Step(1)[Parse]... cost:%sms, changed dirs and files:%s, changed jars:%s, removed:%s",
+                System.currentTimeMillis() - start, dirInputOutMap.size(), jarInputOutMap.size(), removedInputs.size());
 
 
         /**
@@ -219,18 +239,30 @@ public class MatrixTraceTransform extends Transform {
          * 2. 收集类之间的继承关系
          */
         start = System.currentTimeMillis();
-        MethodCollector methodCollector = new MethodCollector(executor, mappingCollector, methodId, config, collectedMethodMap);//收集需要插桩的方法信息，每个插桩信息封装成TraceMethod对象
-        methodCollector.collect(dirInputOutMap.keySet(), jarInputOutMap.keySet());
+        MethodCollector methodCollector = new MethodCollector(executor, mappingCollector, methodId, config, collectedMethodMap, traceCache);//收集需要插桩的方法信息，每个插桩信息封装成TraceMethod对象
+        methodCollector.collect(dirInputOutMap.keySet(), jarInputOutMap.keySet(), isIncremental);
         Log.i(TAG, "[doTransform] Step(2)[Collection]... cost:%sms", System.currentTimeMillis() - start);
 
         /**
          * step 3  插桩字节码
          */
         start = System.currentTimeMillis();
-        MethodTracer methodTracer = new MethodTracer(executor, mappingCollector, config, methodCollector.getCollectedMethodMap(), methodCollector.getCollectedClassExtendMap());//执行插桩逻辑，在需要插桩方法的入口、出口添加MethodBeat的i/o逻辑
+        MethodTracer methodTracer = new MethodTracer(executor, mappingCollector, config, methodCollector.getCollectedMethodMap(),
+                methodCollector.getCollectedClassExtendMap(), methodCollector.getCollectedClassBytes());//执行插桩逻辑，在需要插桩方法的入口、出口添加MethodBeat的i/o逻辑，字节码取自 step 2 的缓存
         methodTracer.trace(dirInputOutMap, jarInputOutMap);
         Log.i(TAG, "[doTransform] Step(3)[Trace]... cost:%sms", System.currentTimeMillis() - start);
 
+        /**
+         * step 4  由启动方法顺序生成 startupClasses.txt 和 baseline-prof.txt
+         */
+        if (!Util.isNullOrNil(config.startupProfilePath)) {
+            start = System.currentTimeMillis();
+            File methodMapFile = new File(Util.isNullOrNil(config.startupProfileMethodMapPath)
+                    ? config.methodMapFilePath : config.startupProfileMethodMapPath);
+            new StartupProfileProcessor(new File(config.startupProfilePath), methodMapFile).process(new File(config.mappingDir));
+            Log.i(TAG, "[doTransform] Step(4)[StartupProfile]... cost:%sms", System.currentTimeMillis() - start);
+        }
+
     }
 
 
@@ -257,12 +289,13 @@ public class MatrixTraceTransform extends Transform {
                     mappingReader.read(mappingCollector);
                 }
                 int size = config.parseBlackFile(mappingCollector);
+                int lockSize = config.parseLockBlackFile(mappingCollector);
 
                 File baseMethodMapFile = new File(config.baseMethodMapPath);
                 getMethodFromBaseMethod(baseMethodMapFile, collectedMethodMap);
                 retraceMethodMap(mappingCollector, collectedMethodMap);
 
-                Log.i(TAG, "[ParseMappingTask#run] cost:%sms, black size:%s, collect %s method from %s", System.currentTimeMillis() - start, size, collectedMethodMap.size(), config.baseMethodMapPath);
+                Log.i(TAG, "[ParseMappingTask#run] cost:%sms, black size:%s, lock black size:%s, collect %s method from %s", System.currentTimeMillis() - start, size, lockSize, collectedMethodMap.size(), config.baseMethodMapPath);
 
             } catch (IOException e) {
                 e.printStackTrace();
@@ -331,14 +364,23 @@ public class MatrixTraceTransform extends Transform {
     private class CollectDirectoryInputTask implements Runnable {
 
         Map<File, File> dirInputOutMap;
+        Set<File> removedInputs;
         DirectoryInput directoryInput;
         boolean isIncremental;
+        boolean isMarkAllChanged;
         String traceClassOut;
 
-        CollectDirectoryInputTask(Map<File, File> dirInputOutMap, DirectoryInput directoryInput, boolean isIncremental) {
+        /**
+         * @param isMarkAllChanged the invocation is incremental but everything is transformed again, the
+         *                         transform hooked has to see all of the outputs as changed
+         */
+        CollectDirectoryInputTask(Map<File, File> dirInputOutMap, Set<File> removedInputs, DirectoryInput directoryInput,
+                                  boolean isIncremental, boolean isMarkAllChanged) {
             this.dirInputOutMap = dirInputOutMap;
+            this.removedInputs = removedInputs;
             this.directoryInput = directoryInput;
             this.isIncremental = isIncremental;
+            this.isMarkAllChanged = isMarkAllChanged;
             this.traceClassOut = config.traceClassOut;
         }
 
@@ -385,6 +427,7 @@ public class MatrixTraceTransform extends Transform {
                         dirInputOutMap.put(changedFileInput, changedFileOutput);//新增、修改的Class文件，此次需要扫描
                     } else if (status == Status.REMOVED) {
                         changedFileOutput.delete();//删除的Class文件，将文件直接删除
+                        removedInputs.add(changedFileInput);
                     }
                     outChangedFiles.put(changedFileOutput, status);
                 }
@@ -392,6 +435,22 @@ public class MatrixTraceTransform extends Transform {
 
             } else {
                 dirInputOutMap.put(dirInput, dirOutput);//全量编译模式下，所有的Class文件都需要扫描
+                if (isMarkAllChanged) {
+                    final Map<File, Status> outChangedFiles = new HashMap<>();
+                    for (Map.Entry<File, Status> entry : directoryInput.getChangedFiles().entrySet()) {
+                        if (entry.getValue() == Status.REMOVED) {
+                            File removedOutput = new File(entry.getKey().getAbsolutePath().replace(inputFullPath, outputFullPath));
+                            removedOutput.delete();
+                            outChangedFiles.put(removedOutput, Status.REMOVED);
+                        }
+                    }
+                    List<File> files = new LinkedList<>();
+                    listFiles(files, dirInput);
+                    for (File file : files) {
+                        outChangedFiles.put(new File(file.getAbsolutePath().replace(inputFullPath, outputFullPath)), Status.CHANGED);
+                    }
+                    replaceChangedFile(directoryInput, outChangedFiles);
+                }
             }
             replaceFile(directoryInput, dirOutput);//反射input，将dirOutput设置为其输出目录
         }
@@ -400,14 +459,19 @@ public class MatrixTraceTransform extends Transform {
     private class CollectJarInputTask implements Runnable {
         JarInput inputJar;
         boolean isIncremental;
+        boolean isInvocationIncremental;
         Map<File, File> jarInputOutMap;
         Map<File, File> dirInputOutMap;
+        Set<File> removedInputs;
 
-        CollectJarInputTask(JarInput inputJar, boolean isIncremental, Map<File, File> jarInputOutMap, Map<File, File> dirInputOutMap) {
+        CollectJarInputTask(JarInput inputJar, boolean isIncremental, boolean isInvocationIncremental, Map<File, File> jarInputOutMap,
+                            Map<File, File> dirInputOutMap, Set<File> removedInputs) {
             this.inputJar = inputJar;
             this.isIncremental = isIncremental;
+            this.isInvocationIncremental = isInvocationIncremental;
             this.jarInputOutMap = jarInputOutMap;
             this.dirInputOutMap = dirInputOutMap;
+            this.removedInputs = removedInputs;
         }
 
         @Override
@@ -425,23 +489,23 @@ public class MatrixTraceTransform extends Transform {
 
             final File jarInput = inputJar.getFile();
             final File jarOutput = new File(traceClassOut, getUniqueJarName(jarInput));//创建唯一的 文件
-            if (jarOutput.exists()) {
-                jarOutput.delete();
-            }
             if (!jarOutput.getParentFile().exists()) {
                 jarOutput.getParentFile().mkdirs();
             }
 
             if (IOUtil.isRealZipOrJar(jarInput)) {
-                if (isIncremental) {//是增量
-                    if (inputJar.getStatus() == Status.ADDED || inputJar.getStatus() == Status.CHANGED) {
-                        jarInputOutMap.put(jarInput, jarOutput);//存放到 jarInputOutMap 中
-                    } else if (inputJar.getStatus() == Status.REMOVED) {
-                        jarOutput.delete();
-                    }
-
+                Status status = inputJar.getStatus();
+                if (isIncremental && status == Status.NOTCHANGED && jarOutput.exists()) {
+                    // 未改动的 jar 保留上次的输出
+                } else if (status == Status.REMOVED) {
+                    jarOutput.delete();
+                    removedInputs.add(jarInput);
                 } else {
+                    jarOutput.delete();
                     jarInputOutMap.put(jarInput, jarOutput);//存放到 jarInputOutMap 中
+                    if (isInvocationIncremental && status == Status.NOTCHANGED) {//重新插桩的 jar 需要被后续的 transform 视为改动
+                        replaceStatus(inputJar, Status.CHANGED);
+                    }
                 }
 
             } else {// 专门用于 处理 WeChat AutoDex.jar 文件 可以略过，意义不大
@@ -510,6 +574,25 @@ public class MatrixTraceTransform extends Transform {
         fileField.set(input, newFile);
     }
 
+    private void replaceStatus(JarInput jarInput, Status status) throws NoSuchFieldException, ClassNotFoundException, IllegalAccessException {
+        final Field statusField = ReflectUtil.getDeclaredFieldRecursive(jarInput.getClass(), "status");
+        statusField.set(jarInput, status);
+    }
+
+    private void listFiles(List<File> files, File folder) {
+        File[] children = folder.listFiles();
+        if (null == children) {
+            return;
+        }
+        for (File file : children) {
+            if (file.isDirectory()) {
+                listFiles(files, file);
+            } else {
+                files.add(file);
+            }
+        }
+    }
+
     private void replaceChangedFile(DirectoryInput dirInput, Map<File, Status> changedFiles) throws NoSuchFieldException, ClassNotFoundException, IllegalAccessException {
         final Field changedFilesField = ReflectUtil.getDeclaredFieldRecursive(dirInput.getClass(), "changedFiles");
         changedFilesField.set(dirInput, changedFiles);
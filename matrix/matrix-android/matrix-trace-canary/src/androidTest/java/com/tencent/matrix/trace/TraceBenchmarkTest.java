@@ -0,0 +1,298 @@
+package com.tencent.matrix.trace;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.tencent.matrix.trace.config.TraceConfig;
+import com.tencent.matrix.trace.core.AppMethodBeat;
+import com.tencent.matrix.trace.core.LooperMonitor;
+import com.tencent.matrix.trace.items.MethodItem;
+import com.tencent.matrix.trace.tracer.AnrTracer;
+import com.tencent.matrix.trace.tracer.DispatchHistogramTracer;
+import com.tencent.matrix.trace.tracer.EvilMethodTracer;
+import com.tencent.matrix.trace.tracer.Tracer;
+import com.tencent.matrix.trace.util.TraceDataUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Micro benchmarks of the hot paths, they run on device since the code under test depends on the android
+ * runtime. Results are printed to logcat with tag Matrix.TraceBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TraceBenchmarkTest {
+
+    private static final String TAG = "Matrix.TraceBenchmark";
+    private static final int WARM_UP = 100 * 1000;
+    private static final int ITERATIONS = 1000 * 1000;
+    private static final int MESSAGE_COUNT = 100 * 1000;
+
+    /**
+     * i()/o() with the time refreshed by matrix_time_update_thread vs the precise clock read in place.
+     * The clock mode is restored afterwards, the other tests and the tracers expect the one they started with.
+     */
+    @Test
+    public void benchmarkClockMode() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                boolean isPreciseClock = AppMethodBeat.isPreciseClock();
+                int sampling = AppMethodBeat.getClockSampling();
+                try {
+                    AppMethodBeat.getInstance().useMillisClock();
+                    Log.i(TAG, "[clock] millis: " + measureMethodBeat() + "ns/op");
+                    AppMethodBeat.getInstance().usePreciseClock(1);
+                    Log.i(TAG, "[clock] precise: " + measureMethodBeat() + "ns/op");
+                    AppMethodBeat.getInstance().usePreciseClock(8);
+                    Log.i(TAG, "[clock] precise sampling 8: " + measureMethodBeat() + "ns/op");
+                } finally {
+                    if (isPreciseClock) {
+                        AppMethodBeat.getInstance().usePreciseClock(sampling);
+                    } else {
+                        AppMethodBeat.getInstance().useMillisClock();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * structuredDataToStack on synthetic dispatches of 10K, 100K and 1M records.
+     */
+    @Test
+    public void benchmarkStructuredDataToStack() {
+        for (int size : new int[]{10 * 1000, 100 * 1000, 1000 * 1000}) {
+            long[] buffer = mockDispatch(size);
+            for (int i = 0; i < 3; i++) {
+                TraceDataUtils.structuredDataToStack(buffer, new LinkedList<MethodItem>(), true, 0);
+            }
+            int gcCount = getGcCount();
+            long begin = System.nanoTime();
+            LinkedList<MethodItem> stack = new LinkedList<>();
+            TraceDataUtils.structuredDataToStack(buffer, stack, true, 0);
+            long cost = System.nanoTime() - begin;
+            Log.i(TAG, "[structuredDataToStack] records:" + size + " items:" + stack.size()
+                    + " cost:" + cost / 1000 + "us gc:" + (getGcCount() - gcCount));
+        }
+    }
+
+    /**
+     * LooperMonitor with Printer vs Looper.Observer, under a flood of empty messages to a HandlerThread.
+     * The overhead per message is the cost over the one without monitor.
+     */
+    @Test
+    public void benchmarkLooperMonitor() throws InterruptedException {
+        HandlerThread thread = new HandlerThread("matrix_benchmark_looper");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        try {
+            floodMessages(handler);
+            long baseline = floodMessages(handler);
+            Log.i(TAG, "[looper] no monitor: " + baseline / MESSAGE_COUNT + "ns/msg");
+            for (boolean isLooperObserver : new boolean[]{false, true}) {
+                LooperMonitor monitor = new LooperMonitor(thread.getLooper());
+                if (isLooperObserver && !monitor.setLooperObserverEnable(true)) {
+                    Log.i(TAG, "[looper] Looper.Observer isn't supported on api " + Build.VERSION.SDK_INT);
+                    monitor.onRelease();
+                    break;
+                }
+                final int[] count = new int[1];
+                monitor.addListener(new LooperMonitor.LooperDispatchListener() {
+                    @Override
+                    public boolean isValid() {
+                        return true;
+                    }
+
+                    @Override
+                    public void dispatchStart() {
+                        count[0]++;
+                    }
+                });
+                floodMessages(handler);
+                int gcCount = getGcCount();
+                long cost = floodMessages(handler);
+                Log.i(TAG, "[looper] " + (isLooperObserver ? "observer: " : "printer: ")
+                        + (cost - baseline) / MESSAGE_COUNT + "ns/msg overhead, dispatched:" + count[0]
+                        + " gc:" + (getGcCount() - gcCount));
+                monitor.onRelease();
+            }
+        } finally {
+            thread.quit();
+        }
+    }
+
+    /**
+     * Looper.Observer is process-wide, so every message of the other loopers goes through the proxy too before
+     * it's filtered out. The overhead per message of a looper not monitored, while another one is observed.
+     */
+    @Test
+    public void benchmarkLooperObserverOnOtherLooper() throws InterruptedException {
+        HandlerThread monitored = new HandlerThread("matrix_benchmark_monitored");
+        HandlerThread other = new HandlerThread("matrix_benchmark_other");
+        monitored.start();
+        other.start();
+        Handler handler = new Handler(other.getLooper());
+        LooperMonitor monitor = new LooperMonitor(monitored.getLooper());
+        try {
+            floodMessages(handler);
+            long baseline = floodMessages(handler);
+            if (!monitor.setLooperObserverEnable(true)) {
+                Log.i(TAG, "[looper] Looper.Observer isn't supported on api " + Build.VERSION.SDK_INT);
+                return;
+            }
+            floodMessages(handler);
+            int gcCount = getGcCount();
+            long cost = floodMessages(handler);
+            Log.i(TAG, "[looper] observer on other looper: " + (cost - baseline) / MESSAGE_COUNT
+                    + "ns/msg overhead, gc:" + (getGcCount() - gcCount));
+        } finally {
+            monitor.onRelease();
+            monitored.quit();
+            other.quit();
+        }
+    }
+
+    /**
+     * dispatchBegin + dispatchEnd of the tracers observing every message, with ANR, ANR snapshot, evil method
+     * and dispatch histogram enabled. The dispatches are short, so it's the cost every message pays, and
+     * there should be no gc once warmed up.
+     */
+    @Test
+    public void benchmarkDispatchTracers() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                TraceConfig config = new TraceConfig.Builder()
+                        .enableAnrTrace(true)
+                        .enableAnrSnapshot(true)
+                        .enableEvilMethodTrace(true)
+                        .enableDispatchHistogram(true)
+                        .build();
+                Tracer[] tracers = new Tracer[]{new AnrTracer(config), new EvilMethodTracer(config), new DispatchHistogramTracer(config)};
+                for (Tracer tracer : tracers) {
+                    tracer.onStartTrace();
+                }
+                try {
+                    measureDispatch(tracers, WARM_UP);
+                    int gcCount = getGcCount();
+                    long cost = measureDispatch(tracers, ITERATIONS);
+                    Log.i(TAG, "[dispatch] tracers:" + tracers.length + " " + cost / ITERATIONS + "ns/msg gc:" + (getGcCount() - gcCount));
+                } finally {
+                    for (Tracer tracer : tracers) {
+                        tracer.onCloseTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    private static long measureDispatch(Tracer[] tracers, int count) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long beginNs = System.nanoTime();
+            for (Tracer tracer : tracers) {
+                tracer.dispatchBegin(beginNs, 0, beginNs);
+            }
+            AppMethodBeat.i(1);
+            AppMethodBeat.o(1);
+            long endNs = System.nanoTime();
+            for (Tracer tracer : tracers) {
+                tracer.dispatchEnd(beginNs, 0, endNs, 0, beginNs, false);
+            }
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * @return ns to dispatch {@link #MESSAGE_COUNT} messages, they are queued before the looper goes on
+     */
+    private static long floodMessages(Handler handler) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        Runnable empty = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            handler.post(empty);
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                end.countDown();
+            }
+        });
+        long begin = System.nanoTime();
+        start.countDown();
+        end.await();
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * a dispatch of random calls no deeper than 32, each record takes 0 or 1ms.
+     */
+    private static long[] mockDispatch(int size) {
+        Random random = new Random(size);
+        long[] buffer = new long[size];
+        int[] stack = new int[32];
+        int depth = 0;
+        long time = 0;
+        buffer[0] = merge(true, AppMethodBeat.METHOD_ID_DISPATCH, time);
+        stack[depth++] = AppMethodBeat.METHOD_ID_DISPATCH;
+        for (int i = 1; i < size; i++) {
+            time += random.nextInt(2);
+            if (depth < 2 || (depth < stack.length && random.nextBoolean())) {
+                int methodId = random.nextInt(5000);
+                stack[depth++] = methodId;
+                buffer[i] = merge(true, methodId, time);
+            } else {
+                buffer[i] = merge(false, stack[--depth], time);
+            }
+        }
+        return buffer;
+    }
+
+    private static long merge(boolean isIn, int methodId, long time) {
+        return (isIn ? 1L << 63 : 0) | ((long) methodId << 43) | (time & 0x7FFFFFFFFFFL);
+    }
+
+    private static int getGcCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 0;
+        }
+        return Integer.parseInt(Debug.getRuntimeStat("art.gc.gc-count"));
+    }
+
+    private static long measureMethodBeat() {
+        for (int i = 0; i < WARM_UP; i++) {
+            AppMethodBeat.i(1);
+            AppMethodBeat.o(1);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            AppMethodBeat.i(1);
+            AppMethodBeat.o(1);
+        }
+        return (System.nanoTime() - begin) / (ITERATIONS * 2L);
+    }
+}
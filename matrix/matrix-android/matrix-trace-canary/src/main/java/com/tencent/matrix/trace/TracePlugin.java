@@ -24,14 +24,24 @@ import com.tencent.matrix.plugin.Plugin;
 import com.tencent.matrix.plugin.PluginListener;
 import com.tencent.matrix.trace.config.SharePluginInfo;
 import com.tencent.matrix.trace.config.TraceConfig;
+import com.tencent.matrix.trace.constants.Constants;
 import com.tencent.matrix.trace.core.AppMethodBeat;
+import com.tencent.matrix.trace.core.LooperMonitor;
 import com.tencent.matrix.trace.core.UIThreadMonitor;
 import com.tencent.matrix.trace.tracer.AnrTracer;
+import com.tencent.matrix.trace.tracer.DispatchHistogramTracer;
 import com.tencent.matrix.trace.tracer.EvilMethodTracer;
 import com.tencent.matrix.trace.tracer.FrameTracer;
+import com.tencent.matrix.trace.tracer.LockContentionTracer;
+import com.tencent.matrix.trace.tracer.RecoveryTracer;
+import com.tencent.matrix.trace.tracer.SamplingTracer;
 import com.tencent.matrix.trace.tracer.StartupTracer;
+import com.tencent.matrix.trace.tracer.ThreadStateTracer;
 import com.tencent.matrix.util.MatrixHandlerThread;
 import com.tencent.matrix.util.MatrixLog;
+import com.tencent.matrix.util.MatrixUtil;
+
+import java.io.File;
 
 /**
  * Created by caichongyang on 2017/5/20.
@@ -44,6 +54,12 @@ public class TracePlugin extends Plugin {
     private StartupTracer startupTracer;
     private FrameTracer frameTracer;
     private AnrTracer anrTracer;
+    private RecoveryTracer recoveryTracer;
+    private SamplingTracer samplingTracer;
+    private DispatchHistogramTracer dispatchHistogramTracer;
+    private ThreadStateTracer threadStateTracer;
+    private LockContentionTracer lockContentionTracer;
+    private File traceBufferFile;
 
     public TracePlugin(TraceConfig config) {
         this.traceConfig = config;
@@ -65,7 +81,23 @@ public class TracePlugin extends Plugin {
 
         evilMethodTracer = new EvilMethodTracer(traceConfig);
 
-        startupTracer = new StartupTracer(traceConfig);
+        String processName = MatrixUtil.getProcessName(app).replace(':', '_');
+
+        startupTracer = new StartupTracer(traceConfig, new File(app.getFilesDir(), Constants.MAPPED_TRACE_BUFFER_DIR
+                + File.separator + processName + Constants.STARTUP_PROFILE_SUFFIX));
+
+        traceBufferFile = new File(app.getFilesDir(), Constants.MAPPED_TRACE_BUFFER_DIR + File.separator
+                + processName + ".buffer");
+
+        recoveryTracer = new RecoveryTracer(traceConfig, traceBufferFile);
+
+        samplingTracer = new SamplingTracer(traceConfig);
+
+        dispatchHistogramTracer = new DispatchHistogramTracer(traceConfig);
+
+        threadStateTracer = new ThreadStateTracer(traceConfig);
+
+        lockContentionTracer = new LockContentionTracer(traceConfig);
     }
 
     @Override
@@ -80,6 +112,10 @@ public class TracePlugin extends Plugin {
             @Override
             public void run() {
 
+                if (traceConfig.isLooperObserverEnable()) {
+                    LooperMonitor.useLooperObserver(true);
+                }
+
                 if (!UIThreadMonitor.getMonitor().isInit()) {
                     try {
                         UIThreadMonitor.getMonitor().init(traceConfig);//初始化 UIThreadMonitor
@@ -89,6 +125,22 @@ public class TracePlugin extends Plugin {
                     }
                 }
 
+                if (traceConfig.isMultiThreadTraceEnable()) {
+                    AppMethodBeat.getInstance().setMultiThreadTraceEnable(true,
+                            traceConfig.getThreadTraceBufferSize(), traceConfig.getThreadTraceBufferBudget());
+                }
+
+                if (traceConfig.isPreciseClockEnable()) {
+                    AppMethodBeat.getInstance().usePreciseClock(traceConfig.getPreciseClockSampling());
+                }
+
+                if (traceConfig.isMappedTraceBufferEnable()) {
+                    // the file is mapped on matrix handler thread, the buffer is switched once it is ready
+                    AppMethodBeat.getInstance().useMappedTraceBuffer(traceBufferFile, traceConfig.getTraceBufferSize());
+                } else if (traceConfig.isCompactTraceBufferEnable()) {
+                    AppMethodBeat.getInstance().useCompactTraceBuffer(traceConfig.getTraceBufferSize());
+                }
+
                 AppMethodBeat.getInstance().onStart(); //启动 AppMethodBeat
 
                 UIThreadMonitor.getMonitor().onStart();//启动 UIThreadMonitor
@@ -100,6 +152,16 @@ public class TracePlugin extends Plugin {
                 evilMethodTracer.onStartTrace();
 
                 startupTracer.onStartTrace();
+
+                recoveryTracer.onStartTrace();
+
+                samplingTracer.onStartTrace();
+
+                dispatchHistogramTracer.onStartTrace();
+
+                threadStateTracer.onStartTrace();
+
+                lockContentionTracer.onStartTrace();
             }
         };
 
@@ -136,6 +198,16 @@ public class TracePlugin extends Plugin {
 
                 startupTracer.onCloseTrace();
 
+                recoveryTracer.onCloseTrace();
+
+                samplingTracer.onCloseTrace();
+
+                dispatchHistogramTracer.onCloseTrace();
+
+                threadStateTracer.onCloseTrace();
+
+                lockContentionTracer.onCloseTrace();
+
             }
         };
 
@@ -171,6 +243,22 @@ public class TracePlugin extends Plugin {
             startupTracer.onForeground(isForeground);
         }
 
+        if (samplingTracer != null) {
+            samplingTracer.onForeground(isForeground);
+        }
+
+        if (dispatchHistogramTracer != null) {
+            dispatchHistogramTracer.onForeground(isForeground);
+        }
+
+        if (threadStateTracer != null) {
+            threadStateTracer.onForeground(isForeground);
+        }
+
+        if (lockContentionTracer != null) {
+            lockContentionTracer.onForeground(isForeground);
+        }
+
     }
 
     @Override
@@ -203,6 +291,22 @@ public class TracePlugin extends Plugin {
         return startupTracer;
     }
 
+    public SamplingTracer getSamplingTracer() {
+        return samplingTracer;
+    }
+
+    public DispatchHistogramTracer getDispatchHistogramTracer() {
+        return dispatchHistogramTracer;
+    }
+
+    public ThreadStateTracer getThreadStateTracer() {
+        return threadStateTracer;
+    }
+
+    public LockContentionTracer getLockContentionTracer() {
+        return lockContentionTracer;
+    }
+
     public UIThreadMonitor getUIThreadMonitor() {
         if (UIThreadMonitor.getMonitor().isInit()) {
             return UIThreadMonitor.getMonitor();
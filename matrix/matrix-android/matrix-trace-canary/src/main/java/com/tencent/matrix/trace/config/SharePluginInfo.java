@@ -26,15 +26,29 @@ public class SharePluginInfo {
     public static final String TAG_PLUGIN_FPS = TAG_PLUGIN + "_FPS";
     public static final String TAG_PLUGIN_EVIL_METHOD = TAG_PLUGIN + "_EvilMethod";
     public static final String TAG_PLUGIN_STARTUP = TAG_PLUGIN + "_StartUp";
+    public static final String TAG_PLUGIN_DISPATCH = TAG_PLUGIN + "_Dispatch";
+    public static final String TAG_PLUGIN_FRAME_HISTOGRAM = TAG_PLUGIN + "_FrameHistogram";
+    public static final String TAG_PLUGIN_THREAD_STATE = TAG_PLUGIN + "_ThreadState";
+    public static final String TAG_PLUGIN_LOCK_CONTENTION = TAG_PLUGIN + "_LockContention";
 
 //    public static final String ISSUE_DEVICE = "machine";
     public static final String ISSUE_SCENE = "scene";
     public static final String ISSUE_DROP_LEVEL = "dropLevel";
     public static final String ISSUE_DROP_SUM = "dropSum";
     public static final String ISSUE_FPS = "fps";
+    public static final String ISSUE_REFRESH_RATES = "refreshRates";
+    public static final String ISSUE_FRAMES = "frames";
     public static final String ISSUE_SUM_TASK_FRAME = "dropTaskFrameSum";
     public static final String ISSUE_TRACE_STACK = "stack";
     public static final String ISSUE_THREAD_STACK = "threadStack";
+    public static final String ISSUE_THREAD_TRACES = "threadTraces";
+    public static final String ISSUE_THREAD_ID = "threadId";
+    public static final String ISSUE_THREAD_NAME = "threadName";
+    public static final String ISSUE_TIMELINE = "timeline";
+    public static final String ISSUE_TIMELINE_BEGIN = "begin";
+    public static final String ISSUE_TIMELINE_END = "end";
+    public static final String ISSUE_TIMELINE_STATE = "state";
+    public static final String ISSUE_TIMELINE_STACK = "stack";
     public static final String ISSUE_PROCESS_PRIORITY = "processPriority";
     public static final String ISSUE_PROCESS_NICE = "processNice";
     public static final String ISSUE_PROCESS_FOREGROUND = "isProcessForeground";
@@ -48,8 +62,57 @@ public class SharePluginInfo {
     public static final String ISSUE_STACK_TYPE = "detail";
     public static final String ISSUE_IS_WARM_START_UP = "is_warm_start_up";
     public static final String ISSUE_SUB_TYPE = "subType";
+    public static final String ISSUE_LAST_PROCESS_PID = "lastProcessPid";
+    public static final String ISSUE_LAST_PROCESS_START_TIME = "lastProcessStartTime";
+    public static final String ISSUE_SAMPLE_COUNT = "sampleCount";
+    public static final String ISSUE_SAMPLE_INTERVAL = "sampleInterval";
+    public static final String ISSUE_DISPATCH_DURATION = "duration";
+    public static final String ISSUE_DISPATCH_SCENES = "scenes";
+    public static final String ISSUE_DISPATCH_TARGETS = "targets";
+    public static final String ISSUE_DISPATCH_KEY = "key";
+    public static final String ISSUE_DISPATCH_COUNT = "count";
+    public static final String ISSUE_DISPATCH_WALL = "wall";
+    public static final String ISSUE_DISPATCH_CPU = "cpu";
+    public static final String ISSUE_DISPATCH_P50 = "p50";
+    public static final String ISSUE_DISPATCH_P90 = "p90";
+    public static final String ISSUE_DISPATCH_P99 = "p99";
+    public static final String ISSUE_DISPATCH_MAX = "max";
+    public static final String ISSUE_DISPATCH_MEAN = "mean";
+    public static final String ISSUE_DISPATCH_BUCKETS = "buckets";
+
+    public static final String ISSUE_FRAME_DURATION = "duration";
+    public static final String ISSUE_FRAME_SCENES = "scenes";
+    public static final String ISSUE_FRAME_TIME = "frameTime";
+    public static final String ISSUE_FRAME_JANKY_RATIO = "jankyRatio";
+
+    public static final String ISSUE_THREAD_STATE_CPU = "cpu";
+    public static final String ISSUE_THREAD_STATE_PREEMPTED = "preempted";
+    public static final String ISSUE_THREAD_STATE_BLOCKED = "blocked";
+    public static final String ISSUE_THREAD_STATE_WALL_TIME = "wallTime";
+    public static final String ISSUE_THREAD_STATE_CPU_TIME = "cpuTime";
+    public static final String ISSUE_THREAD_STATE_RUNNABLE_TIME = "runnableTime";
+    public static final String ISSUE_THREAD_STATE_BLOCKED_TIME = "blockedTime";
+    public static final String ISSUE_THREAD_STATE_RUNNING = "running";
+    public static final String ISSUE_THREAD_STATE_SLEEPING = "sleeping";
+    public static final String ISSUE_THREAD_STATE_DISK_SLEEP = "diskSleep";
+
+    public static final String ISSUE_LOCK_SITES = "locks";
+    public static final String ISSUE_LOCK_SITE = "site";
+    public static final String ISSUE_LOCK_WAIT_COUNT = "waitCount";
+    public static final String ISSUE_LOCK_WAIT_TIME = "waitTime";
+    public static final String ISSUE_LOCK_MAX_WAIT_TIME = "maxWaitTime";
+    public static final String ISSUE_LOCK_HOLD_COUNT = "holdCount";
+    public static final String ISSUE_LOCK_HOLD_TIME = "holdTime";
+    public static final String ISSUE_LOCK_MAX_HOLD_TIME = "maxHoldTime";
+    public static final String ISSUE_LOCK_DROPPED = "dropped";
+
     public static final String STAGE_APPLICATION_CREATE = "application_create";
     public static final String STAGE_APPLICATION_CREATE_SCENE = "application_create_scene";
     public static final String STAGE_FIRST_ACTIVITY_CREATE = "first_activity_create";
     public static final String STAGE_STARTUP_DURATION = "startup_duration";
+    public static final String STAGE_PHASES = "phases";
+    public static final String STAGE_PHASE_NAME = "name";
+    public static final String STAGE_PHASE_BEGIN = "begin";
+    public static final String STAGE_PHASE_COST = "cost";
+    public static final String STAGE_PHASE_METHODS = "methods";
 }
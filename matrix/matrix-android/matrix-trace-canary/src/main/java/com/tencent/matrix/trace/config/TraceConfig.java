@@ -39,6 +39,21 @@ public class TraceConfig implements IDefaultConfig {
     public boolean defaultMethodTraceEnable;
     public boolean defaultStartupEnable;
     public boolean defaultAnrEnable;
+    public boolean defaultMultiThreadTraceEnable;
+    public boolean defaultCompactTraceBufferEnable;
+    public boolean defaultMappedTraceBufferEnable;
+    public boolean defaultPreciseClockEnable;
+    public boolean defaultSamplingTraceEnable;
+    public boolean defaultStreamingStackEnable;
+    public boolean defaultLooperObserverEnable;
+    public boolean defaultDispatchHistogramEnable;
+    public boolean defaultFrameHistogramEnable;
+    public boolean defaultAnrSnapshotEnable;
+    public boolean defaultStartupPhaseEnable;
+    public boolean defaultStartupProfileEnable;
+    public boolean defaultThreadStateEnable;
+    public boolean defaultLockContentionEnable;
+    public boolean defaultLockContentionAllThreads;
     public boolean isDebug;
     public boolean isDevEnv;
     public String splashActivities;
@@ -60,6 +75,21 @@ public class TraceConfig implements IDefaultConfig {
         ss.append("* defaultMethodTraceEnable:\t").append(defaultMethodTraceEnable).append("\n");
         ss.append("* defaultStartupEnable:\t").append(defaultStartupEnable).append("\n");
         ss.append("* defaultAnrEnable:\t").append(defaultAnrEnable).append("\n");
+        ss.append("* defaultMultiThreadTraceEnable:\t").append(defaultMultiThreadTraceEnable).append("\n");
+        ss.append("* defaultCompactTraceBufferEnable:\t").append(defaultCompactTraceBufferEnable).append("\n");
+        ss.append("* defaultMappedTraceBufferEnable:\t").append(defaultMappedTraceBufferEnable).append("\n");
+        ss.append("* defaultPreciseClockEnable:\t").append(defaultPreciseClockEnable).append("\n");
+        ss.append("* defaultSamplingTraceEnable:\t").append(defaultSamplingTraceEnable).append("\n");
+        ss.append("* defaultStreamingStackEnable:\t").append(defaultStreamingStackEnable).append("\n");
+        ss.append("* defaultLooperObserverEnable:\t").append(defaultLooperObserverEnable).append("\n");
+        ss.append("* defaultDispatchHistogramEnable:\t").append(defaultDispatchHistogramEnable).append("\n");
+        ss.append("* defaultFrameHistogramEnable:\t").append(defaultFrameHistogramEnable).append("\n");
+        ss.append("* defaultAnrSnapshotEnable:\t").append(defaultAnrSnapshotEnable).append("\n");
+        ss.append("* defaultStartupPhaseEnable:\t").append(defaultStartupPhaseEnable).append("\n");
+        ss.append("* defaultStartupProfileEnable:\t").append(defaultStartupProfileEnable).append("\n");
+        ss.append("* defaultThreadStateEnable:\t").append(defaultThreadStateEnable).append("\n");
+        ss.append("* defaultLockContentionEnable:\t").append(defaultLockContentionEnable).append("\n");
+        ss.append("* defaultLockContentionAllThreads:\t").append(defaultLockContentionAllThreads).append("\n");
         ss.append("* splashActivities:\t").append(splashActivities).append("\n");
         return ss.toString();
     }
@@ -98,6 +128,66 @@ public class TraceConfig implements IDefaultConfig {
         return defaultAnrEnable;
     }
 
+    public boolean isMultiThreadTraceEnable() {
+        return defaultMultiThreadTraceEnable;
+    }
+
+    public boolean isCompactTraceBufferEnable() {
+        return defaultCompactTraceBufferEnable;
+    }
+
+    public boolean isMappedTraceBufferEnable() {
+        return defaultMappedTraceBufferEnable;
+    }
+
+    public boolean isPreciseClockEnable() {
+        return defaultPreciseClockEnable;
+    }
+
+    public boolean isSamplingTraceEnable() {
+        return defaultSamplingTraceEnable;
+    }
+
+    public boolean isStreamingStackEnable() {
+        return defaultStreamingStackEnable;
+    }
+
+    public boolean isLooperObserverEnable() {
+        return defaultLooperObserverEnable;
+    }
+
+    public boolean isDispatchHistogramEnable() {
+        return defaultDispatchHistogramEnable;
+    }
+
+    public boolean isFrameHistogramEnable() {
+        return defaultFrameHistogramEnable;
+    }
+
+    public boolean isAnrSnapshotEnable() {
+        return defaultAnrSnapshotEnable;
+    }
+
+    public boolean isStartupPhaseEnable() {
+        return defaultStartupPhaseEnable;
+    }
+
+    public boolean isStartupProfileEnable() {
+        return defaultStartupProfileEnable;
+    }
+
+    public boolean isThreadStateEnable() {
+        return defaultThreadStateEnable;
+    }
+
+    public boolean isLockContentionEnable() {
+        return defaultLockContentionEnable;
+    }
+
+    public boolean isLockContentionAllThreads() {
+        return defaultLockContentionAllThreads;
+    }
+
 
     public Set<String> getSplashActivities() {
         if (null == splashActivitiesSet) {
@@ -145,6 +235,79 @@ public class TraceConfig implements IDefaultConfig {
     }
 
 
+    public int getTraceBufferSize() {
+        return null == dynamicConfig
+                ? Constants.BUFFER_SIZE
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_buffer_size.name(), Constants.BUFFER_SIZE);
+    }
+
+    public int getPreciseClockSampling() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_PRECISE_CLOCK_SAMPLING
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_precise_clock_sampling.name(), Constants.DEFAULT_PRECISE_CLOCK_SAMPLING);
+    }
+
+    public int getSamplingIntervalMs() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_SAMPLING_INTERVAL_MS
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_sampling_interval.name(), Constants.DEFAULT_SAMPLING_INTERVAL_MS);
+    }
+
+    public int getSamplingThresholdMs() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_SAMPLING_THRESHOLD_MS
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_sampling_threshold.name(), Constants.DEFAULT_SAMPLING_THRESHOLD_MS);
+    }
+
+    public int getDispatchHistogramFlushMs() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_DISPATCH_HISTOGRAM_FLUSH_MS
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_dispatch_histogram_flush.name(), Constants.DEFAULT_DISPATCH_HISTOGRAM_FLUSH_MS);
+    }
+
+    public int getFrameHistogramFlushMs() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_FRAME_HISTOGRAM_FLUSH_MS
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_frame_histogram_flush.name(), Constants.DEFAULT_FRAME_HISTOGRAM_FLUSH_MS);
+    }
+
+    public int getThreadStateFlushMs() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_THREAD_STATE_FLUSH_MS
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_thread_state_flush.name(), Constants.DEFAULT_THREAD_STATE_FLUSH_MS);
+    }
+
+    public int getLockContentionFlushMs() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_LOCK_CONTENTION_FLUSH_MS
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_lock_contention_flush.name(), Constants.DEFAULT_LOCK_CONTENTION_FLUSH_MS);
+    }
+
+    public int getAnrSnapshotIntervalMs() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_ANR_SNAPSHOT_INTERVAL_MS
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_anr_snapshot_interval.name(), Constants.DEFAULT_ANR_SNAPSHOT_INTERVAL_MS);
+    }
+
+    public int getSamplingMaxDepth() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_SAMPLING_MAX_DEPTH
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_sampling_max_depth.name(), Constants.DEFAULT_SAMPLING_MAX_DEPTH);
+    }
+
+    public int getThreadTraceBufferSize() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_THREAD_TRACE_BUFFER_SIZE
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_thread_buffer_size.name(), Constants.DEFAULT_THREAD_TRACE_BUFFER_SIZE);
+    }
+
+    public int getThreadTraceBufferBudget() {
+        return null == dynamicConfig
+                ? Constants.DEFAULT_THREAD_TRACE_BUFFER_BUDGET
+                : dynamicConfig.get(IDynamicConfig.ExptEnum.clicfg_matrix_trace_thread_buffer_budget.name(), Constants.DEFAULT_THREAD_TRACE_BUFFER_BUDGET);
+    }
+
+
     public int getFrozenThreshold() {
         return null == dynamicConfig
                 ? Constants.DEFAULT_DROPPED_FROZEN
@@ -198,6 +361,150 @@ public class TraceConfig implements IDefaultConfig {
             return this;
         }
 
+        /**
+         * trace the threads other than main thread, each of them records into its own ring buffer.
+         */
+        public Builder enableMultiThreadTrace(boolean enable) {
+            config.defaultMultiThreadTraceEnable = enable;
+            return this;
+        }
+
+        /**
+         * record main thread into a compact buffer, which takes about half of the memory of the default one
+         * for the same count of records, see {@link TraceConfig#getTraceBufferSize()}.
+         */
+        public Builder enableCompactTraceBuffer(boolean enable) {
+            config.defaultCompactTraceBufferEnable = enable;
+            return this;
+        }
+
+        /**
+         * record main thread into a memory-mapped file, the trace of the message which the process died in
+         * is reported at next launch. it takes precedence over {@link #enableCompactTraceBuffer(boolean)}.
+         */
+        public Builder enableMappedTraceBuffer(boolean enable) {
+            config.defaultMappedTraceBufferEnable = enable;
+            return this;
+        }
+
+        /**
+         * record in microseconds read in place instead of the milliseconds refreshed every 5ms, the clock is
+         * read once every {@link TraceConfig#getPreciseClockSampling()} records. it can't work with
+         * {@link #enableCompactTraceBuffer(boolean)}.
+         */
+        public Builder enablePreciseClock(boolean enable) {
+            config.defaultPreciseClockEnable = enable;
+            return this;
+        }
+
+        /**
+         * sample the stack of main thread during long dispatches, it works without instrumentation.
+         */
+        public Builder enableSamplingTrace(boolean enable) {
+            config.defaultSamplingTraceEnable = enable;
+            return this;
+        }
+
+        /**
+         * parse the records of a long dispatch while it's still running, so the evil method and ANR reports
+         * don't have to copy and parse the whole dispatch at once.
+         */
+        public Builder enableStreamingStack(boolean enable) {
+            config.defaultStreamingStackEnable = enable;
+            return this;
+        }
+
+        /**
+         * observe the dispatching of main looper by Looper.Observer instead of Printer on Android Q and above,
+         * which saves the log string built for every message.
+         * <p>
+         * Looper.Observer applies process-wide: the messages of every looper, including the busy background
+         * ones, go through a dynamic proxy and are filtered out by their looper afterwards, which costs an
+         * allocation and, if another observer was set before, a reflective call per message. Leave it off in
+         * a process whose background loopers dispatch much more than main looper.
+         * </p>
+         */
+        public Builder enableLooperObserver(boolean enable) {
+            config.defaultLooperObserverEnable = enable;
+            return this;
+        }
+
+        /**
+         * record the latency distribution of every message dispatched in main thread, it's reported
+         * every {@link TraceConfig#getDispatchHistogramFlushMs()}.
+         */
+        public Builder enableDispatchHistogram(boolean enable) {
+            config.defaultDispatchHistogramEnable = enable;
+            return this;
+        }
+
+        /**
+         * report the frame time distribution of each scene instead of the drop levels when fps is enabled,
+         * all the scenes are reported in one issue every {@link TraceConfig#getFrameHistogramFlushMs()}.
+         */
+        public Builder enableFrameHistogram(boolean enable) {
+            config.defaultFrameHistogramEnable = enable;
+            return this;
+        }
+
+        /**
+         * sample the stack of main thread every {@link TraceConfig#getAnrSnapshotIntervalMs()} while a message is
+         * dispatching, the samples are reported as a timeline with the ANR.
+         */
+        public Builder enableAnrSnapshot(boolean enable) {
+            config.defaultAnrSnapshotEnable = enable;
+            return this;
+        }
+
+        /**
+         * break cold startup into phases with the top methods of each, it takes a copy of the records since
+         * application created on every cold startup rather than only the slow ones. the end of content providers is
+         * taken by {@link com.tencent.matrix.trace.hacker.StartupProbeProvider}, which can be removed from the
+         * manifest with {@code tools:node="remove"} when it's disabled.
+         */
+        public Builder enableStartupPhase(boolean enable) {
+            config.defaultStartupPhaseEnable = enable;
+            return this;
+        }
+
+        /**
+         * write the methods first entered before the first frame of cold startup in order, into
+         * files/matrix_trace/[process].startup. it's meant for the builds collecting the profile for
+         * matrix-gradle-plugin, which lays out dex by it.
+         */
+        public Builder enableStartupProfile(boolean enable) {
+            config.defaultStartupProfileEnable = enable;
+            return this;
+        }
+
+        /**
+         * classify the long messages of main thread as cpu bound, preempted or blocked by its schedstat,
+         * which is read twice per message, and report the counters per scene every
+         * {@link TraceConfig#getThreadStateFlushMs()}.
+         */
+        public Builder enableThreadState(boolean enable) {
+            config.defaultThreadStateEnable = enable;
+            return this;
+        }
+
+        /**
+         * measure how long the synchronized blocks and methods wait for their monitors, and report the
+         * lock sites waited most every {@link TraceConfig#getLockContentionFlushMs()}. It needs the probes
+         * inserted by matrix-gradle-plugin with trace { lockTraceEnable true }.
+         */
+        public Builder enableLockContention(boolean enable) {
+            config.defaultLockContentionEnable = enable;
+            return this;
+        }
+
+        /**
+         * by default the lock probes only take effect in main thread, which is what a jank is made of.
+         */
+        public Builder enableLockContentionAllThreads(boolean enable) {
+            config.defaultLockContentionAllThreads = enable;
+            return this;
+        }
+
         public Builder isDebug(boolean isDebug) {
             config.isDebug = isDebug;
             return this;
@@ -30,27 +30,71 @@ public class Constants {
     public static final int DEFAULT_EVIL_METHOD_THRESHOLD_MS = 700;
     public static final int DEFAULT_FPS_TIME_SLICE_ALIVE_MS = 10 * 1000;
     public static final int TIME_MILLIS_TO_NANO = 1000000;
+    public static final long TIME_SECOND_TO_NANO = 1000000000L;
     public static final int DEFAULT_INPUT_EXPIRED_TIME = 500;
     public static final int DEFAULT_ANR = 5 * 1000;
     public static final int DEFAULT_ANR_INVALID = 6 * 1000;
+    public static final int DEFAULT_ANR_SNAPSHOT_INTERVAL_MS = 1000;
+    public static final int MAX_ANR_SNAPSHOT_STAGES = 10;
+    public static final int ANR_SNAPSHOT_STACK_DEPTH = 12;
     public static final long DEFAULT_FRAME_DURATION = 16666667L;
 
     public static final int DEFAULT_DROPPED_NORMAL = 3;
     public static final int DEFAULT_DROPPED_MIDDLE = 9;
     public static final int DEFAULT_DROPPED_HIGH = 24;
     public static final int DEFAULT_DROPPED_FROZEN = 42;
+    public static final int FRAME_RING_BUFFER_SIZE = 512;
+    public static final int MAX_FPS_REFRESH_RATES = 4;
 
     public static final int DEFAULT_STARTUP_THRESHOLD_MS_WARM = 4 * 1000;
     public static final int DEFAULT_STARTUP_THRESHOLD_MS_COLD = 10 * 1000;
+    public static final int STARTUP_PHASE_TOP_METHODS = 5;
 
     public static final int DEFAULT_RELEASE_BUFFER_DELAY = 15 * 1000;
     public static final int TARGET_EVIL_METHOD_STACK = 30;
     public static final int MAX_LIMIT_ANALYSE_STACK_KEY_NUM = 10;
+    public static final int MAX_INDEX_RECORDS = 64;
 
     public static final int LIMIT_WARM_THRESHOLD_MS = 5 * 1000;
 
+    public static final int DEFAULT_THREAD_TRACE_BUFFER_SIZE = 5 * 10000; // 400K
+    public static final int DEFAULT_THREAD_TRACE_BUFFER_BUDGET = 40 * 10000; // 3.2M
+    public static final int THREAD_TRACE_RETRY_MS = 1000; // a thread without buffer tries to get one again after it
+    public static final int MAX_THREAD_TRACE_REPORT = 5; // threads reported with an evil method or ANR
+
+    public static final String MAPPED_TRACE_BUFFER_DIR = "matrix_trace";
+    public static final String STARTUP_PROFILE_SUFFIX = ".startup";
+    public static final int DEFAULT_PRECISE_CLOCK_SAMPLING = 1;
+
+    public static final int DEFAULT_SAMPLING_INTERVAL_MS = 10;
+    public static final int DEFAULT_SAMPLING_THRESHOLD_MS = 200;
+    public static final int DEFAULT_SAMPLING_MAX_DEPTH = 40;
+    public static final int MAX_SAMPLING_COUNT = 1000;
+
+    public static final int STREAMING_STACK_INTERVAL_MS = 200;
+    public static final int STREAMING_STACK_CHUNK_SIZE = 2 * 10000; // 160K
+
+    public static final int DEFAULT_DISPATCH_HISTOGRAM_FLUSH_MS = 10 * 60 * 1000;
+    public static final int MAX_DISPATCH_HISTOGRAM_SCENES = 16;
+    public static final int MAX_DISPATCH_HISTOGRAM_TARGETS = 32;
+
+    public static final int DEFAULT_FRAME_HISTOGRAM_FLUSH_MS = 5 * 60 * 1000;
+    public static final int MAX_FRAME_HISTOGRAM_SCENES = 16;
+
+    public static final int DEFAULT_THREAD_STATE_FLUSH_MS = 10 * 60 * 1000;
+    public static final int DEFAULT_THREAD_STATE_THRESHOLD_MS = 50;
+    public static final int THREAD_STATE_CHECKPOINT_MS = 16;
+    public static final int MAX_THREAD_STATE_SCENES = 16;
+
+    public static final int DEFAULT_LOCK_CONTENTION_FLUSH_MS = 10 * 60 * 1000;
+    public static final long LOCK_WAIT_THRESHOLD_NS = 100 * 1000L;
+    public static final long LOCK_HOLD_THRESHOLD_NS = 1000 * 1000L;
+    public static final int MAX_LOCK_SITES = 512;
+    public static final int MAX_LOCK_DEPTH = 16;
+    public static final int LOCK_CONTENTION_TOP_N = 20;
+
 
     public enum Type {
-        NORMAL, ANR, STARTUP
+        NORMAL, ANR, STARTUP, RECOVERED, SAMPLING
     }
 }
@@ -10,10 +10,16 @@ import com.tencent.matrix.AppActiveMatrixDelegate;
 import com.tencent.matrix.trace.constants.Constants;
 import com.tencent.matrix.trace.hacker.ActivityThreadHacker;
 import com.tencent.matrix.trace.listeners.IAppMethodBeatListener;
+import com.tencent.matrix.trace.util.CopyOnWriteArray;
 import com.tencent.matrix.trace.util.Utils;
 import com.tencent.matrix.util.MatrixHandlerThread;
 import com.tencent.matrix.util.MatrixLog;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -37,18 +43,29 @@ public class AppMethodBeat implements BeatLifecycle {
     private final static Object statusLock = new Object();
     public static MethodEnterListener sMethodEnterListener;
     private static long[] sBuffer = new long[Constants.BUFFER_SIZE];
+    private static TraceBuffer sTraceBuffer = null;
+    // increased on every switch of buffer, the indexes taken before are meaningless then
+    private static volatile int sBufferVersion = 0;
+    // the mapped buffer is taken once per process, or the file being written would be renamed as the last one
+    private static boolean sIsMappedBufferRequested = false;
+    private static int sBufferSize = Constants.BUFFER_SIZE;
     private static int sIndex = 0;
     private static int sLastIndex = -1;
     private static boolean assertIn = false;
     private volatile static long sCurrentDiffTime = SystemClock.uptimeMillis();
     private volatile static long sDiffTime = sCurrentDiffTime;
+    private static volatile boolean sPreciseClock = false;
+    private static int sClockSampling = 1;
+    private static int sClockCount = 0;
     private static long sMainThreadId = Looper.getMainLooper().getThread().getId();
     private static HandlerThread sTimerUpdateThread = MatrixHandlerThread.getNewHandlerThread("matrix_time_update_thread", Thread.MIN_PRIORITY + 2);
     private static Handler sHandler = new Handler(sTimerUpdateThread.getLooper());
     private static final int METHOD_ID_MAX = 0xFFFFF;
     public static final int METHOD_ID_DISPATCH = METHOD_ID_MAX - 1;
     private static Set<String> sFocusActivitySet = new HashSet<>();
-    private static final HashSet<IAppMethodBeatListener> listeners = new HashSet<>();
+    private static volatile boolean sMultiThreadTraceEnable = false;
+    private static final ThreadLocal<ThreadTraceBuffer> sThreadTraceBuffer = new ThreadLocal<>();
+    private static final CopyOnWriteArray<IAppMethodBeatListener> listeners = new CopyOnWriteArray<>(new IAppMethodBeatListener[0]);
     private static final Object updateTimeLock = new Object();
     private static volatile boolean isPauseUpdateTime = false;
     private static Runnable checkStartExpiredRunnable = null;
@@ -89,6 +106,10 @@ public class AppMethodBeat implements BeatLifecycle {
             try {
                 while (true) {
                     while (!isPauseUpdateTime && status > STATUS_STOPPED) {//无限循环  当isPauseUpdateTime=false（dispatchBegin方法完成）,然后更新 sCurrentDiffTime
+                        if (sPreciseClock) {//精确时钟模式下 由 mergeData 直接读取时间，不再需要刷新
+                            MatrixLog.i(TAG, "[sUpdateDiffTimeRunnable] precise clock, quit updating");
+                            return;
+                        }
                         sCurrentDiffTime = SystemClock.uptimeMillis() - sDiffTime;
                         SystemClock.sleep(Constants.TIME_UPDATE_CYCLE_MS);
                     }
@@ -111,7 +132,7 @@ public class AppMethodBeat implements BeatLifecycle {
         synchronized (statusLock) {
             if (status < STATUS_STARTED && status >= STATUS_EXPIRED_START) {//如果没有启动 或者已经过期 则进行启动
                 sHandler.removeCallbacks(checkStartExpiredRunnable);//取消 启动过期 检查的 Runnable
-                if (sBuffer == null) {
+                if (sBuffer == null && sTraceBuffer == null) {
                     throw new RuntimeException(TAG + " sBuffer == null");
                 }
                 MatrixLog.i(TAG, "[onStart] preStatus:%s", status, Utils.getStack());
@@ -152,6 +173,9 @@ public class AppMethodBeat implements BeatLifecycle {
                 LooperMonitor.unregister(looperMonitorListener);
                 sTimerUpdateThread.quit();
                 sBuffer = null;
+                sTraceBuffer = null;
+                sMultiThreadTraceEnable = false;
+                ThreadTraceBuffer.release();
                 status = STATUS_OUT_RELEASE;
             }
         }
@@ -185,7 +209,10 @@ public class AppMethodBeat implements BeatLifecycle {
     }
 
     private static void dispatchBegin() {
-        sCurrentDiffTime = SystemClock.uptimeMillis() - sDiffTime;
+        sCurrentDiffTime = currentDiffTime();
+        if (sPreciseClock) {
+            return;
+        }
         isPauseUpdateTime = false;
 
         synchronized (updateTimeLock) {
@@ -231,7 +258,7 @@ public class AppMethodBeat implements BeatLifecycle {
                 return;
             }
             assertIn = true;
-            if (sIndex < Constants.BUFFER_SIZE) {
+            if (sIndex < sBufferSize) {
                 mergeData(methodId, sIndex, true);
             } else {
                 sIndex = 0;
@@ -239,6 +266,8 @@ public class AppMethodBeat implements BeatLifecycle {
             }
             ++sIndex;
             assertIn = false;
+        } else if (sMultiThreadTraceEnable) {
+            recordThreadData(methodId, true);
         }
     }
 
@@ -255,13 +284,60 @@ public class AppMethodBeat implements BeatLifecycle {
             return;
         }
         if (Thread.currentThread().getId() == sMainThreadId) {
-            if (sIndex < Constants.BUFFER_SIZE) {
+            if (sIndex < sBufferSize) {
                 mergeData(methodId, sIndex, false);
             } else {
                 sIndex = 0;
                 mergeData(methodId, sIndex, false);//存储数据到sBuffer中
             }
             ++sIndex;
+        } else if (sMultiThreadTraceEnable) {
+            recordThreadData(methodId, false);
+        }
+    }
+
+    /**
+     * inserted before a MONITORENTER, or the call to a synchronized method, by matrix-gradle-plugin
+     * when lockTraceEnable, see {@link LockMonitor}.
+     */
+    public static void lockEnter(int siteId) {
+        if (LockMonitor.isEnable()) {
+            LockMonitor.enter(siteId);
+        }
+    }
+
+    /**
+     * inserted after a MONITORENTER, or at the entry of a synchronized method.
+     */
+    public static void lockAcquired(int siteId) {
+        if (LockMonitor.isEnable()) {
+            LockMonitor.acquired(siteId);
+        }
+    }
+
+    /**
+     * inserted before a MONITOREXIT, or at the exits of a synchronized method.
+     */
+    public static void lockExit(int siteId) {
+        if (LockMonitor.isEnable()) {
+            LockMonitor.exit(siteId);
+        }
+    }
+
+    /**
+     * record into the ring buffer owned by current thread, allocation-free except the first call of each thread,
+     * and the retries of a thread which got no buffer.
+     * the time is read directly because sCurrentDiffTime is only refreshed while the main thread is dispatching.
+     */
+    private static void recordThreadData(int methodId, boolean isIn) {
+        long time = currentDiffTime();
+        ThreadTraceBuffer buffer = sThreadTraceBuffer.get();
+        if (null == buffer || (buffer.isEmpty() && time >= buffer.retryTime)) {
+            buffer = ThreadTraceBuffer.obtain(Thread.currentThread(), time);
+            sThreadTraceBuffer.set(buffer);
+        }
+        if (!buffer.isEmpty()) {
+            buffer.record(methodId, isIn, time);
         }
     }
 
@@ -275,10 +351,8 @@ public class AppMethodBeat implements BeatLifecycle {
         String activityName = activity.getClass().getName();
         if (isFocus) {
             if (sFocusActivitySet.add(activityName)) {//获取焦点的activity 添加到 sFocusActivitySet
-                synchronized (listeners) {
-                    for (IAppMethodBeatListener listener : listeners) {//广播 activityName 获取到焦点
-                        listener.onActivityFocused(activity);
-                    }
+                for (IAppMethodBeatListener listener : listeners.get()) {//广播 activityName 获取到焦点
+                    listener.onActivityFocused(activity);
                 }
                 MatrixLog.i(TAG, "[at] visibleScene[%s] has %s focus!", getVisibleScene(), "attach");
             }
@@ -301,7 +375,12 @@ public class AppMethodBeat implements BeatLifecycle {
      * @param isIn
      */
     private static void mergeData(int methodId, int index, boolean isIn) {
-        if (methodId == AppMethodBeat.METHOD_ID_DISPATCH) {
+        if (sPreciseClock) {//每 sClockSampling 次读取一次时间，dispatch 总是读取
+            if (++sClockCount >= sClockSampling || methodId == AppMethodBeat.METHOD_ID_DISPATCH) {
+                sClockCount = 0;
+                sCurrentDiffTime = System.nanoTime() / 1000 - sDiffTime * 1000;
+            }
+        } else if (methodId == AppMethodBeat.METHOD_ID_DISPATCH) {
             sCurrentDiffTime = SystemClock.uptimeMillis() - sDiffTime;
         }
         long trueId = 0L;
@@ -310,67 +389,411 @@ public class AppMethodBeat implements BeatLifecycle {
         }
         trueId |= (long) methodId << 43;//43-62位 存储 methodId
         trueId |= sCurrentDiffTime & 0x7FFFFFFFFFFL;//0-42位存储 sCurrentDiffTime
-        sBuffer[index] = trueId;
+        if (null == sTraceBuffer) {
+            sBuffer[index] = trueId;
+        } else {
+            int written = sTraceBuffer.write(index, methodId, isIn, sCurrentDiffTime);
+            while (index != written) {//被跳过的位置 同样被覆盖了
+                checkPileup(index);
+                sLastIndex = index;
+                index = index + 1 == sBufferSize ? 0 : index + 1;
+            }
+            sIndex = index;
+        }
         checkPileup(index);
         sLastIndex = index;
     }
 
-    public void addListener(IAppMethodBeatListener listener) {
-        synchronized (listeners) {
-            listeners.add(listener);
+    /**
+     * read the clock directly in {@link #mergeData(int, int, boolean)} and record in microseconds instead of
+     * the milliseconds refreshed by matrix_time_update_thread every {@link Constants#TIME_UPDATE_CYCLE_MS},
+     * so that methods shorter than that get their real cost, and the time update loop quits.
+     * the 43 bits of time cover about 101 days in microseconds. the records so far are converted.
+     * it must be called in main thread before switching the buffer and {@link #onStart()}, calling it again
+     * only changes the sampling.
+     *
+     * @param sampling read the clock once every sampling calls, the others take the last time read
+     */
+    public void usePreciseClock(int sampling) {
+        synchronized (statusLock) {
+            if (Thread.currentThread().getId() != sMainThreadId) {
+                MatrixLog.w(TAG, "[usePreciseClock] only main thread is allowed!");
+                return;
+            }
+            if (sPreciseClock) {
+                sClockSampling = Math.max(1, sampling);
+                return;
+            }
+            if (status == STATUS_OUT_RELEASE || null == sBuffer) {
+                MatrixLog.w(TAG, "[usePreciseClock] buffer has been released or switched, status:%s", status);
+                return;
+            }
+            long current = System.currentTimeMillis();
+            for (int i = 0; i < sBuffer.length; i++) {
+                long trueId = sBuffer[i];
+                if (trueId != 0L) {
+                    sBuffer[i] = (trueId & ~0x7FFFFFFFFFFL) | (((trueId & 0x7FFFFFFFFFFL) * 1000) & 0x7FFFFFFFFFFL);
+                }
+            }
+            sClockSampling = Math.max(1, sampling);
+            sCurrentDiffTime = System.nanoTime() / 1000 - sDiffTime * 1000;
+            sPreciseClock = true;
+            MatrixLog.i(TAG, "[usePreciseClock] sampling:%s cost:%sms", sClockSampling, System.currentTimeMillis() - current);
         }
     }
 
-    public void removeListener(IAppMethodBeatListener listener) {
-        synchronized (listeners) {
-            listeners.remove(listener);
+    /**
+     * back to the milliseconds refreshed by matrix_time_update_thread, the records so far are converted.
+     * it's for comparing the clock modes, and it must be called in main thread before switching the buffer.
+     */
+    public void useMillisClock() {
+        synchronized (statusLock) {
+            if (Thread.currentThread().getId() != sMainThreadId) {
+                MatrixLog.w(TAG, "[useMillisClock] only main thread is allowed!");
+                return;
+            }
+            if (!sPreciseClock) {
+                return;
+            }
+            if (status == STATUS_OUT_RELEASE || null == sBuffer) {
+                MatrixLog.w(TAG, "[useMillisClock] buffer has been released or switched, status:%s", status);
+                return;
+            }
+            for (int i = 0; i < sBuffer.length; i++) {
+                long trueId = sBuffer[i];
+                if (trueId != 0L) {
+                    sBuffer[i] = (trueId & ~0x7FFFFFFFFFFL) | ((trueId & 0x7FFFFFFFFFFL) / 1000);
+                }
+            }
+            sCurrentDiffTime = SystemClock.uptimeMillis() - sDiffTime;
+            sPreciseClock = false;
+            // the update loop has quit, or it goes on seeing the flag cleared, the one posted waits behind it then
+            sHandler.post(sUpdateDiffTimeRunnable);
+            MatrixLog.i(TAG, "[useMillisClock] done");
         }
     }
 
-    private static IndexRecord sIndexRecordHead = null;
+    public static boolean isPreciseClock() {
+        return sPreciseClock;
+    }
 
-    public IndexRecord maskIndex(String source) {
-        if (sIndexRecordHead == null) {
-            sIndexRecordHead = new IndexRecord(sIndex - 1);
-            sIndexRecordHead.source = source;
-            return sIndexRecordHead;
-        } else {
-            IndexRecord indexRecord = new IndexRecord(sIndex - 1);
-            indexRecord.source = source;
-            IndexRecord record = sIndexRecordHead;
-            IndexRecord last = null;
-            while (record != null) {
-                if (indexRecord.index <= record.index) {
-                    if (null == last) {
-                        IndexRecord tmp = sIndexRecordHead;
-                        sIndexRecordHead = indexRecord;
-                        indexRecord.next = tmp;
-                    } else {
-                        IndexRecord tmp = last.next;
-                        last.next = indexRecord;
-                        indexRecord.next = tmp;
+    public static int getClockSampling() {
+        return sClockSampling;
+    }
+
+    /**
+     * @param time the time of a record, or the difference of two
+     * @return in milliseconds
+     */
+    public static long recordTimeToMillis(long time) {
+        return sPreciseClock ? time / 1000 : time;
+    }
+
+    /**
+     * @param ms time since {@link #getDiffTime()} in milliseconds
+     * @return in the unit of records
+     */
+    public static long millisToRecordTime(long ms) {
+        return sPreciseClock ? ms * 1000 : ms;
+    }
+
+    private static long currentDiffTime() {
+        return sPreciseClock ? System.nanoTime() / 1000 - sDiffTime * 1000 : SystemClock.uptimeMillis() - sDiffTime;
+    }
+
+    /**
+     * record into a {@link CompactTraceBuffer} instead of the long[], which takes about half of the memory
+     * for the same count of records. the records and markers so far are moved into it.
+     * it must be called in main thread before {@link #onStart()}.
+     *
+     * @param size count of records
+     */
+    public void useCompactTraceBuffer(int size) {
+        if (sPreciseClock) {//11 位的 delta 在微秒下只有 2ms
+            MatrixLog.w(TAG, "[useCompactTraceBuffer] not compatible with precise clock!");
+            return;
+        }
+        switchTraceBuffer(new CompactTraceBuffer(size));
+    }
+
+    /**
+     * record into a {@link MappedTraceBuffer} backed by the given file, so that the records are still there
+     * if the process dies. the file of last process is kept for {@link MappedTraceBuffer#recover(File)}.
+     * <p>
+     * renaming the file of last process, opening and mapping the new one may take tens of ms on a busy disk,
+     * so they are done on {@link MatrixHandlerThread#getDefaultHandler()}, and then the buffer is switched
+     * on main thread with the records and markers so far moved into it. the recovery posted to the same handler
+     * afterwards always reads the renamed file. it must be called in main thread after {@link #usePreciseClock(int)},
+     * the clock mode is written into the header of file. only the first call of a process takes effect, so that a
+     * restart of the plugin doesn't rename the file still being written.
+     *
+     * @param size count of records, the file takes 8 bytes per record
+     */
+    public void useMappedTraceBuffer(final File file, final int size) {
+        if (sIsMappedBufferRequested || null == sBuffer) {
+            MatrixLog.i(TAG, "[useMappedTraceBuffer] the buffer has been requested or switched, ignore it");
+            return;
+        }
+        sIsMappedBufferRequested = true;
+        MatrixHandlerThread.getDefaultHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                long current = System.currentTimeMillis();
+                final MappedTraceBuffer traceBuffer;
+                try {
+                    traceBuffer = MappedTraceBuffer.create(file, size);
+                } catch (IOException | RuntimeException e) {
+                    MatrixLog.e(TAG, "[useMappedTraceBuffer] %s", e.toString());
+                    return;
+                }
+                MatrixLog.i(TAG, "[useMappedTraceBuffer] mapped %s cost:%sms", file.getName(), System.currentTimeMillis() - current);
+                MatrixHandlerThread.getDefaultMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        switchTraceBuffer(traceBuffer);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return it changes once the buffer is switched, see {@link #copyData(IndexRecord, int, int)}
+     */
+    public int getBufferVersion() {
+        return sBufferVersion;
+    }
+
+    private static void switchTraceBuffer(TraceBuffer traceBuffer) {
+        synchronized (statusLock) {
+            if (Thread.currentThread().getId() != sMainThreadId) {
+                MatrixLog.w(TAG, "[switchTraceBuffer] only main thread is allowed!");
+                return;
+            }
+            if (status == STATUS_OUT_RELEASE || null == sBuffer) {
+                MatrixLog.w(TAG, "[switchTraceBuffer] buffer has been released or switched, status:%s", status);
+                return;
+            }
+            long current = System.currentTimeMillis();
+            int oldSize = sBufferSize;
+            // 已经写满一轮时 最旧的记录在 sIndex 处
+            int start = sIndex < oldSize && sBuffer[sIndex] != 0L ? sIndex : 0;
+            int count = start == 0 ? sIndex : oldSize;
+            // 留出余量，避免迁移时 新buffer 被写满一轮
+            int skip = Math.max(0, count - traceBuffer.size() / 2);
+
+            ArrayList<IndexRecord> records = new ArrayList<>();
+            synchronized (sMarkerLock) {
+                for (int i = 0; i < sMarkerCount; i++) {
+                    records.add(sMarkers[i]);
+                }
+            }
+            final int fStart = start;
+            Collections.sort(records, new Comparator<IndexRecord>() {
+                @Override
+                public int compare(IndexRecord o1, IndexRecord o2) {
+                    return Integer.compare(position(o1.index, fStart, oldSize), position(o2.index, fStart, oldSize));
+                }
+            });
+
+            int index = 0;
+            int cursor = 0;
+            while (skip > 0 && cursor < records.size() && position(records.get(cursor).index, start, oldSize) < skip) {
+                records.get(cursor++).isValid = false;
+            }
+            int valid = cursor;
+            while (cursor < records.size() && records.get(cursor).index < 0) {//在第一条记录之前做的标记 保持 -1
+                cursor++;
+            }
+            for (int p = skip; p < count; p++) {
+                long trueId = sBuffer[(start + p) % oldSize];
+                int written = traceBuffer.write(index, (int) ((trueId >> 43) & METHOD_ID_MAX), trueId < 0, trueId & 0x7FFFFFFFFFFL);
+                while (cursor < records.size() && position(records.get(cursor).index, start, oldSize) == p) {
+                    records.get(cursor++).index = written;
+                }
+                index = written + 1 == traceBuffer.size() ? 0 : written + 1;
+            }
+
+            for (int i = cursor; i < records.size(); i++) {
+                records.get(i).isValid = false;
+            }
+
+            sTraceBuffer = traceBuffer;
+            sBuffer = null;
+            sBufferSize = traceBuffer.size();
+            sIndex = index;
+            sLastIndex = index - 1;
+            sBufferVersion++;
+            synchronized (sMarkerLock) {
+                for (int i = sMarkerCount - 1; i >= 0; i--) {
+                    if (!sMarkers[i].isValid) {
+                        removeMarker(sMarkers[i]);
                     }
-                    return indexRecord;
                 }
-                last = record;
-                record = record.next;
+                updatePileupIndex(index);
+            }
+            MatrixLog.i(TAG, "[switchTraceBuffer] %s size:%s moved:%s dropped:%s cost:%sms",
+                    traceBuffer.getClass().getSimpleName(), sBufferSize, count - skip, skip, System.currentTimeMillis() - current);
+        }
+    }
+
+    /**
+     * @return the order of the index since start, -1 for the marker made before the first record
+     */
+    private static int position(int index, int start, int size) {
+        return index < 0 ? -1 : (index - start + size) % size;
+    }
+
+    /**
+     * let the threads other than main thread record into their own ring buffers.
+     *
+     * @param bufferSize   records of each thread, one record takes 8 bytes
+     * @param bufferBudget records of all threads, it limits how many threads can be traced at the same time
+     *                     the sizes only take effect at the first time of enabling
+     */
+    public void setMultiThreadTraceEnable(boolean enable, int bufferSize, int bufferBudget) {
+        synchronized (statusLock) {
+            if (status == STATUS_OUT_RELEASE) {
+                MatrixLog.w(TAG, "[setMultiThreadTraceEnable] AppMethodBeat has been released!");
+                return;
+            }
+            if (enable) {
+                ThreadTraceBuffer.setup(bufferSize, bufferBudget);
+            }
+            sMultiThreadTraceEnable = enable;
+        }
+    }
+
+    public static boolean isMultiThreadTraceEnable() {
+        return sMultiThreadTraceEnable;
+    }
+
+    /**
+     * @return the buffers of the threads which have been traced
+     */
+    public ThreadTraceBuffer[] getThreadTraceBuffers() {
+        return ThreadTraceBuffer.snapshot();
+    }
+
+    /**
+     * copy the records of the given thread between startMs and endMs.
+     *
+     * @param threadId the id of a traced thread, it can't be main thread
+     * @param startMs  uptime in ms
+     * @param endMs    uptime in ms
+     */
+    public long[] copyThreadData(long threadId, long startMs, long endMs) {
+        ThreadTraceBuffer buffer = ThreadTraceBuffer.find(threadId);
+        if (null == buffer) {
+            MatrixLog.w(TAG, "[copyThreadData] thread[%s] has never been traced", threadId);
+            return new long[0];
+        }
+        return buffer.copyData(startMs, endMs);
+    }
+
+    public void addListener(IAppMethodBeatListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(IAppMethodBeatListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The index records alive are kept in a fixed array, each knows its slot so mark and release are O(1).
+     * {@link #sPileupIndex} is the index of the record which will be overwritten first, so the records are only
+     * looked over when the buffer is written at that index rather than every time.
+     */
+    private static final Object sMarkerLock = new Object();
+    private static final IndexRecord[] sMarkers = new IndexRecord[Constants.MAX_INDEX_RECORDS];
+    private static int sMarkerCount = 0;
+    private static int sPileupIndex = -2;
+
+    /**
+     * @return a new record of the current index, see {@link #maskIndex(IndexRecord, String)} to reuse one.
+     */
+    public IndexRecord maskIndex(String source) {
+        return maskIndex(new IndexRecord(), source);
+    }
+
+    /**
+     * mark the current index into record, it's released first if it's alive. The callers marking every
+     * message reuse their own record so that it's allocation-free, the marks of the last use are lost then.
+     * it must be called in main thread.
+     *
+     * @return record, it's invalid if there're too many records alive
+     */
+    public IndexRecord maskIndex(IndexRecord record, String source) {
+        synchronized (sMarkerLock) {
+            if (record.slot >= 0) {
+                removeMarker(record);
+            }
+            record.index = sIndex - 1;
+            record.source = source;
+            record.generation++;
+            if (sMarkerCount == sMarkers.length) {
+                record.isValid = false;
+                MatrixLog.w(TAG, "[maskIndex] too many index records alive, %s is ignored", source);
+                return record;
+            }
+            record.isValid = true;
+            record.slot = sMarkerCount;
+            sMarkers[sMarkerCount++] = record;
+            if (sMarkerCount == 1) {
+                // the record marked now is always the last to be overwritten, so it's only taken when alone
+                sPileupIndex = getPileupIndex(record);
             }
-            last.next = indexRecord;
+            return record;
+        }
+    }
+
+    /**
+     * the record of index -1 is marked before anything recorded, it's taken as the end of buffer.
+     */
+    private static int getPileupIndex(IndexRecord record) {
+        return record.index < 0 ? sBufferSize - 1 : record.index;
+    }
 
-            return indexRecord;
+    private static void removeMarker(IndexRecord record) {
+        int slot = record.slot;
+        IndexRecord last = sMarkers[--sMarkerCount];
+        sMarkers[slot] = last;
+        last.slot = slot;
+        sMarkers[sMarkerCount] = null;
+        record.slot = -1;
+    }
+
+    /**
+     * take the record closest ahead of cursor as {@link #sPileupIndex}.
+     */
+    private static void updatePileupIndex(int cursor) {
+        int pileupIndex = -2;
+        int distance = Integer.MAX_VALUE;
+        for (int i = 0; i < sMarkerCount; i++) {
+            int index = getPileupIndex(sMarkers[i]);
+            int d = index >= cursor ? index - cursor : index - cursor + sBufferSize;
+            if (d < distance) {
+                distance = d;
+                pileupIndex = index;
+            }
         }
+        sPileupIndex = pileupIndex;
     }
 
     private static void checkPileup(int index) {
-        IndexRecord indexRecord = sIndexRecordHead;
-        while (indexRecord != null) {
-            if (indexRecord.index == index || (indexRecord.index == -1 && sLastIndex == Constants.BUFFER_SIZE - 1)) {
-                indexRecord.isValid = false;
-                MatrixLog.w(TAG, "[checkPileup] %s", indexRecord.toString());
-                sIndexRecordHead = indexRecord = indexRecord.next;
-            } else {
-                break;
+        if (index != sPileupIndex) {
+            return;
+        }
+        synchronized (sMarkerLock) {
+            for (int i = sMarkerCount - 1; i >= 0; i--) {
+                IndexRecord record = sMarkers[i];
+                if (getPileupIndex(record) == index) {
+                    record.isValid = false;
+                    MatrixLog.w(TAG, "[checkPileup] %s", record.toString());
+                    removeMarker(record);
+                }
             }
+            updatePileupIndex(index + 1 == sBufferSize ? 0 : index + 1);
         }
     }
 
@@ -384,26 +807,39 @@ public class AppMethodBeat implements BeatLifecycle {
         }
 
         public int index;
-        private IndexRecord next;
+        private int slot = -1;
+        private int generation;
         public boolean isValid = true;
         public String source;
 
+        /**
+         * @return how many times it has been marked, the ones taking the record on other threads compare it to
+         * know whether the record is reused meanwhile.
+         */
+        public int getGeneration() {
+            synchronized (sMarkerLock) {
+                return generation;
+            }
+        }
+
         public void release() {
-            isValid = false;
-            IndexRecord record = sIndexRecordHead;
-            IndexRecord last = null;
-            while (null != record) {
-                if (record == this) {
-                    if (null != last) {
-                        last.next = record.next;
-                    } else {
-                        sIndexRecordHead = record.next;
-                    }
-                    record.next = null;
-                    break;
+            synchronized (sMarkerLock) {
+                isValid = false;
+                if (slot >= 0) {
+                    removeMarker(this);
+                }
+            }
+        }
+
+        /**
+         * release it only if it hasn't been marked again since {@link #getGeneration()} returned generation,
+         * for the ones taking the record on other threads.
+         */
+        public void release(int generation) {
+            synchronized (sMarkerLock) {
+                if (this.generation == generation) {
+                    release();
                 }
-                last = record;
-                record = record.next;
             }
         }
 
@@ -414,27 +850,94 @@ public class AppMethodBeat implements BeatLifecycle {
     }
 
     public long[] copyData(IndexRecord startRecord) {//获取从 startRecord 到结束的 所有 IndexRecord
-        return copyData(startRecord, new IndexRecord(sIndex - 1));
+        long[] buffer;
+        TraceBuffer traceBuffer;
+        int version;
+        IndexRecord endRecord;
+        synchronized (statusLock) {//buffer 可能在主线程被切换，锁内只取引用和下标，拷贝在锁外
+            buffer = sBuffer;
+            traceBuffer = sTraceBuffer;
+            version = sBufferVersion;
+            endRecord = new IndexRecord(sIndex - 1);
+        }
+        long[] data = copyData(buffer, traceBuffer, startRecord, endRecord);
+        // the indexes are meaningless once the buffer is switched meanwhile
+        return version == sBufferVersion ? data : new long[0];
     }
 
-    private long[] copyData(IndexRecord startRecord, IndexRecord endRecord) {
+    /**
+     * @return index of the last record of main thread, -1 if nothing has been recorded yet
+     */
+    public int getCurrentIndex() {
+        return sIndex - 1;
+    }
+
+    /**
+     * @return the count of slots of main thread buffer
+     */
+    public int getBufferSize() {
+        return sBufferSize;
+    }
+
+    /**
+     * copy the records of [start, end] for the consumers reading the buffer in chunks while main thread keeps
+     * recording, see {@link DispatchStackAggregator}. the range may wrap around the end of buffer.
+     *
+     * @param beginRecord marks the first record the consumer needs
+     * @return null if the records since beginRecord have been overwritten. the consumer should also check
+     * {@link #getBufferVersion()} afterwards, the range is meaningless once the buffer is switched.
+     */
+    public long[] copyData(IndexRecord beginRecord, int start, int end) {
+        if (!beginRecord.isValid) {
+            return null;
+        }
+        long[] buffer;
+        TraceBuffer traceBuffer;
+        int version;
+        synchronized (statusLock) {//锁内只取引用，拷贝在锁外，不阻塞主线程切换 buffer
+            buffer = sBuffer;
+            traceBuffer = sTraceBuffer;
+            version = sBufferVersion;
+        }
+        long[] data;
+        if (null != traceBuffer) {
+            data = traceBuffer.copy(start, end);
+        } else if (null == buffer) {
+            return null;
+        } else if (end >= start) {
+            data = new long[end - start + 1];
+            System.arraycopy(buffer, start, data, 0, data.length);
+        } else {
+            data = new long[1 + end + (buffer.length - start)];
+            System.arraycopy(buffer, start, data, 0, buffer.length - start);
+            System.arraycopy(buffer, 0, data, buffer.length - start, end + 1);
+        }
+        // the slots may have been overwritten or the buffer switched while copying
+        return beginRecord.isValid && version == sBufferVersion ? data : null;
+    }
+
+    private static long[] copyData(long[] buffer, TraceBuffer traceBuffer, IndexRecord startRecord, IndexRecord endRecord) {
         long current = System.currentTimeMillis();
         long[] data = new long[0];
         try {
-            if (startRecord.isValid && endRecord.isValid) {
+            if (startRecord.isValid && endRecord.isValid && (null != buffer || null != traceBuffer)) {
                 int length;
                 int start = Math.max(0, startRecord.index);
                 int end = Math.max(0, endRecord.index);
 
-                if (end > start) { //计算出copy区域的长度和copy
+                if (null != traceBuffer) {
+                    if (end != start) {
+                        data = traceBuffer.copy(start, end);
+                    }
+                } else if (end > start) { //计算出copy区域的长度和copy
                     length = end - start + 1;
                     data = new long[length];
-                    System.arraycopy(sBuffer, start, data, 0, length);
+                    System.arraycopy(buffer, start, data, 0, length);
                 } else if (end < start) {
-                    length = 1 + end + (sBuffer.length - start);
+                    length = 1 + end + (buffer.length - start);
                     data = new long[length];
-                    System.arraycopy(sBuffer, start, data, 0, sBuffer.length - start);
-                    System.arraycopy(sBuffer, 0, data, sBuffer.length - start, end + 1);
+                    System.arraycopy(buffer, start, data, 0, buffer.length - start);
+                    System.arraycopy(buffer, 0, data, buffer.length - start, end + 1);
                 }
                 return data;
             }
@@ -453,10 +956,10 @@ public class AppMethodBeat implements BeatLifecycle {
 
     public void printIndexRecord() {
         StringBuilder ss = new StringBuilder(" \n");
-        IndexRecord record = sIndexRecordHead;
-        while (null != record) {
-            ss.append(record).append("\n");
-            record = record.next;
+        synchronized (sMarkerLock) {
+            for (int i = 0; i < sMarkerCount; i++) {
+                ss.append(sMarkers[i]).append("\n");
+            }
         }
         MatrixLog.i(TAG, "[printIndexRecord] %s", ss.toString());
     }
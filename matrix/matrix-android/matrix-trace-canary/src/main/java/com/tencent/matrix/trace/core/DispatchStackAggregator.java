@@ -0,0 +1,306 @@
+package com.tencent.matrix.trace.core;
+
+import android.os.Handler;
+
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.items.MethodItem;
+import com.tencent.matrix.trace.listeners.LooperObserver;
+import com.tencent.matrix.trace.util.TraceDataUtils;
+import com.tencent.matrix.util.MatrixHandlerThread;
+import com.tencent.matrix.util.MatrixLog;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Parses the records of main thread while a message is still dispatching, so that the stack of a long
+ * dispatch is mostly built by the time it ends, or by the time it's taken as ANR.
+ * <p>
+ * Every message only re-marks the begin record of one reused {@link Session}. A checker on the matrix handler
+ * thread is scheduled at most once an interval while messages are dispatching, and once a dispatch has lasted
+ * {@link Constants#STREAMING_STACK_INTERVAL_MS}, the session starts: the records since its begin are copied out
+ * every interval, at most {@link Constants#STREAMING_STACK_CHUNK_SIZE} at a time, and fed into a
+ * {@link TraceDataUtils.StackAggregator}. A started session is handed over to the handler thread at the end of
+ * its dispatch with its record, and a new one is taken for the next messages.
+ * </p>
+ * The tracers posting to {@link MatrixHandlerThread#getDefaultHandler()} read the stack by
+ * {@link #getStack(long, int, List, long)}, there's no lock as it's only touched on that thread.
+ */
+public class DispatchStackAggregator extends LooperObserver {
+
+    private static final String TAG = "Matrix.DispatchStackAggregator";
+    private static final DispatchStackAggregator sInstance = new DispatchStackAggregator(new RecordSource() {
+        @Override
+        public int getBufferSize() {
+            return AppMethodBeat.getInstance().getBufferSize();
+        }
+
+        @Override
+        public int getBufferVersion() {
+            return AppMethodBeat.getInstance().getBufferVersion();
+        }
+
+        @Override
+        public int getCurrentIndex() {
+            return AppMethodBeat.getInstance().getCurrentIndex();
+        }
+
+        @Override
+        public long[] copyData(AppMethodBeat.IndexRecord beginRecord, int start, int end) {
+            return AppMethodBeat.getInstance().copyData(beginRecord, start, end);
+        }
+
+        @Override
+        public TraceDataUtils.StackAggregator newAggregator(int capacity) {
+            return new TraceDataUtils.StackAggregator(true, capacity);
+        }
+    });
+
+    private final RecordSource source;
+
+    private Handler handler;
+    private int registerCount = 0;
+    // the session of the messages dispatching, it's replaced once started
+    private volatile Session session;
+    private Session lastSession;
+    // only touched on the handler thread
+    private Session current;
+    private final AtomicBoolean isCheckScheduled = new AtomicBoolean(false);
+
+    public static DispatchStackAggregator getInstance() {
+        return sInstance;
+    }
+
+    DispatchStackAggregator(RecordSource source) {
+        this.source = source;
+        this.session = new Session();
+    }
+
+    /**
+     * start aggregating for a tracer, it must be called in main thread.
+     */
+    public void register() {
+        if (registerCount++ == 0) {
+            handler = MatrixHandlerThread.getDefaultHandler();
+            UIThreadMonitor.getMonitor().addObserver(this);
+        }
+    }
+
+    /**
+     * it must be called in main thread.
+     */
+    public void unregister() {
+        if (registerCount > 0 && --registerCount == 0) {
+            UIThreadMonitor.getMonitor().removeObserver(this);
+            handler.removeCallbacks(checkRunnable);
+            isCheckScheduled.set(false);
+            endSession();
+            lastSession = null;
+        }
+    }
+
+    @Override
+    public void dispatchBegin(long beginNs, long cpuBeginMs, long token) {
+        super.dispatchBegin(beginNs, cpuBeginMs, token);
+        Session session = this.session;
+        session.begin(token, beginNs, AppMethodBeat.getInstance().maskIndex(session.beginRecord, "DispatchStackAggregator#dispatchBegin"));
+        if (isCheckScheduled.compareAndSet(false, true)) {
+            handler.postDelayed(checkRunnable, Constants.STREAMING_STACK_INTERVAL_MS);
+        }
+    }
+
+    @Override
+    public void dispatchEnd(long beginNs, long cpuBeginMs, long endNs, long cpuEndMs, long token, boolean isVsyncFrame) {
+        super.dispatchEnd(beginNs, cpuBeginMs, endNs, cpuEndMs, token, isVsyncFrame);
+        endSession();
+    }
+
+    private void endSession() {
+        Session session = this.session;
+        if (session.end(source.getCurrentIndex())) {
+            lastSession = session;
+            this.session = new Session();
+            handler.post(session); // consume the rest and release
+        } else {
+            session.beginRecord.release();
+        }
+    }
+
+    /**
+     * runs on the handler thread, it starts the session once its dispatch has lasted long enough, or checks again
+     * when it will have. nothing is scheduled when main thread is idle.
+     */
+    private final Runnable checkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            isCheckScheduled.set(false);
+            Session session = DispatchStackAggregator.this.session;
+            long delayMs = session.tryStart(System.nanoTime());
+            if (0 == delayMs) {
+                session.run();
+            } else if (delayMs > 0 && isCheckScheduled.compareAndSet(false, true)) {
+                handler.postDelayed(this, delayMs);
+            }
+        }
+    };
+
+    /**
+     * @return whether the dispatch of token is being aggregated, if so the stack can be taken by
+     * {@link #getStack(long, int, List, long)} afterwards. it must be called in main thread.
+     */
+    public boolean isAggregating(long token) {
+        return session.isStarted(token) || (null != lastSession && lastSession.isStarted(token));
+    }
+
+    /**
+     * take the stack of the dispatch of token, it must be called on the matrix handler thread.
+     *
+     * @param endIndex the index of the last record to take, see {@link AppMethodBeat#getCurrentIndex()}
+     * @param endTime  the methods never out are counted till it
+     * @return false if the dispatch hasn't been aggregated or its records have been overwritten
+     */
+    public boolean getStack(long token, int endIndex, List<MethodItem> result, long endTime) {
+        Session session = current;
+        if (null == session || session.token != token) {
+            return false;
+        }
+        return session.getStack(endIndex, result, endTime);
+    }
+
+    /**
+     * where the records of main thread are read from, it's {@link AppMethodBeat} except in the unit tests.
+     */
+    interface RecordSource {
+        int getBufferSize();
+
+        int getBufferVersion();
+
+        int getCurrentIndex();
+
+        long[] copyData(AppMethodBeat.IndexRecord beginRecord, int start, int end);
+
+        TraceDataUtils.StackAggregator newAggregator(int capacity);
+    }
+
+    final class Session implements Runnable {
+        // re-marked for every message till the session is started
+        final AppMethodBeat.IndexRecord beginRecord = new AppMethodBeat.IndexRecord();
+        // the fields below are set in main thread for every message, guarded by this
+        private long token;
+        private long beginNs;
+        private int bufferVersion;
+        private boolean isStarted = false;
+        private boolean isEnded = true;
+        private int endIndex;
+        // the fields below are only touched on the handler thread after started
+        TraceDataUtils.StackAggregator aggregator;
+        private int cursor;
+        private boolean isLost = false;
+        private boolean isReleased = false;
+
+        synchronized void begin(long token, long beginNs, AppMethodBeat.IndexRecord beginRecord) {
+            this.token = token;
+            this.beginNs = beginNs;
+            this.bufferVersion = source.getBufferVersion();
+            this.isEnded = !beginRecord.isValid; // too many records alive, never start
+        }
+
+        synchronized boolean isStarted(long token) {
+            return isStarted && this.token == token;
+        }
+
+        /**
+         * @return 0 if it's started now, the ms to check again if the dispatch is still short, or -1 if there's
+         * no dispatch going on
+         */
+        synchronized long tryStart(long nowNs) {
+            if (isEnded) {
+                return -1;
+            }
+            long delayMs = Constants.STREAMING_STACK_INTERVAL_MS - (nowNs - beginNs) / Constants.TIME_MILLIS_TO_NANO;
+            if (delayMs > 0) {
+                return delayMs;
+            }
+            isStarted = true;
+            // the begin record marks the i of dispatchMessage, which the strict aggregator starts from, so the
+            // cursor is the slot before it
+            int index = beginRecord.index;
+            cursor = index > 0 ? index - 1 : (0 == index ? source.getBufferSize() - 1 : -1);
+            aggregator = source.newAggregator(Constants.STREAMING_STACK_CHUNK_SIZE);
+            return 0;
+        }
+
+        /**
+         * @return whether it has been started, the rest records are left to it then
+         */
+        synchronized boolean end(int endIndex) {
+            isEnded = true;
+            this.endIndex = endIndex;
+            return isStarted;
+        }
+
+        @Override
+        public void run() {
+            if (isReleased) {
+                return;
+            }
+            current = this;
+            boolean isEnded;
+            int end;
+            synchronized (this) {
+                isEnded = this.isEnded;
+                end = this.endIndex;
+            }
+            if (!isEnded) {
+                consume(source.getCurrentIndex());
+                handler.postDelayed(this, Constants.STREAMING_STACK_INTERVAL_MS);
+            } else {
+                handler.removeCallbacks(this);
+                consume(end);
+                isReleased = true;
+                MatrixHandlerThread.getDefaultMainHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        beginRecord.release();
+                    }
+                });
+            }
+        }
+
+        /**
+         * consume the rest till endIndex and take the stack.
+         *
+         * @return false if the records have been overwritten, or nothing could be made of them
+         */
+        boolean getStack(int endIndex, List<MethodItem> result, long endTime) {
+            if (!consume(endIndex)) {
+                return false;
+            }
+            aggregator.toStack(result, endTime);
+            MatrixLog.i(TAG, "[getStack] token:%s records:%s stack:%s", token, aggregator.getRecordCount(), result.size());
+            return !result.isEmpty();
+        }
+
+        /**
+         * feed the records of (cursor, endIndex] in chunks.
+         */
+        boolean consume(int endIndex) {
+            int size = source.getBufferSize();
+            while (!isLost && cursor != endIndex && endIndex >= 0) {
+                int start = cursor + 1 == size ? 0 : cursor + 1;
+                int count = endIndex >= start ? endIndex - start + 1 : size - start + endIndex + 1;
+                int end = (start + Math.min(count, Constants.STREAMING_STACK_CHUNK_SIZE) - 1) % size;
+                long[] data = source.copyData(beginRecord, start, end);
+                // the cursor points into the old buffer after a switch
+                if (null == data || bufferVersion != source.getBufferVersion()) {
+                    MatrixLog.w(TAG, "[consume] the records of token[%s] have been overwritten or moved", token);
+                    isLost = true;
+                    break;
+                }
+                aggregator.feed(data);
+                cursor = end;
+            }
+            return !isLost;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.tencent.matrix.trace.core;
+
+import android.os.Looper;
+
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.util.LockSiteTable;
+
+/**
+ * Measures the monitors of the lock sites instrumented by matrix-gradle-plugin, the probes are called by
+ * {@link AppMethodBeat#lockEnter(int)}, {@link AppMethodBeat#lockAcquired(int)} and
+ * {@link AppMethodBeat#lockExit(int)}, a site is the method id of the method containing the synchronized
+ * block, or of the synchronized method.
+ * <p>
+ * synchronized 代码块：MONITORENTER 前 enter，后 acquired，MONITOREXIT 前 exit；
+ * synchronized 方法：调用处 enter，方法入口 acquired，方法出口 exit。
+ * The time from enter to acquired is the wait for the monitor, and from acquired to exit it's held. Only
+ * the waits over {@link Constants#LOCK_WAIT_THRESHOLD_NS} and the holds over
+ * {@link Constants#LOCK_HOLD_THRESHOLD_NS} are counted, into a {@link LockSiteTable}.
+ * By default only main thread is measured, its state is kept in static fields and nothing is allocated.
+ * The other threads keep theirs in a thread local once all threads are enabled.
+ * </p>
+ */
+public final class LockMonitor {
+
+    private static final long sMainThreadId = Looper.getMainLooper().getThread().getId();
+    private static volatile boolean sEnable = false;
+    private static volatile boolean sAllThreads = false;
+    private static final ProbeState sMainThreadState = new ProbeState();
+    private static final ThreadLocal<ProbeState> sThreadState = new ThreadLocal<>();
+    private static final LockSiteTable sTable = new LockSiteTable(Constants.MAX_LOCK_SITES);
+
+    private LockMonitor() {
+    }
+
+    public static void enable(boolean allThreads) {
+        sAllThreads = allThreads;
+        sEnable = true;
+    }
+
+    public static void disable() {
+        sEnable = false;
+    }
+
+    static boolean isEnable() {
+        return sEnable;
+    }
+
+    /**
+     * @return a copy of the sites recorded since the last flush
+     */
+    public static LockSiteTable.Entry[] flush(int[] dropped) {
+        synchronized (sTable) {
+            dropped[0] = sTable.getDropped();
+            return sTable.flush();
+        }
+    }
+
+    /**
+     * a monitor can't be held across messages, so the holds not exited by an exception thrown out of a
+     * synchronized method are dropped at the beginning of every message.
+     */
+    public static void resetMainThread() {
+        sMainThreadState.enterSite = 0;
+        sMainThreadState.depth = 0;
+    }
+
+    private static ProbeState state() {
+        if (Thread.currentThread().getId() == sMainThreadId) {
+            return sMainThreadState;
+        }
+        if (!sAllThreads) {
+            return null;
+        }
+        ProbeState state = sThreadState.get();
+        if (null == state) {
+            state = new ProbeState();
+            sThreadState.set(state);
+        }
+        return state;
+    }
+
+    static void enter(int site) {
+        ProbeState state = state();
+        if (null == state) {
+            return;
+        }
+        state.enterSite = site;
+        state.enterNs = System.nanoTime();
+    }
+
+    static void acquired(int site) {
+        ProbeState state = state();
+        if (null == state) {
+            return;
+        }
+        long now = System.nanoTime();
+        // a virtual call to a synchronized method may end up in an override without the monitor
+        if (state.enterSite == site) {
+            long waitNs = now - state.enterNs;
+            if (waitNs >= Constants.LOCK_WAIT_THRESHOLD_NS) {
+                synchronized (sTable) {
+                    sTable.recordWait(site, waitNs);
+                }
+            }
+        }
+        state.enterSite = 0;
+        if (state.depth < Constants.MAX_LOCK_DEPTH) {
+            state.sites[state.depth] = site;
+            state.acquiredNs[state.depth] = now;
+        }
+        state.depth++;
+    }
+
+    static void exit(int site) {
+        ProbeState state = state();
+        if (null == state || state.depth <= 0) {
+            return;
+        }
+        int depth = --state.depth;
+        if (depth < Constants.MAX_LOCK_DEPTH && state.sites[depth] == site) {
+            long holdNs = System.nanoTime() - state.acquiredNs[depth];
+            if (holdNs >= Constants.LOCK_HOLD_THRESHOLD_NS) {
+                synchronized (sTable) {
+                    sTable.recordHold(site, holdNs);
+                }
+            }
+        }
+    }
+
+    /**
+     * the pending enter and the stack of the monitors held by a thread.
+     */
+    private static final class ProbeState {
+        int enterSite;
+        long enterNs;
+        int depth;
+        final int[] sites = new int[Constants.MAX_LOCK_DEPTH];
+        final long[] acquiredNs = new long[Constants.MAX_LOCK_DEPTH];
+    }
+}
@@ -2,23 +2,32 @@ package com.tencent.matrix.trace.core;
 
 import android.os.Build;
 import android.os.Looper;
+import android.os.Message;
 import android.os.MessageQueue;
 import android.os.SystemClock;
 import android.support.annotation.CallSuper;
 import android.util.Log;
 import android.util.Printer;
 
+import com.tencent.matrix.trace.util.CopyOnWriteArray;
 import com.tencent.matrix.util.MatrixLog;
 import com.tencent.matrix.util.ReflectUtils;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Objects;
 
 public class LooperMonitor implements MessageQueue.IdleHandler {
 
-    private final HashSet<LooperDispatchListener> listeners = new HashSet<>();
+    private final CopyOnWriteArray<LooperDispatchListener> listeners = new CopyOnWriteArray<>(new LooperDispatchListener[0]);
     private static final String TAG = "Matrix.LooperMonitor";
     private LooperPrinter printer;
+    private LooperObserverProxy observerProxy;
+    private String dispatchLog;
+    private Class<?> dispatchTarget;
     private Looper looper;
     private static final long CHECK_TIME = 60 * 1000L;
     private long lastCheckPrinterTime = 0;
@@ -63,20 +72,42 @@ public class LooperMonitor implements MessageQueue.IdleHandler {
         mainMonitor.removeListener(listener);
     }
 
+    /**
+     * @return the log given to {@link Printer} for the message dispatching in main looper, such as
+     * ">>>>> Dispatching to Handler (android.app.ActivityThread$H) {5b3e8f1} null: 159", it's null with Looper.Observer.
+     */
+    public static String getDispatchLog() {
+        return mainMonitor.dispatchLog;
+    }
+
+    /**
+     * @return the class of target handler of the message just dispatched in main looper, it's only known at the end
+     * of dispatching with Looper.Observer, see {@link #getDispatchLog()} otherwise.
+     */
+    public static Class<?> getDispatchTarget() {
+        return mainMonitor.dispatchTarget;
+    }
+
+    /**
+     * @see #setLooperObserverEnable(boolean)
+     */
+    public static boolean useLooperObserver(boolean enable) {
+        return mainMonitor.setLooperObserverEnable(enable);
+    }
+
+    /**
+     * @return a copy of the listeners
+     */
     public HashSet<LooperDispatchListener> getListeners() {
-        return listeners;
+        return new HashSet<>(Arrays.asList(listeners.get()));
     }
 
     public void addListener(LooperDispatchListener listener) {
-        synchronized (listeners) {
-            listeners.add(listener);
-        }
+        listeners.add(listener);
     }
 
     public void removeListener(LooperDispatchListener listener) {
-        synchronized (listeners) {
-            listeners.remove(listener);
-        }
+        listeners.remove(listener);
     }
 
     public LooperMonitor(Looper looper) {
@@ -93,22 +124,64 @@ public class LooperMonitor implements MessageQueue.IdleHandler {
     @Override
     public boolean queueIdle() {
         if (SystemClock.uptimeMillis() - lastCheckPrinterTime >= CHECK_TIME) {
-            resetPrinter();
+            if (null != observerProxy) {
+                observerProxy.checkInstalled();
+            } else {
+                resetPrinter();
+            }
             lastCheckPrinterTime = SystemClock.uptimeMillis();
         }
         return true;
     }
 
+    /**
+     * observe the dispatching by the hidden Looper.Observer of Android Q and above instead of {@link Printer},
+     * so the framework doesn't build a ">>>>> Dispatching to ..." string for every message. It stays on
+     * {@link Printer} if Looper.Observer isn't accessible. It should be called in the thread of looper.
+     *
+     * @return whether Looper.Observer is in use
+     */
+    public synchronized boolean setLooperObserverEnable(boolean enable) {
+        if (null == looper) {
+            return false;
+        }
+        if (enable && null == observerProxy) {
+            LooperObserverProxy proxy = new LooperObserverProxy();
+            if (proxy.install()) {
+                observerProxy = proxy;
+                dispatchLog = null;
+                if (null != printer) {
+                    looper.setMessageLogging(printer.origin);
+                    printer = null;
+                }
+                // the message in dispatching won't be seen by the new observer, end it now
+                dispatch(false, "");
+            }
+        } else if (!enable && null != observerProxy) {
+            observerProxy.uninstall();
+            observerProxy = null;
+            dispatchTarget = null;
+            resetPrinter();
+            dispatch(false, "");
+        }
+        MatrixLog.i(TAG, "[setLooperObserverEnable] %s enable:%s isLooperObserver:%s", looper.getThread().getName(), enable, null != observerProxy);
+        return null != observerProxy;
+    }
+
     public synchronized void onRelease() {
-        if (printer != null) {
-            synchronized (listeners) {
-                listeners.clear();
+        if (printer != null || observerProxy != null) {
+            listeners.clear();
+            if (null != observerProxy) {
+                MatrixLog.v(TAG, "[onRelease] %s, uninstall Looper.Observer", looper.getThread().getName());
+                observerProxy.uninstall();
+                observerProxy = null;
+            } else {
+                MatrixLog.v(TAG, "[onRelease] %s, origin printer:%s", looper.getThread().getName(), printer.origin);
+                looper.setMessageLogging(printer.origin);
+                printer = null;
             }
-            MatrixLog.v(TAG, "[onRelease] %s, origin printer:%s", looper.getThread().getName(), printer.origin);
-            looper.setMessageLogging(printer.origin);
             removeIdleHandler(looper);
             looper = null;
-            printer = null;
         }
     }
 
@@ -193,6 +266,7 @@ public class LooperMonitor implements MessageQueue.IdleHandler {
             }
 
             if (isValid) {
+                dispatchLog = x;
                 dispatch(x.charAt(0) == '>', x);
             }
 
@@ -200,9 +274,90 @@ public class LooperMonitor implements MessageQueue.IdleHandler {
     }
 
 
+    /**
+     * Implements the hidden android.os.Looper.Observer by {@link Proxy}, which is called around every message
+     * dispatched by any looper without building any string. The observer set before is kept and called first.
+     * <p>
+     * As Looper.sObserver is process-wide, the messages of the other loopers pay for the proxy as well, that is
+     * the array of args and the reflective call of the observer before, see
+     * TraceBenchmarkTest#benchmarkLooperObserverOnOtherLooper. Only the looper monitored goes further.
+     * </p>
+     */
+    class LooperObserverProxy implements InvocationHandler {
+        // Looper#setObserver has been added since Android Q
+        private static final int MIN_SDK = 29;
+        private Class<?> observerClass;
+        private Method setObserver;
+        private Object proxy;
+        private Object origin;
+
+        boolean install() {
+            if (Build.VERSION.SDK_INT < MIN_SDK) {
+                return false;
+            }
+            try {
+                observerClass = Class.forName("android.os.Looper$Observer");
+                setObserver = Looper.class.getDeclaredMethod("setObserver", observerClass);
+                setObserver.setAccessible(true);
+                origin = ReflectUtils.get(Looper.class, "sObserver");
+                proxy = Proxy.newProxyInstance(observerClass.getClassLoader(), new Class[]{observerClass}, this);
+                setObserver.invoke(null, proxy);
+                return true;
+            } catch (Throwable e) {
+                MatrixLog.e(TAG, "[install] Looper.Observer isn't accessible, %s", e);
+                return false;
+            }
+        }
+
+        void uninstall() {
+            try {
+                if (ReflectUtils.get(Looper.class, "sObserver") == proxy) {
+                    setObserver.invoke(null, origin);
+                }
+            } catch (Throwable e) {
+                MatrixLog.e(TAG, "[uninstall] %s", e);
+            }
+        }
+
+        /**
+         * set it again if it was replaced by someone else, who is called first then.
+         */
+        void checkInstalled() {
+            try {
+                Object current = ReflectUtils.get(Looper.class, "sObserver");
+                if (current != proxy) {
+                    MatrixLog.w(TAG, "Looper.Observer[%s] was replaced by other[%s]!", proxy, current);
+                    origin = current;
+                    setObserver.invoke(null, proxy);
+                }
+            } catch (Throwable e) {
+                MatrixLog.e(TAG, "[checkInstalled] %s", e);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() != observerClass) {
+                return method.invoke(this, args);//equals, hashCode and toString
+            }
+            Object token = null != origin ? method.invoke(origin, args) : null;
+            if (Looper.myLooper() == looper) {//其他 looper 的消息到此为止
+                if ("messageDispatchStarting".equals(method.getName())) {
+                    dispatch(true, "");
+                } else {
+                    // messageDispatched or dispatchingThrewException
+                    Message msg = (Message) args[1];
+                    dispatchTarget = null == msg.getTarget() ? null : msg.getTarget().getClass();
+                    dispatch(false, "");
+                }
+            }
+            return token;
+        }
+    }
+
     private void dispatch(boolean isBegin, String log) {//通过该方法就会通知给所有的LooperDispatchListener当前是Looper刚开始分发还是已经分发完成
 
-        for (LooperDispatchListener listener : listeners) {
+        for (LooperDispatchListener listener : listeners.get()) {
             if (listener.isValid()) {
                 if (isBegin) {
                     if (!listener.isHasDispatchStart) {
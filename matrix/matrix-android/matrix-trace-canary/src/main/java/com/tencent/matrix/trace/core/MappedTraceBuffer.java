@@ -0,0 +1,220 @@
+package com.tencent.matrix.trace.core;
+
+import android.os.Process;
+
+import com.tencent.matrix.util.MatrixLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps the records of main thread in a memory-mapped file, so they survive when the process is killed or
+ * crashes, as the dirty pages of a shared mapping are written back by the kernel anyway.
+ * <p>
+ * A write is a plain store into the mapped memory plus the store of the write index into the header. The
+ * header also keeps the diff time baseline and the index of the dispatch in progress, which is all that's
+ * needed to rebuild the stack of the message the process died in, see {@link #recover(File)}.
+ * </p>
+ */
+public final class MappedTraceBuffer extends TraceBuffer {
+
+    private static final String TAG = "Matrix.MappedTraceBuffer";
+    private static final String LAST_SUFFIX = ".last";
+    private static final long MAGIC = 0x4D545241434501L;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_SIZE = 1;
+    private static final int HEADER_DIFF_TIME = 2;
+    private static final int HEADER_INDEX = 3;
+    private static final int HEADER_DISPATCH_INDEX = 4;
+    private static final int HEADER_START_TIME = 5;
+    private static final int HEADER_PID = 6;
+    private static final int HEADER_PRECISE_CLOCK = 7;
+    private static final int HEADER_LENGTH = 8;
+
+    private final LongBuffer buffer;
+
+    private MappedTraceBuffer(LongBuffer buffer, int size) {
+        super(size);
+        this.buffer = buffer;
+    }
+
+    /**
+     * map the file as a new buffer, the one of last process is kept aside for {@link #recover(File)}.
+     */
+    static MappedTraceBuffer create(File file, int size) throws IOException {
+        File parent = file.getParentFile();
+        if (null != parent && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("can't create dir " + parent);
+        }
+        if (file.exists() && !file.renameTo(new File(file.getPath() + LAST_SUFFIX))) {
+            MatrixLog.w(TAG, "[create] can't keep the buffer of last process, delete it:%s", file.delete());
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (HEADER_LENGTH + (long) size) * 8);
+            LongBuffer buffer = mapped.order(ByteOrder.nativeOrder()).asLongBuffer();
+            buffer.put(HEADER_SIZE, size);
+            buffer.put(HEADER_DIFF_TIME, AppMethodBeat.getDiffTime());
+            buffer.put(HEADER_INDEX, -1);
+            buffer.put(HEADER_DISPATCH_INDEX, -1);
+            buffer.put(HEADER_START_TIME, System.currentTimeMillis());
+            buffer.put(HEADER_PID, Process.myPid());
+            buffer.put(HEADER_PRECISE_CLOCK, AppMethodBeat.isPreciseClock() ? 1 : 0);
+            buffer.put(HEADER_MAGIC, MAGIC);
+            return new MappedTraceBuffer(buffer, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    int write(int index, int methodId, boolean isIn, long time) {
+        buffer.put(HEADER_LENGTH + index, merge(methodId, isIn, time));
+        buffer.put(HEADER_INDEX, index);
+        if (methodId == AppMethodBeat.METHOD_ID_DISPATCH) {
+            buffer.put(HEADER_DISPATCH_INDEX, isIn ? index : -1);
+        }
+        return index;
+    }
+
+    @Override
+    long get(int index) {
+        return buffer.get(HEADER_LENGTH + index);
+    }
+
+    /**
+     * read the buffer left by last process, it's deleted afterwards.
+     *
+     * @param file the same file given to {@link AppMethodBeat#useMappedTraceBuffer(File, int)}
+     * @return null if last process didn't die while dispatching a message, or the file is of current process
+     */
+    public static Recovery recover(File file) {
+        File last = new File(file.getPath() + LAST_SUFFIX);
+        if (!last.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        boolean isCurrentProcess = false;
+        try {
+            randomAccessFile = new RandomAccessFile(last, "r");
+            long length = randomAccessFile.length();
+            if (length < HEADER_LENGTH * 8) {
+                return null;
+            }
+            LongBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+            if (buffer.get(HEADER_MAGIC) != MAGIC) {
+                MatrixLog.w(TAG, "[recover] invalid magic, ignore it");
+                return null;
+            }
+            if (buffer.get(HEADER_PID) == Process.myPid()) {//仍在写入的是当前进程的 buffer，不是上个进程留下的
+                isCurrentProcess = true;
+                MatrixLog.w(TAG, "[recover] the buffer is of current process, ignore it");
+                return null;
+            }
+            long size = buffer.get(HEADER_SIZE);
+            int index = (int) buffer.get(HEADER_INDEX);
+            int dispatchIndex = (int) buffer.get(HEADER_DISPATCH_INDEX);
+            if (size <= 0 || HEADER_LENGTH + size > length / 8 || index < 0 || index >= size || dispatchIndex >= size) {
+                MatrixLog.w(TAG, "[recover] invalid header, size:%s index:%s dispatchIndex:%s", size, index, dispatchIndex);
+                return null;
+            }
+            if (dispatchIndex < 0) {
+                MatrixLog.i(TAG, "[recover] last process[%s] died out of dispatching", buffer.get(HEADER_PID));
+                return null;
+            }
+            int start = dispatchIndex;
+            long begin = buffer.get(HEADER_LENGTH + dispatchIndex);
+            if (begin >= 0 || ((begin >> 43) & 0xFFFFF) != AppMethodBeat.METHOD_ID_DISPATCH) {
+                // the dispatch is too long that its begin has been overwritten
+                start = index + 1 == size ? 0 : index + 1;
+            }
+            int count = (int) (index >= start ? index - start + 1 : size - start + index + 1);
+            long[] data = new long[count];
+            boolean isPreciseClock = buffer.get(HEADER_PRECISE_CLOCK) == 1;
+            for (int i = 0, j = start; i < count; i++) {
+                data[i] = convertClock(buffer.get(HEADER_LENGTH + j), isPreciseClock);
+                if (++j == size) {
+                    j = 0;
+                }
+            }
+            Recovery recovery = new Recovery(data, (int) buffer.get(HEADER_PID), buffer.get(HEADER_START_TIME), buffer.get(HEADER_DIFF_TIME));
+            MatrixLog.i(TAG, "[recover] %s", recovery);
+            return recovery;
+        } catch (IOException e) {
+            MatrixLog.e(TAG, "[recover] %s", e.toString());
+            return null;
+        } finally {
+            if (null != randomAccessFile) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (!isCurrentProcess && !last.delete()) {
+                MatrixLog.w(TAG, "[recover] can't delete %s", last);
+            }
+        }
+    }
+
+    /**
+     * convert the time of a record from last process to the clock of current one
+     */
+    private static long convertClock(long trueId, boolean isPreciseClock) {
+        if (isPreciseClock == AppMethodBeat.isPreciseClock()) {
+            return trueId;
+        }
+        long time = trueId & 0x7FFFFFFFFFFL;
+        time = isPreciseClock ? time / 1000 : (time * 1000) & 0x7FFFFFFFFFFL;
+        return (trueId & ~0x7FFFFFFFFFFL) | time;
+    }
+
+    /**
+     * the records from the begin of the dispatch which last process died in.
+     */
+    public static final class Recovery {
+        public final long[] data;
+        public final int pid;
+        /**
+         * System.currentTimeMillis() when last process started recording
+         */
+        public final long startTime;
+        /**
+         * the diff time baseline of last process, the time of records is relative to it
+         */
+        public final long diffTime;
+
+        Recovery(long[] data, int pid, long startTime, long diffTime) {
+            this.data = data;
+            this.pid = pid;
+            this.startTime = startTime;
+            this.diffTime = diffTime;
+        }
+
+        /**
+         * @return time of the last record in the unit of current process, relative to {@link #diffTime}
+         */
+        public long getLastTime() {
+            return data.length == 0 ? 0 : data[data.length - 1] & 0x7FFFFFFFFFFL;
+        }
+
+        /**
+         * @return time from the begin of the dispatch to the last record in milliseconds
+         */
+        public long getCost() {
+            return data.length == 0 ? 0 : AppMethodBeat.recordTimeToMillis(getLastTime() - (data[0] & 0x7FFFFFFFFFFL));
+        }
+
+        @Override
+        public String toString() {
+            return "pid:" + pid + ",\tstartTime:" + startTime + ",\tlength:" + data.length + ",\tcost:" + getCost();
+        }
+    }
+}
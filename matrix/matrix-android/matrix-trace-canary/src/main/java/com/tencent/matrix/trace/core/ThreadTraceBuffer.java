@@ -0,0 +1,231 @@
+package com.tencent.matrix.trace.core;
+
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.util.MatrixLog;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single-writer ring buffer of method records for one non-main thread.
+ * <p>
+ * Only the owner thread writes, so {@link #record(int, boolean, long)} needs no lock or CAS: the slot is
+ * stored first and the write count is then published with an ordered store. Readers take a snapshot by
+ * copying between two reads of the write count and drop whatever may have been overwritten meanwhile.
+ * </p>
+ * Buffers are allocated lazily per thread from a fixed budget, and the slot of a dead thread is reused by
+ * the next thread that needs one.
+ */
+public final class ThreadTraceBuffer {
+
+    private static final String TAG = "Matrix.ThreadTraceBuffer";
+
+
+    private static ThreadTraceBuffer[] sBuffers = new ThreadTraceBuffer[0];
+    private static boolean isSetup = false;
+    private static int sBufferSize;
+    private static final Object sLock = new Object();
+
+    private final long[] buffer;
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong generation = new AtomicLong(0);
+    private int index = 0;
+    private volatile long threadId;
+    private volatile String threadName;
+    private WeakReference<Thread> owner;
+    // for an empty one, when its thread tries to get a buffer again
+    final long retryTime;
+
+    private ThreadTraceBuffer(int size, long retryTime) {
+        this.buffer = new long[size];
+        this.retryTime = retryTime;
+    }
+
+    /**
+     * only the first call takes effect, because the threads keep the buffers they got.
+     *
+     * @param bufferSize   records of each thread buffer
+     * @param bufferBudget records of all thread buffers
+     */
+    static void setup(int bufferSize, int bufferBudget) {
+        synchronized (sLock) {
+            if (isSetup) {
+                return;
+            }
+            isSetup = true;
+            sBufferSize = Math.max(0, bufferSize);
+            int count = sBufferSize == 0 ? 0 : Math.max(0, bufferBudget / sBufferSize);
+            sBuffers = new ThreadTraceBuffer[count];
+            MatrixLog.i(TAG, "[setup] bufferSize:%s budget:%s maxThreads:%s", sBufferSize, bufferBudget, count);
+        }
+    }
+
+    static void release() {
+        synchronized (sLock) {
+            sBuffers = new ThreadTraceBuffer[0];
+        }
+    }
+
+    /**
+     * bind a buffer to current thread, called from the slow path, once per thread unless the budget is
+     * exhausted, the thread tries again at retryTime then, as the buffer of a dead thread can be reused.
+     *
+     * @param time the record time now
+     * @return an empty buffer if the budget is exhausted, see {@link #isEmpty()}
+     */
+    static ThreadTraceBuffer obtain(Thread thread, long time) {
+        synchronized (sLock) {
+            ThreadTraceBuffer reuse = null;
+            for (int i = 0; i < sBuffers.length; i++) {
+                ThreadTraceBuffer traceBuffer = sBuffers[i];
+                if (null == traceBuffer) {
+                    traceBuffer = sBuffers[i] = new ThreadTraceBuffer(sBufferSize, 0);
+                    traceBuffer.bind(thread);
+                    return traceBuffer;
+                }
+                if (null == reuse && !traceBuffer.isOwnerAlive()) {
+                    reuse = traceBuffer;
+                }
+            }
+            if (null != reuse) {
+                MatrixLog.i(TAG, "[obtain] reuse buffer of dead thread[%s] for thread[%s]", reuse.threadName, thread.getName());
+                reuse.bind(thread);
+                return reuse;
+            }
+            return new ThreadTraceBuffer(0, time + AppMethodBeat.millisToRecordTime(Constants.THREAD_TRACE_RETRY_MS));
+        }
+    }
+
+    /**
+     * @return the buffers which have been bound to a thread
+     */
+    static ThreadTraceBuffer[] snapshot() {
+        synchronized (sLock) {
+            int size = 0;
+            for (ThreadTraceBuffer traceBuffer : sBuffers) {
+                if (null != traceBuffer) {
+                    size++;
+                }
+            }
+            ThreadTraceBuffer[] result = new ThreadTraceBuffer[size];
+            int i = 0;
+            for (ThreadTraceBuffer traceBuffer : sBuffers) {
+                if (null != traceBuffer) {
+                    result[i++] = traceBuffer;
+                }
+            }
+            return result;
+        }
+    }
+
+    static ThreadTraceBuffer find(long threadId) {
+        synchronized (sLock) {
+            for (ThreadTraceBuffer traceBuffer : sBuffers) {
+                if (null != traceBuffer && traceBuffer.threadId == threadId) {
+                    return traceBuffer;
+                }
+            }
+            return null;
+        }
+    }
+
+    boolean isEmpty() {
+        return buffer.length == 0;
+    }
+
+    private void bind(Thread thread) {
+        generation.incrementAndGet();
+        count.set(0);
+        index = 0;
+        threadId = thread.getId();
+        threadName = thread.getName();
+        owner = new WeakReference<>(thread);
+    }
+
+    private boolean isOwnerAlive() {
+        Thread thread = owner.get();
+        return null != thread && thread.isAlive();
+    }
+
+    /**
+     * only called by the owner thread.
+     */
+    void record(int methodId, boolean isIn, long time) {
+        long trueId = 0L;
+        if (isIn) {
+            trueId |= 1L << 63;
+        }
+        trueId |= (long) methodId << 43;
+        trueId |= time & 0x7FFFFFFFFFFL;
+        buffer[index] = trueId;
+        if (++index == buffer.length) {
+            index = 0;
+        }
+        count.lazySet(count.get() + 1);
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * copy the records between startMs and endMs (uptime) out of this buffer, it's safe to be called from
+     * any thread while the owner keeps writing.
+     */
+    public long[] copyData(long startMs, long endMs) {
+        long current = System.currentTimeMillis();
+        long[] data = new long[0];
+        try {
+            long gen = generation.get();
+            long end = count.get();
+            long begin = Math.max(0, end - buffer.length);
+            long[] tmp = new long[(int) (end - begin)];
+            for (long seq = begin; seq < end; seq++) {
+                tmp[(int) (seq - begin)] = buffer[(int) (seq % buffer.length)];
+            }
+            long after = count.get();
+            if (gen != generation.get() || after < end) {
+                MatrixLog.w(TAG, "[copyData] thread[%s] buffer was rebound while copying", threadName);
+                return data;
+            }
+            // the slot of seq 'after' may be under writing, so drop everything it could have overwritten
+            int from = (int) Math.max(0, after - buffer.length + 1 - begin);
+            long startTime = AppMethodBeat.millisToRecordTime(startMs - AppMethodBeat.getDiffTime());
+            long endTime = AppMethodBeat.millisToRecordTime(endMs - AppMethodBeat.getDiffTime());
+            int first = -1;
+            int last = -1;
+            for (int i = from; i < tmp.length; i++) {
+                long time = tmp[i] & 0x7FFFFFFFFFFL;
+                if (time < startTime) {
+                    continue;
+                }
+                if (time > endTime) {
+                    break;
+                }
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+            if (first >= 0) {
+                data = new long[last - first + 1];
+                System.arraycopy(tmp, first, data, 0, data.length);
+            }
+            return data;
+        } catch (OutOfMemoryError e) {
+            MatrixLog.e(TAG, e.toString());
+            return data;
+        } finally {
+            MatrixLog.i(TAG, "[copyData] thread[%s:%s] [%s:%s] length:%s cost:%sms", threadId, threadName, startMs, endMs, data.length, System.currentTimeMillis() - current);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "threadId:" + threadId + ",\tthreadName:" + threadName + ",\tcount:" + count.get();
+    }
+}
@@ -0,0 +1,78 @@
+package com.tencent.matrix.trace.core;
+
+/**
+ * The storage of main thread records used by {@link AppMethodBeat} instead of the plain long[].
+ * <p>
+ * Slots are addressed by the same ring index as the long[] so that {@link AppMethodBeat.IndexRecord}
+ * keeps working, but an implementation may consume more than one slot for a record, see
+ * {@link #write(int, int, boolean, long)}. Records read back are always in the long format of
+ * {@link AppMethodBeat}, so {@link com.tencent.matrix.trace.util.TraceDataUtils} needs nothing special.
+ * </p>
+ * Only the main thread writes.
+ */
+abstract class TraceBuffer {
+
+    /**
+     * the slot holds no record, methodId 0xFFFFF is never recorded by {@link AppMethodBeat}.
+     */
+    static final long INVALID = -1L;
+
+    protected final int size;
+
+    TraceBuffer(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @return the count of slots
+     */
+    final int size() {
+        return size;
+    }
+
+    /**
+     * store a record at the given index if possible.
+     *
+     * @return the index where the record has been stored actually, the slots in between are overwritten
+     */
+    abstract int write(int index, int methodId, boolean isIn, long time);
+
+    /**
+     * @return the record in long format, or {@link #INVALID}
+     */
+    abstract long get(int index);
+
+    /**
+     * copy the records of [start, end] out, the range may wrap around the end of buffer.
+     */
+    long[] copy(int start, int end) {
+        int length = end >= start ? end - start + 1 : size - start + end + 1;
+        long[] data = new long[length];
+        int count = 0;
+        for (int i = 0, index = start; i < length; i++) {
+            long record = get(index);
+            if (record != INVALID) {
+                data[count++] = record;
+            }
+            if (++index == size) {
+                index = 0;
+            }
+        }
+        if (count == length) {
+            return data;
+        }
+        long[] result = new long[count];
+        System.arraycopy(data, 0, result, 0, count);
+        return result;
+    }
+
+    static long merge(int methodId, boolean isIn, long time) {
+        long trueId = 0L;
+        if (isIn) {
+            trueId |= 1L << 63;
+        }
+        trueId |= (long) methodId << 43;
+        trueId |= time & 0x7FFFFFFFFFFL;
+        return trueId;
+    }
+}
@@ -1,20 +1,26 @@
 package com.tencent.matrix.trace.core;
 
+import android.app.Application;
+import android.content.Context;
+import android.hardware.display.DisplayManager;
 import android.os.Build;
+import android.os.Handler;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.view.Choreographer;
+import android.view.Display;
 
+import com.tencent.matrix.Matrix;
 import com.tencent.matrix.trace.config.TraceConfig;
 import com.tencent.matrix.trace.constants.Constants;
 import com.tencent.matrix.trace.listeners.LooperObserver;
+import com.tencent.matrix.trace.util.CopyOnWriteArray;
 import com.tencent.matrix.trace.util.Utils;
 import com.tencent.matrix.util.MatrixLog;
 import com.tencent.matrix.util.ReflectUtils;
 
 import java.lang.reflect.Method;
 import java.util.Arrays;
-import java.util.HashSet;
 
 public class UIThreadMonitor implements BeatLifecycle, Runnable {
 
@@ -22,7 +28,7 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
     private static final String ADD_CALLBACK = "addCallbackLocked";
     private volatile boolean isAlive = false;
     private long[] dispatchTimeMs = new long[4];
-    private final HashSet<LooperObserver> observers = new HashSet<>();
+    private final CopyOnWriteArray<LooperObserver> observers = new CopyOnWriteArray<>(new LooperObserver[0]);
     private volatile long token = 0L;
     private boolean isVsyncFrame = false;
     // The time of the oldest input event
@@ -67,9 +73,13 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
     private Method addTraversalQueue;
     private Method addInputQueue;
     private Method addAnimationQueue;
+    private Method[] addQueueMethods;
+    // the arguments of addCallbackLocked to add the callback of each type at the header, built once in init
+    private Object[][] headerCallbackArgs;
+    private static final Long HEADER_DUE_TIME = -1L;
     private Choreographer choreographer;
     private Object vsyncReceiver;
-    private long frameIntervalNanos = 16666666;
+    private volatile long frameIntervalNanos = 16666666;
     private int[] queueStatus = new int[CALLBACK_LAST + 1];
     private boolean[] callbackExist = new boolean[CALLBACK_LAST + 1]; // ABA
     private long[] queueCost = new long[CALLBACK_LAST + 1];
@@ -98,6 +108,7 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
             addInputQueue = ReflectUtils.reflectMethod(callbackQueues[CALLBACK_INPUT], ADD_CALLBACK, long.class, Object.class, Object.class);//反射获得 callbackQueues 中第一个 CallbackQueue对象的 addCallbackLocked 的方法, 第一个 CallbackQueue 是处理 input事件的
             addAnimationQueue = ReflectUtils.reflectMethod(callbackQueues[CALLBACK_ANIMATION], ADD_CALLBACK, long.class, Object.class, Object.class);//反射获得 callbackQueues 中第二个 CallbackQueue对象的 addCallbackLocked 的方法, 第二个 CallbackQueue 是处理 动画的
             addTraversalQueue = ReflectUtils.reflectMethod(callbackQueues[CALLBACK_TRAVERSAL], ADD_CALLBACK, long.class, Object.class, Object.class);//反射获得 callbackQueues 中第三个 CallbackQueue对象的 addCallbackLocked 的方法, 第三个 CallbackQueue 是绘制完 用于回调的
+            prepareHeaderCallbacks();
         }
         vsyncReceiver = ReflectUtils.reflectObject(choreographer, "mDisplayEventReceiver", null);
         frameIntervalNanos = ReflectUtils.reflectObject(choreographer, "mFrameIntervalNanos", Constants.DEFAULT_FRAME_DURATION);// 反射获得Choreographer记录的mFrameIntervalNanos变量并记录到自己的成员变量中
@@ -121,6 +132,7 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
             }
 
         });
+        registerDisplayListener();
         this.isInit = true;
         MatrixLog.i(TAG, "[UIThreadMonitor] %s %s %s %s %s %s frameIntervalNanos:%s", callbackQueueLock == null, callbackQueues == null,
                 addInputQueue == null, addTraversalQueue == null, addAnimationQueue == null, vsyncReceiver == null, frameIntervalNanos);
@@ -137,6 +149,27 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
         }
     }
 
+    /**
+     * The callbacks added every frame never change, so the method and arguments of addCallbackLocked are
+     * resolved once, then adding one is a single {@link Method#invoke(Object, Object...)} without boxing the
+     * due time or allocating the varargs array. If any of them is missing, {@link #addFrameCallback} falls back
+     * to building the arguments each time.
+     */
+    private void prepareHeaderCallbacks() {
+        Method[] methods = new Method[]{addInputQueue, addAnimationQueue, addTraversalQueue};
+        Runnable[] callbacks = new Runnable[]{this, animationCallback, traversalCallback};
+        Object[][] args = new Object[CALLBACK_LAST + 1][];
+        for (int type = CALLBACK_INPUT; type <= CALLBACK_LAST; type++) {
+            if (null == methods[type] || null == callbackQueues[type]) {
+                MatrixLog.w(TAG, "[prepareHeaderCallbacks] type %s is missing, fall back to building arguments each frame", type);
+                return;
+            }
+            args[type] = new Object[]{HEADER_DUE_TIME, callbacks[type], null};
+        }
+        addQueueMethods = methods;
+        headerCallbackArgs = args;
+    }
+
     private synchronized void addFrameCallback(int type, Runnable callback, boolean isAddHeader) {
         if (callbackExist[type]) {
             MatrixLog.w(TAG, "[addFrameCallback] this type %s callback has exist! isAddHeader:%s", type, isAddHeader);
@@ -148,6 +181,15 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
             return;
         }
         try {
+            Object[][] headerArgs = headerCallbackArgs;
+            if (isAddHeader && null != headerArgs && headerArgs[type][1] == callback) {
+                // 预先构建好的参数，每帧不再装箱和分配数组
+                synchronized (callbackQueueLock) {
+                    addQueueMethods[type].invoke(callbackQueues[type], headerArgs[type]);
+                    callbackExist[type] = true;
+                }
+                return;
+            }
             synchronized (callbackQueueLock) {//和 Choreographer 中使用相同的 锁对象 都是 mLock
                 Method method = null;
                 switch (type) {
@@ -171,23 +213,74 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
         }
     }
 
+    /**
+     * @return the frame interval of the current refresh rate, it's updated when the display mode changes
+     */
     public long getFrameIntervalNanos() {
         return frameIntervalNanos;
     }
 
+    /**
+     * Choreographer reads the refresh rate once when created before Android S, so on the devices switching
+     * between 60/90/120Hz its mFrameIntervalNanos may be stale, the interval is taken from the display then.
+     */
+    private void registerDisplayListener() {
+        if (!Matrix.isInstalled()) {
+            return;
+        }
+        Application application = Matrix.with().getApplication();
+        if (null == application) {
+            return;
+        }
+        try {
+            final DisplayManager displayManager = (DisplayManager) application.getSystemService(Context.DISPLAY_SERVICE);
+            if (null == displayManager) {
+                return;
+            }
+            displayManager.registerDisplayListener(new DisplayManager.DisplayListener() {
+                @Override
+                public void onDisplayAdded(int displayId) {
+                }
+
+                @Override
+                public void onDisplayRemoved(int displayId) {
+                }
+
+                @Override
+                public void onDisplayChanged(int displayId) {
+                    if (displayId == Display.DEFAULT_DISPLAY) {
+                        updateFrameIntervalNanos(displayManager.getDisplay(displayId));
+                    }
+                }
+            }, new Handler(Looper.getMainLooper()));
+            updateFrameIntervalNanos(displayManager.getDisplay(Display.DEFAULT_DISPLAY));
+        } catch (Exception e) {
+            MatrixLog.e(TAG, "[registerDisplayListener] %s", e.toString());
+        }
+    }
+
+    private void updateFrameIntervalNanos(Display display) {
+        long interval = ReflectUtils.reflectObject(choreographer, "mFrameIntervalNanos", frameIntervalNanos);
+        float refreshRate = null == display ? 0 : display.getRefreshRate();
+        if (refreshRate >= 1) {
+            interval = (long) (Constants.TIME_SECOND_TO_NANO / refreshRate);
+        }
+        if (interval > 0 && interval != frameIntervalNanos) {
+            MatrixLog.i(TAG, "[updateFrameIntervalNanos] %sns -> %sns refreshRate:%s", frameIntervalNanos, interval, refreshRate);
+            frameIntervalNanos = interval;
+        }
+    }
+
     public void addObserver(LooperObserver observer) {
         if (!isAlive) {
             onStart();
         }
-        synchronized (observers) {
-            observers.add(observer);
-        }
+        observers.add(observer);
     }
 
     public void removeObserver(LooperObserver observer) {
         synchronized (observers) {
-            observers.remove(observer);
-            if (observers.isEmpty()) {
+            if (observers.remove(observer) && observers.isEmpty()) {
                 onStop();
             }
         }
@@ -198,11 +291,9 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
         dispatchTimeMs[2] = SystemClock.currentThreadTimeMillis();// 记录 当前线程时间
         AppMethodBeat.i(AppMethodBeat.METHOD_ID_DISPATCH);// 调用 i 方法
 
-        synchronized (observers) {
-            for (LooperObserver observer : observers) {
-                if (!observer.isDispatchBegin()) {//回调 所有 LooperObserver 的 dispatchBegin 方法
-                    observer.dispatchBegin(dispatchTimeMs[0], dispatchTimeMs[2], token);
-                }
+        for (LooperObserver observer : observers.get()) {
+            if (!observer.isDispatchBegin()) {//回调 所有 LooperObserver 的 dispatchBegin 方法
+                observer.dispatchBegin(dispatchTimeMs[0], dispatchTimeMs[2], token);
             }
         }
         if (config.isDevEnv()) {
@@ -246,11 +337,9 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
 
         long endNs = System.nanoTime();//dispatch 结束时间
 
-        synchronized (observers) {
-            for (LooperObserver observer : observers) { //回调 所有 LooperObserver 的 doFrame 方法
-                if (observer.isDispatchBegin()) {
-                    observer.doFrame(AppMethodBeat.getVisibleScene(), startNs, endNs, isVsyncFrame, intendedFrameTimeNs, queueCost[CALLBACK_INPUT], queueCost[CALLBACK_ANIMATION], queueCost[CALLBACK_TRAVERSAL]);
-                }
+        for (LooperObserver observer : observers.get()) { //回调 所有 LooperObserver 的 doFrame 方法
+            if (observer.isDispatchBegin()) {
+                observer.doFrame(AppMethodBeat.getVisibleScene(), startNs, endNs, isVsyncFrame, intendedFrameTimeNs, queueCost[CALLBACK_INPUT], queueCost[CALLBACK_ANIMATION], queueCost[CALLBACK_TRAVERSAL]);
             }
         }
 
@@ -259,11 +348,9 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
 
         AppMethodBeat.o(AppMethodBeat.METHOD_ID_DISPATCH);
 
-        synchronized (observers) {
-            for (LooperObserver observer : observers) {// 回调 所有 LooperObserver的 dispatchEnd 方法
-                if (observer.isDispatchBegin()) {
-                    observer.dispatchEnd(dispatchTimeMs[0], dispatchTimeMs[2], dispatchTimeMs[1], dispatchTimeMs[3], token, isVsyncFrame);
-                }
+        for (LooperObserver observer : observers.get()) {// 回调 所有 LooperObserver的 dispatchEnd 方法
+            if (observer.isDispatchBegin()) {
+                observer.dispatchEnd(dispatchTimeMs[0], dispatchTimeMs[2], dispatchTimeMs[1], dispatchTimeMs[3], token, isVsyncFrame);
             }
         }
         this.isVsyncFrame = false;
@@ -304,6 +391,24 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
         }
     }
 
+    private final Runnable animationCallback = new Runnable() {
+
+        @Override
+        public void run() {
+            doQueueEnd(CALLBACK_INPUT);//input 结束
+            doQueueBegin(CALLBACK_ANIMATION);//animation 开始
+        }
+    };
+
+    private final Runnable traversalCallback = new Runnable() {
+
+        @Override
+        public void run() {
+            doQueueEnd(CALLBACK_ANIMATION);//animation 结束
+            doQueueBegin(CALLBACK_TRAVERSAL);//traversal 开始
+        }
+    };
+
     @Override
     public void run() {
         final long start = System.nanoTime();
@@ -311,23 +416,9 @@ public class UIThreadMonitor implements BeatLifecycle, Runnable {
             doFrameBegin(token);
             doQueueBegin(CALLBACK_INPUT);//input开始
 
-            addFrameCallback(CALLBACK_ANIMATION, new Runnable() {
+            addFrameCallback(CALLBACK_ANIMATION, animationCallback, true);
 
-                @Override
-                public void run() {
-                    doQueueEnd(CALLBACK_INPUT);//input 结束
-                    doQueueBegin(CALLBACK_ANIMATION);//animation 开始
-                }
-            }, true);
-
-            addFrameCallback(CALLBACK_TRAVERSAL, new Runnable() {
-
-                @Override
-                public void run() {
-                    doQueueEnd(CALLBACK_ANIMATION);//animation 结束
-                    doQueueBegin(CALLBACK_TRAVERSAL);//traversal 开始
-                }
-            }, true);
+            addFrameCallback(CALLBACK_TRAVERSAL, traversalCallback, true);
 
         } finally {
             if (config.isDevEnv()) {
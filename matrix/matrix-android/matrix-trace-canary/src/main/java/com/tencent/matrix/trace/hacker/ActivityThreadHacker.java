@@ -19,6 +19,7 @@ package com.tencent.matrix.trace.hacker;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
 import android.os.SystemClock;
 
 import com.tencent.matrix.trace.core.AppMethodBeat;
@@ -36,12 +37,18 @@ public class ActivityThreadHacker {
     private static final String TAG = "Matrix.ActivityThreadHacker";
     private static long sApplicationCreateBeginTime = 0L;
     private static long sApplicationCreateEndTime = 0L;
+    private static long sProviderInstalledTime = 0L;
     private static long sLastLaunchActivityTime = 0L;
     public static AppMethodBeat.IndexRecord sLastLaunchActivityMethodIndex = new AppMethodBeat.IndexRecord();
     public static AppMethodBeat.IndexRecord sApplicationCreateBeginMethodIndex = new AppMethodBeat.IndexRecord();
+    public static AppMethodBeat.IndexRecord sProviderInstalledMethodIndex = new AppMethodBeat.IndexRecord();
+    public static AppMethodBeat.IndexRecord sApplicationCreateEndMethodIndex = new AppMethodBeat.IndexRecord();
     public static int sApplicationCreateScene = Integer.MIN_VALUE;
     private static final HashSet<IApplicationCreateListener> listeners = new HashSet<>();
     private static boolean sIsCreatedByLaunchActivity = false;
+    // the startup phases are only known to be on or off once StartupTracer is alive
+    private static boolean sIsStartupPhaseConfigured = false;
+    private static boolean sIsStartupPhaseEnable = false;
 
     public static void addListener(IApplicationCreateListener listener) {
         synchronized (listeners) {
@@ -93,6 +100,58 @@ public class ActivityThreadHacker {
         return ActivityThreadHacker.sApplicationCreateBeginTime;
     }
 
+    /**
+     * @return the uptime the process was forked, 0 if it's unknown below N
+     */
+    public static long getProcessStartTime() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Process.getStartUptimeMillis();
+        }
+        return 0L;
+    }
+
+    /**
+     * @return the uptime the last ContentProvider of the process was installed, that's when Application.onCreate
+     * begins. 0 if the process doesn't install {@link StartupProbeProvider}.
+     */
+    public static long getProviderInstalledTime() {
+        return sProviderInstalledTime;
+    }
+
+    public static long getApplicationCreateEndTime() {
+        return sApplicationCreateEndTime;
+    }
+
+    /**
+     * called by {@link StartupProbeProvider} in main thread.
+     */
+    static void onProviderInstalled() {
+        if (0 == sProviderInstalledTime && 0 == sApplicationCreateEndTime) {
+            sProviderInstalledTime = SystemClock.uptimeMillis();
+            if (isStartupPhaseMarking()) {
+                sProviderInstalledMethodIndex = AppMethodBeat.getInstance().maskIndex("ProviderInstalledMethodIndex");
+            }
+        }
+    }
+
+    /**
+     * called by StartupTracer in main thread once its config is known. the index records of the phases are only
+     * marked when it's enabled, the ones marked before, as the provider is installed ahead of Matrix, are
+     * released at once if it's disabled.
+     */
+    public static void setStartupPhaseEnable(boolean enable) {
+        sIsStartupPhaseConfigured = true;
+        sIsStartupPhaseEnable = enable;
+        if (!enable) {
+            sProviderInstalledMethodIndex.release();
+            sApplicationCreateEndMethodIndex.release();
+        }
+    }
+
+    private static boolean isStartupPhaseMarking() {
+        return !sIsStartupPhaseConfigured || sIsStartupPhaseEnable;
+    }
+
     public static long getLastLaunchActivityTime() {
         return ActivityThreadHacker.sLastLaunchActivityTime;
     }
@@ -137,6 +196,9 @@ public class ActivityThreadHacker {
             if (!isCreated) {
                 if (isLaunchActivity || msg.what == CREATE_SERVICE || msg.what == RECEIVER) { // // 如果是启动activity、service，receiver
                     ActivityThreadHacker.sApplicationCreateEndTime = SystemClock.uptimeMillis();//发送启动Activity等消息，认为是Application 启动的结束时间
+                    if (isStartupPhaseMarking()) {
+                        ActivityThreadHacker.sApplicationCreateEndMethodIndex = AppMethodBeat.getInstance().maskIndex("ApplicationCreateEndMethodIndex");
+                    }
                     ActivityThreadHacker.sApplicationCreateScene = msg.what;
                     isCreated = true;
                     sIsCreatedByLaunchActivity = isLaunchActivity;
@@ -45,6 +45,8 @@ public class IDoFrameListener {
         public long inputCostNs;
         public long animationCostNs;
         public long traversalCostNs;
+        // the frame interval of the refresh rate when the frame is drawn
+        public long frameIntervalNs;
 
         public void recycle() {
             if (sPool.size() <= 1000) {
@@ -57,6 +59,7 @@ public class IDoFrameListener {
                 this.inputCostNs = 0;
                 this.animationCostNs = 0;
                 this.traversalCostNs = 0;
+                this.frameIntervalNs = 0;
                 synchronized (sPool) {
                     sPool.add(this);
                 }
@@ -138,6 +141,10 @@ public class IDoFrameListener {
         doFrameSync(focusedActivity, cost, cost, dropFrame, isVsyncFrame);
     }
 
+    /**
+     * the frames in batch of {@link #getIntervalFrameReplay()}, it's called on {@link #getExecutor()}.
+     * the list and its records are reused once it returns, don't keep them.
+     */
     public void doReplay(List<FrameReplay> list) {
 
     }
@@ -147,6 +154,10 @@ public class IDoFrameListener {
         return executor;
     }
 
+    /**
+     * @return if it's positive, the frames are delivered by {@link #doReplay(List)} in batch of it instead of
+     * {@link #doFrameAsync(String, long, long, int, boolean, long, long, long, long)}
+     */
     public int getIntervalFrameReplay() {
         return 0;
     }
@@ -12,6 +12,7 @@ import com.tencent.matrix.trace.config.SharePluginInfo;
 import com.tencent.matrix.trace.config.TraceConfig;
 import com.tencent.matrix.trace.constants.Constants;
 import com.tencent.matrix.trace.core.AppMethodBeat;
+import com.tencent.matrix.trace.core.DispatchStackAggregator;
 import com.tencent.matrix.trace.core.UIThreadMonitor;
 import com.tencent.matrix.trace.items.MethodItem;
 import com.tencent.matrix.trace.util.TraceDataUtils;
@@ -20,9 +21,12 @@ import com.tencent.matrix.util.DeviceUtil;
 import com.tencent.matrix.util.MatrixHandlerThread;
 import com.tencent.matrix.util.MatrixLog;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -45,18 +49,28 @@ import java.util.List;
  * dalvik_heap：dalvik已使用内存大小（KB）
  * native_heap：native已使用内存大小（KB）
  * vm_size：虚拟内存总大小
+ * timeline：开启 enableAnrSnapshot 时，主线程堆栈随时间的变化，每个 item 包含
+ * begin、end：采样时距 dispatchStart 的时间（ms），相邻的相同堆栈会合并，最后一个为 ANR 时的堆栈
+ * state：线程状态，stack：栈顶的堆栈
+ * threadTraces：开启多线程插桩时，其他线程在这段时间内的方法栈，按耗时降序，每个 item 包含 threadId、threadName、cost、stack、stackKey
  */
 public class AnrTracer extends Tracer {
 
     private static final String TAG = "Matrix.AnrTracer";
     private Handler anrHandler;
     private final TraceConfig traceConfig;
-    private volatile AnrHandleTask anrTask;
+    // all are reused for every message
+    private final AppMethodBeat.IndexRecord beginRecord = new AppMethodBeat.IndexRecord();
+    private final AnrHandleTask anrTask = new AnrHandleTask();
+    private final AnrSnapshotTask snapshotTask;
     private boolean isAnrTraceEnable;
+    private boolean isStreamingStackEnable;
 
     public AnrTracer(TraceConfig traceConfig) {
         this.traceConfig = traceConfig;
         this.isAnrTraceEnable = traceConfig.isAnrTraceEnable();
+        this.isStreamingStackEnable = traceConfig.isStreamingStackEnable();
+        this.snapshotTask = traceConfig.isAnrSnapshotEnable() ? new AnrSnapshotTask(traceConfig.getAnrSnapshotIntervalMs()) : null;
     }
 
     @Override
@@ -65,6 +79,9 @@ public class AnrTracer extends Tracer {
         if (isAnrTraceEnable) {
             UIThreadMonitor.getMonitor().addObserver(this);//添加 LooperObserver
             this.anrHandler = new Handler(MatrixHandlerThread.getDefaultHandler().getLooper());//子线程handler
+            if (isStreamingStackEnable) {
+                DispatchStackAggregator.getInstance().register();
+            }
         }
     }
 
@@ -73,9 +90,10 @@ public class AnrTracer extends Tracer {
         super.onDead();
         if (isAnrTraceEnable) {
             UIThreadMonitor.getMonitor().removeObserver(this); //移除 LooperObserver 监听
-            if (null != anrTask) {
-                anrTask.getBeginRecord().release();//释放 BeginRecord
+            if (isStreamingStackEnable) {
+                DispatchStackAggregator.getInstance().unregister();
             }
+            beginRecord.release();//释放 BeginRecord
             anrHandler.removeCallbacksAndMessages(null);//anrHandler移除所有消息并退出
         }
     }
@@ -87,11 +105,14 @@ public class AnrTracer extends Tracer {
 //        if (inputCost > Constants.DEFAULT_INPUT_EXPIRED_TIME * Constants.TIME_MILLIS_TO_NANO) {
 //            printInputExpired(inputCost);
 //        }
-        anrTask = new AnrHandleTask(AppMethodBeat.getInstance().maskIndex("AnrTracer#dispatchBegin"), token);//创建 AnrHandleTask
+        anrTask.reset(token);//复用 AnrHandleTask 和 beginRecord
         if (traceConfig.isDevEnv()) {
-            MatrixLog.v(TAG, "* [dispatchBegin] token:%s index:%s", token, anrTask.beginRecord.index);
+            MatrixLog.v(TAG, "* [dispatchBegin] token:%s index:%s", token, beginRecord.index);
         }
         anrHandler.postDelayed(anrTask, Constants.DEFAULT_ANR - (System.nanoTime() - token) / Constants.TIME_MILLIS_TO_NANO); //将anrTask加入到anrHandler的延时队列中，如果超过5s anrTask还没有被移除就会被执行
+        if (null != snapshotTask) {
+            snapshotTask.schedule(token);
+        }
     }
 
 
@@ -103,34 +124,50 @@ public class AnrTracer extends Tracer {
             MatrixLog.v(TAG, "[dispatchEnd] token:%s cost:%sms cpu:%sms usage:%s",
                     token, cost, cpuEndMs - cpuBeginMs, Utils.calculateCpuUsage(cpuEndMs - cpuBeginMs, cost));
         }
-        if (null != anrTask) {
-            anrTask.getBeginRecord().release();//将anrTask从anrHandler的延时队列中移除
-            anrHandler.removeCallbacks(anrTask);
+        beginRecord.release();
+        anrHandler.removeCallbacks(anrTask);//将anrTask从anrHandler的延时队列中移除
+        if (null != snapshotTask) {
+            anrHandler.removeCallbacks(snapshotTask);
         }
     }
 
+    /**
+     * It's reused for every message with {@link #beginRecord}, {@link #reset} is called in main thread when a
+     * message begins and {@link #run()} takes the token and the generation of the record first, as the next
+     * message may begin while it's running, the data copied is dropped then.
+     */
     class AnrHandleTask implements Runnable {
 
-        AppMethodBeat.IndexRecord beginRecord;
-        long token;
-
-        public AppMethodBeat.IndexRecord getBeginRecord() {
-            return beginRecord;
-        }
+        private long token;
+        private int generation;
 
-        AnrHandleTask(AppMethodBeat.IndexRecord record, long token) {
-            this.beginRecord = record;
+        synchronized void reset(long token) {
+            AppMethodBeat.getInstance().maskIndex(beginRecord, "AnrTracer#dispatchBegin");
             this.token = token;
+            this.generation = beginRecord.getGeneration();
         }
 
         @Override
         public void run() {//这个方法就完成了从AppMethodBeat中获取数据在进行整理，裁剪，组建长json后进行上报的工作。
+            final long token;
+            final int generation;
+            synchronized (this) {
+                token = this.token;
+                generation = this.generation;
+            }
             long curTime = SystemClock.uptimeMillis();
             boolean isForeground = isForeground();
             // process
             int[] processStat = Utils.getProcessPriority(Process.myPid());
-            long[] data = AppMethodBeat.getInstance().copyData(beginRecord);//获取需要分析的方法栈信息
-            beginRecord.release();
+            // trace, the stack has been built mostly during the dispatch when it's aggregated
+            LinkedList<MethodItem> stack = new LinkedList();
+            long[] data = null;
+            if (!isStreamingStackEnable || !DispatchStackAggregator.getInstance().getStack(token, AppMethodBeat.getInstance().getCurrentIndex(), stack, curTime)) {
+                data = AppMethodBeat.getInstance().copyData(beginRecord);//获取需要分析的方法栈信息
+                if (generation != beginRecord.getGeneration()) {
+                    data = null; // the message has ended and beginRecord is marked for the next one
+                }
+            }
             String scene = AppMethodBeat.getVisibleScene();//当前可见activity
 
             // memory
@@ -140,6 +177,9 @@ public class AnrTracer extends Tracer {
             Thread.State status = Looper.getMainLooper().getThread().getState();
             StackTraceElement[] stackTrace = Looper.getMainLooper().getThread().getStackTrace();
             String dumpStack = Utils.getStack(stackTrace, "|*\t\t", 12);
+            // the stack sampled before, merged with the one now
+            List<Snapshot> timeline = null == snapshotTask ? null
+                    : snapshotTask.mergeTimeline(token, (System.nanoTime() - token) / Constants.TIME_MILLIS_TO_NANO, status, stackTrace);
 
             // frame 通过token（dispatchStart时间）获取不同Type 的耗费时间
             UIThreadMonitor monitor = UIThreadMonitor.getMonitor();
@@ -147,10 +187,10 @@ public class AnrTracer extends Tracer {
             long animationCost = monitor.getQueueCost(UIThreadMonitor.CALLBACK_ANIMATION, token);
             long traversalCost = monitor.getQueueCost(UIThreadMonitor.CALLBACK_TRAVERSAL, token);
 
-            // trace
-            LinkedList<MethodItem> stack = new LinkedList();
-            if (data.length > 0) {
+            if (null != data && data.length > 0) {
                 TraceDataUtils.structuredDataToStack(data, stack, true, curTime);// 根据之前 data 查到的 methodId ，拿到对应插桩函数的执行时间、执行深度，将每个函数的信息封装成 MethodItem，然后存储到 stack 链表当中
+            }
+            if (!stack.isEmpty()) {
                 TraceDataUtils.trimStack(stack, Constants.TARGET_EVIL_METHOD_STACK, new TraceDataUtils.IStructuredDataFilter() {//根据规则 裁剪 stack 中的数据
                     @Override
                     public boolean isFilter(long during, int filterCount) {
@@ -182,7 +222,7 @@ public class AnrTracer extends Tracer {
             String stackKey = TraceDataUtils.getTreeKey(stack, stackCost);// 查询出最耗时的 方法id
             MatrixLog.w(TAG, "%s \npostTime:%s curTime:%s",
                     printAnr(scene, processStat, memoryInfo, status, logcatBuilder, isForeground, stack.size(),
-                            stackKey, dumpStack, inputCost, animationCost, traversalCost, stackCost), token / Constants.TIME_MILLIS_TO_NANO, curTime); // for logcat
+                            stackKey, dumpStack, inputCost, animationCost, traversalCost, stackCost, timeline), token / Constants.TIME_MILLIS_TO_NANO, curTime); // for logcat
 
             if (stackCost >= Constants.DEFAULT_ANR_INVALID) {//异常情况判断（当 AnrHandleTask 没有及时执行时会发生）
                 MatrixLog.w(TAG, "The checked anr task was not executed on time. "
@@ -212,6 +252,22 @@ public class AnrTracer extends Tracer {
                 memJsonObject.put(SharePluginInfo.ISSUE_MEMORY_NATIVE, memoryInfo[1]);
                 memJsonObject.put(SharePluginInfo.ISSUE_MEMORY_VM_SIZE, memoryInfo[2]);
                 jsonObject.put(SharePluginInfo.ISSUE_MEMORY, memJsonObject);
+                if (null != timeline) {
+                    JSONArray timelineArray = new JSONArray();
+                    for (Snapshot snapshot : timeline) {
+                        JSONObject snapshotObject = new JSONObject();
+                        snapshotObject.put(SharePluginInfo.ISSUE_TIMELINE_BEGIN, snapshot.begin);
+                        snapshotObject.put(SharePluginInfo.ISSUE_TIMELINE_END, snapshot.end);
+                        snapshotObject.put(SharePluginInfo.ISSUE_TIMELINE_STATE, snapshot.state);
+                        snapshotObject.put(SharePluginInfo.ISSUE_TIMELINE_STACK, snapshot.getStack(""));
+                        timelineArray.put(snapshotObject);
+                    }
+                    jsonObject.put(SharePluginInfo.ISSUE_TIMELINE, timelineArray);
+                }
+                JSONArray threadTraces = dumpThreadTraces(token / Constants.TIME_MILLIS_TO_NANO, curTime);
+                if (null != threadTraces) {
+                    jsonObject.put(SharePluginInfo.ISSUE_THREAD_TRACES, threadTraces);
+                }
 
                 Issue issue = new Issue();
                 issue.setKey(token + "");
@@ -226,7 +282,8 @@ public class AnrTracer extends Tracer {
         }
 
         private String printAnr(String scene, int[] processStat, long[] memoryInfo, Thread.State state, StringBuilder stack, boolean isForeground,
-                                long stackSize, String stackKey, String dumpStack, long inputCost, long animationCost, long traversalCost, long stackCost) {
+                                long stackSize, String stackKey, String dumpStack, long inputCost, long animationCost, long traversalCost, long stackCost,
+                                List<Snapshot> timeline) {
             StringBuilder print = new StringBuilder();
             print.append(String.format("-\n>>>>>>>>>>>>>>>>>>>>>>> maybe happens ANR(%s ms)! <<<<<<<<<<<<<<<<<<<<<<<\n", stackCost));
             print.append("|* [Status]").append("\n");
@@ -244,6 +301,13 @@ public class AnrTracer extends Tracer {
             print.append("|*\t\t").append(inputCost).append(":").append(animationCost).append(":").append(traversalCost).append("\n");
             print.append("|* [Thread]").append("\n");
             print.append(String.format("|*\t\tStack(%s): ", state)).append(dumpStack);
+            if (null != timeline) {
+                print.append("|* [Timeline]").append("\n");
+                for (Snapshot snapshot : timeline) {
+                    print.append(String.format("|*\t\t%s-%sms(%s): ", snapshot.begin, snapshot.end, snapshot.state)).append("\n");
+                    print.append(snapshot.getStack("|*\t\t\t"));
+                }
+            }
             print.append("|* [Trace]").append("\n");
             if (stackSize > 0) {
                 print.append("|*\t\tStackKey: ").append(stackKey).append("\n");
@@ -256,6 +320,112 @@ public class AnrTracer extends Tracer {
         }
     }
 
+    /**
+     * Samples the stack of main thread at every interval of a message, till the ANR task runs. It's one runnable
+     * reused for every stage of every message, it posts itself again for the next stage. The samples are kept in
+     * preallocated slots by stage and tagged with the token of the message, they're only touched on the anr
+     * handler thread, where {@link AnrHandleTask} merges them into a timeline.
+     */
+    private final class AnrSnapshotTask implements Runnable {
+        private final long intervalMs;
+        private final int stageCount;
+        private final long[] tokens;
+        private final long[] offsets;
+        private final Thread.State[] states;
+        private final StackTraceElement[][] stacks;
+        private volatile long token;
+
+        AnrSnapshotTask(long intervalMs) {
+            this.intervalMs = Math.max(intervalMs, Constants.DEFAULT_ANR / Constants.MAX_ANR_SNAPSHOT_STAGES);
+            // the stages before ANR, the last stack is taken by AnrHandleTask
+            this.stageCount = (int) Math.max(0, (Constants.DEFAULT_ANR - 1) / this.intervalMs);
+            this.tokens = new long[stageCount];
+            this.offsets = new long[stageCount];
+            this.states = new Thread.State[stageCount];
+            this.stacks = new StackTraceElement[stageCount][];
+        }
+
+        /**
+         * it's called in main thread when a message begins.
+         */
+        void schedule(long token) {
+            if (stageCount == 0) {
+                return;
+            }
+            this.token = token;
+            anrHandler.removeCallbacks(this);
+            anrHandler.postDelayed(this, intervalMs - (System.nanoTime() - token) / Constants.TIME_MILLIS_TO_NANO);
+        }
+
+        @Override
+        public void run() {
+            long token = this.token;
+            long offset = (System.nanoTime() - token) / Constants.TIME_MILLIS_TO_NANO;
+            int stage = (int) (offset / intervalMs) - 1;
+            if (stage < 0 || stage >= stageCount) {
+                return;
+            }
+            Thread thread = Looper.getMainLooper().getThread();
+            tokens[stage] = token;
+            offsets[stage] = offset;
+            states[stage] = thread.getState();
+            stacks[stage] = thread.getStackTrace();
+            if (stage + 1 < stageCount && token == this.token) {
+                anrHandler.postDelayed(this, (stage + 2) * intervalMs - offset);
+            }
+        }
+
+        /**
+         * it's called on the anr handler thread, the samples of other messages are skipped and the same stacks
+         * in a row are merged.
+         */
+        List<Snapshot> mergeTimeline(long token, long endOffset, Thread.State endState, StackTraceElement[] endStack) {
+            ArrayList<Snapshot> timeline = new ArrayList<>(stageCount + 1);
+            for (int i = 0; i <= stageCount; i++) {
+                boolean isEnd = i == stageCount;
+                if (!isEnd && (tokens[i] != token || null == stacks[i])) {
+                    continue;
+                }
+                long offset = isEnd ? endOffset : offsets[i];
+                Thread.State state = isEnd ? endState : states[i];
+                StackTraceElement[] stack = isEnd ? endStack : stacks[i];
+                Snapshot last = timeline.isEmpty() ? null : timeline.get(timeline.size() - 1);
+                if (null != last && last.state == state && Arrays.equals(last.stack, stack)) {
+                    last.end = offset;
+                } else {
+                    timeline.add(new Snapshot(offset, state, stack));
+                }
+                if (!isEnd) {
+                    stacks[i] = null;
+                }
+            }
+            return timeline;
+        }
+    }
+
+    private static final class Snapshot {
+        final long begin;
+        long end;
+        final Thread.State state;
+        final StackTraceElement[] stack;
+
+        Snapshot(long offset, Thread.State state, StackTraceElement[] stack) {
+            this.begin = offset;
+            this.end = offset;
+            this.state = state;
+            this.stack = stack;
+        }
+
+        String getStack(String prefix) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; null != stack && i < stack.length && i < Constants.ANR_SNAPSHOT_STACK_DEPTH; i++) {
+                builder.append(prefix).append("at ").append(stack[i].getClassName()).append(":")
+                        .append(stack[i].getMethodName()).append("(").append(stack[i].getLineNumber()).append(")\n");
+            }
+            return builder.toString();
+        }
+    }
+
     private String printInputExpired(long inputCost) {
         StringBuilder print = new StringBuilder();
         String scene = AppMethodBeat.getVisibleScene();
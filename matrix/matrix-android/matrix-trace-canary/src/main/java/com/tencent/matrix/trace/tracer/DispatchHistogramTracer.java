@@ -0,0 +1,247 @@
+package com.tencent.matrix.trace.tracer;
+
+import com.tencent.matrix.Matrix;
+import com.tencent.matrix.report.Issue;
+import com.tencent.matrix.trace.TracePlugin;
+import com.tencent.matrix.trace.config.SharePluginInfo;
+import com.tencent.matrix.trace.config.TraceConfig;
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.core.AppMethodBeat;
+import com.tencent.matrix.trace.core.LooperMonitor;
+import com.tencent.matrix.trace.core.UIThreadMonitor;
+import com.tencent.matrix.trace.util.LatencyHistogram;
+import com.tencent.matrix.util.DeviceUtil;
+import com.tencent.matrix.util.MatrixHandlerThread;
+import com.tencent.matrix.util.MatrixLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Records the wall and cpu time of every message dispatched in main thread into {@link LatencyHistogram}s per
+ * visible scene and per target handler class, which shows the latency distribution below the evil method
+ * threshold. Recording is allocation-free except the first time a scene or handler is seen, the count of
+ * them is limited and the rest is counted as {@link #OTHER}.
+ * <p>
+ * The histograms are copied out and reset every {@link TraceConfig#getDispatchHistogramFlushMs()}.
+ * </p>
+ * tag: Trace_Dispatch
+ * duration：统计时长，ms
+ * scenes：按可见 Activity 统计，targets：按 Handler 类名统计，每个 item 包含
+ * key：scene 或 Handler 类名
+ * count：消息数
+ * wall、cpu：耗时分布，单位 us，包含 p50、p90、p99、max、mean 以及 buckets
+ * buckets：非空的桶，格式为 "index:count,index:count"，桶的下界见 {@link LatencyHistogram#getBucketLowest(int)}
+ */
+public class DispatchHistogramTracer extends Tracer {
+
+    private static final String TAG = "Matrix.DispatchHistogramTracer";
+    private static final String OTHER = "other";
+    private static final String UNKNOWN = "unknown";
+    private final TraceConfig config;
+    private final boolean isDispatchHistogramEnable;
+    private final long flushMs;
+    private final KeyedHistograms scenes = new KeyedHistograms(Constants.MAX_DISPATCH_HISTOGRAM_SCENES);
+    private final KeyedHistograms targets = new KeyedHistograms(Constants.MAX_DISPATCH_HISTOGRAM_TARGETS);
+    private long lastFlushMs = 0;
+
+    public DispatchHistogramTracer(TraceConfig config) {
+        this.config = config;
+        this.isDispatchHistogramEnable = config.isDispatchHistogramEnable();
+        this.flushMs = config.getDispatchHistogramFlushMs();
+    }
+
+    @Override
+    public void onAlive() {
+        super.onAlive();
+        if (isDispatchHistogramEnable) {
+            UIThreadMonitor.getMonitor().addObserver(this);
+        }
+    }
+
+    @Override
+    public void onDead() {
+        super.onDead();
+        if (isDispatchHistogramEnable) {
+            UIThreadMonitor.getMonitor().removeObserver(this);
+        }
+    }
+
+    @Override
+    public void dispatchEnd(long beginNs, long cpuBeginMs, long endNs, long cpuEndMs, long token, boolean isVsyncFrame) {
+        super.dispatchEnd(beginNs, cpuBeginMs, endNs, cpuEndMs, token, isVsyncFrame);
+        long wallUs = (endNs - beginNs) / 1000;
+        long cpuUs = (cpuEndMs - cpuBeginMs) * 1000;
+
+        String scene = AppMethodBeat.getVisibleScene();
+        if (null == scene) {
+            scene = UNKNOWN;
+        }
+        scenes.record(scene, 0, scene.length(), wallUs, cpuUs);
+
+        // the class of target handler, it's between the parentheses of the log given to Printer
+        Class<?> target = LooperMonitor.getDispatchTarget();
+        String log = LooperMonitor.getDispatchLog();
+        int start = null == log ? -1 : log.indexOf('(');
+        int end = start < 0 ? -1 : log.indexOf(')', start);
+        if (null != target) {
+            String name = target.getName();
+            targets.record(name, 0, name.length(), wallUs, cpuUs);
+        } else if (end > start) {
+            targets.record(log, start + 1, end, wallUs, cpuUs);
+        } else {
+            targets.record(UNKNOWN, 0, UNKNOWN.length(), wallUs, cpuUs);
+        }
+
+        long endMs = endNs / Constants.TIME_MILLIS_TO_NANO;
+        if (0 == lastFlushMs) {
+            lastFlushMs = endMs;
+        } else if (endMs - lastFlushMs >= flushMs) {
+            MatrixHandlerThread.getDefaultHandler().post(new ReportTask(endMs - lastFlushMs, scenes.flush(), targets.flush()));
+            lastFlushMs = endMs;
+        }
+    }
+
+    private static final class KeyedHistograms {
+        final String[] keys;
+        final int[] hashes;
+        final LatencyHistogram[] walls;
+        final LatencyHistogram[] cpus;
+        int size = 0;
+
+        KeyedHistograms(int capacity) {
+            keys = new String[capacity + 1];
+            hashes = new int[capacity + 1];
+            walls = new LatencyHistogram[capacity + 1];
+            cpus = new LatencyHistogram[capacity + 1];
+        }
+
+        /**
+         * @param source the key is source[start, end), it's only copied the first time
+         */
+        void record(String source, int start, int end, long wallUs, long cpuUs) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + source.charAt(i);
+            }
+            int length = end - start;
+            int index = -1;
+            for (int i = 0; i < size; i++) {
+                if (hashes[i] == hash && keys[i].length() == length && keys[i].regionMatches(0, source, start, length)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (-1 == index) {
+                // the last slot is for the others
+                index = size < keys.length - 1 ? size++ : keys.length - 1;
+                if (null == keys[index]) {
+                    keys[index] = index == keys.length - 1 ? OTHER : source.substring(start, end);
+                    hashes[index] = index == keys.length - 1 ? 0 : hash;
+                    walls[index] = new LatencyHistogram();
+                    cpus[index] = new LatencyHistogram();
+                }
+            }
+            walls[index].record(wallUs);
+            cpus[index].record(cpuUs);
+        }
+
+        /**
+         * @return a copy of the histograms recorded, which are reset then
+         */
+        Entry[] flush() {
+            int count = 0;
+            for (LatencyHistogram wall : walls) {
+                if (null != wall && wall.getTotalCount() > 0) {
+                    count++;
+                }
+            }
+            Entry[] entries = new Entry[count];
+            for (int i = 0, j = 0; i < walls.length; i++) {
+                if (null != walls[i] && walls[i].getTotalCount() > 0) {
+                    entries[j] = new Entry(keys[i]);
+                    walls[i].copyTo(entries[j].wall);
+                    cpus[i].copyTo(entries[j].cpu);
+                    walls[i].reset();
+                    cpus[i].reset();
+                    j++;
+                }
+            }
+            return entries;
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        final LatencyHistogram wall = new LatencyHistogram();
+        final LatencyHistogram cpu = new LatencyHistogram();
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class ReportTask implements Runnable {
+        final long duration;
+        final Entry[] scenes;
+        final Entry[] targets;
+
+        ReportTask(long duration, Entry[] scenes, Entry[] targets) {
+            this.duration = duration;
+            this.scenes = scenes;
+            this.targets = targets;
+        }
+
+        @Override
+        public void run() {
+            try {
+                TracePlugin plugin = Matrix.with().getPluginByClass(TracePlugin.class);
+                if (null == plugin) {
+                    return;
+                }
+                JSONObject jsonObject = new JSONObject();
+                jsonObject = DeviceUtil.getDeviceInfo(jsonObject, Matrix.with().getApplication());
+                jsonObject.put(SharePluginInfo.ISSUE_DISPATCH_DURATION, duration);
+                jsonObject.put(SharePluginInfo.ISSUE_DISPATCH_SCENES, toJson(scenes));
+                jsonObject.put(SharePluginInfo.ISSUE_DISPATCH_TARGETS, toJson(targets));
+
+                MatrixLog.i(TAG, "[report] duration:%sms scenes:%s targets:%s", duration, scenes.length, targets.length);
+
+                Issue issue = new Issue();
+                issue.setTag(SharePluginInfo.TAG_PLUGIN_DISPATCH);
+                issue.setContent(jsonObject);
+                plugin.onDetectIssue(issue);
+
+            } catch (JSONException e) {
+                MatrixLog.e(TAG, "[JSONException error: %s", e);
+            }
+        }
+
+        private JSONArray toJson(Entry[] entries) throws JSONException {
+            JSONArray array = new JSONArray();
+            for (Entry entry : entries) {
+                JSONObject object = new JSONObject();
+                object.put(SharePluginInfo.ISSUE_DISPATCH_KEY, entry.key);
+                object.put(SharePluginInfo.ISSUE_DISPATCH_COUNT, entry.wall.getTotalCount());
+                object.put(SharePluginInfo.ISSUE_DISPATCH_WALL, toJson(entry.wall));
+                object.put(SharePluginInfo.ISSUE_DISPATCH_CPU, toJson(entry.cpu));
+                array.put(object);
+            }
+            return array;
+        }
+
+        private JSONObject toJson(LatencyHistogram histogram) throws JSONException {
+            JSONObject object = new JSONObject();
+            object.put(SharePluginInfo.ISSUE_DISPATCH_P50, histogram.getValueAtPercentile(50));
+            object.put(SharePluginInfo.ISSUE_DISPATCH_P90, histogram.getValueAtPercentile(90));
+            object.put(SharePluginInfo.ISSUE_DISPATCH_P99, histogram.getValueAtPercentile(99));
+            object.put(SharePluginInfo.ISSUE_DISPATCH_MAX, histogram.getMax());
+            object.put(SharePluginInfo.ISSUE_DISPATCH_MEAN, histogram.getMean());
+            StringBuilder buckets = new StringBuilder();
+            histogram.toCompactString(buckets);
+            object.put(SharePluginInfo.ISSUE_DISPATCH_BUCKETS, buckets.toString());
+            return object;
+        }
+    }
+}
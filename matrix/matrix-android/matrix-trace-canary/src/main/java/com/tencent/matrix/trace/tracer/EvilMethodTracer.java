@@ -9,6 +9,7 @@ import com.tencent.matrix.trace.config.SharePluginInfo;
 import com.tencent.matrix.trace.config.TraceConfig;
 import com.tencent.matrix.trace.constants.Constants;
 import com.tencent.matrix.trace.core.AppMethodBeat;
+import com.tencent.matrix.trace.core.DispatchStackAggregator;
 import com.tencent.matrix.trace.core.UIThreadMonitor;
 import com.tencent.matrix.trace.items.MethodItem;
 import com.tencent.matrix.trace.util.TraceDataUtils;
@@ -17,6 +18,7 @@ import com.tencent.matrix.util.DeviceUtil;
 import com.tencent.matrix.util.MatrixHandlerThread;
 import com.tencent.matrix.util.MatrixLog;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -34,20 +36,25 @@ import java.util.List;
  * stack：方法栈信息， 每个item之间用“\n”隔开，每个item的含义为，调用深度，methodId，调用次数，耗时
  * 比如：0,118,1,5 -> 调用深度为0，methodId=118，调用次数=1，耗时5ms
  * stackKey：主要耗时方法 的methodId
+ * threadTraces：开启多线程插桩时，其他线程在这段时间内的方法栈，按耗时降序，每个 item 包含 threadId、threadName、cost、stack、stackKey
  */
 public class EvilMethodTracer extends Tracer {
 
     private static final String TAG = "Matrix.EvilMethodTracer";
     private final TraceConfig config;
-    private AppMethodBeat.IndexRecord indexRecord;
+    // two records used in turn, one may be handed over to AnalyseTask while the other marks the next messages
+    private final AppMethodBeat.IndexRecord[] indexRecords = {new AppMethodBeat.IndexRecord(), new AppMethodBeat.IndexRecord()};
+    private AppMethodBeat.IndexRecord indexRecord = indexRecords[0];
     private long[] queueTypeCosts = new long[3];
     private long evilThresholdMs;
     private boolean isEvilMethodTraceEnable;
+    private boolean isStreamingStackEnable;
 
     public EvilMethodTracer(TraceConfig config) {
         this.config = config;
         this.evilThresholdMs = config.getEvilThresholdMs();
         this.isEvilMethodTraceEnable = config.isEvilMethodTraceEnable();
+        this.isStreamingStackEnable = config.isStreamingStackEnable();
     }
 
     @Override
@@ -55,6 +62,9 @@ public class EvilMethodTracer extends Tracer {
         super.onAlive();
         if (isEvilMethodTraceEnable) {
             UIThreadMonitor.getMonitor().addObserver(this);
+            if (isStreamingStackEnable) {
+                DispatchStackAggregator.getInstance().register();
+            }
         }
 
     }
@@ -64,6 +74,9 @@ public class EvilMethodTracer extends Tracer {
         super.onDead();
         if (isEvilMethodTraceEnable) {
             UIThreadMonitor.getMonitor().removeObserver(this);
+            if (isStreamingStackEnable) {
+                DispatchStackAggregator.getInstance().unregister();
+            }
         }
     }
 
@@ -71,7 +84,7 @@ public class EvilMethodTracer extends Tracer {
     @Override
     public void dispatchBegin(long beginNs, long cpuBeginMs, long token) {
         super.dispatchBegin(beginNs, cpuBeginMs, token);
-        indexRecord = AppMethodBeat.getInstance().maskIndex("EvilMethodTracer#dispatchBegin");
+        AppMethodBeat.getInstance().maskIndex(indexRecord, "EvilMethodTracer#dispatchBegin");
     }
 
 
@@ -87,16 +100,29 @@ public class EvilMethodTracer extends Tracer {
         super.dispatchEnd(beginNs, cpuBeginMs, endNs, cpuEndMs, token, isVsyncFrame);
         long start = config.isDevEnv() ? System.currentTimeMillis() : 0;
         long dispatchCost = (endNs - beginNs) / Constants.TIME_MILLIS_TO_NANO;
+        AppMethodBeat.IndexRecord beginRecord = null;
         try {
             if (dispatchCost >= evilThresholdMs) {
-                long[] data = AppMethodBeat.getInstance().copyData(indexRecord);
+                long[] data = null;
+                int endIndex = AppMethodBeat.getInstance().getCurrentIndex();
+                if (!isStreamingStackEnable || !DispatchStackAggregator.getInstance().isAggregating(token)) {
+                    data = AppMethodBeat.getInstance().copyData(indexRecord);
+                } else {
+                    // the records have been parsed mostly during the dispatch, the rest is left to AnalyseTask.
+                    // the record is kept till then, so the records can still be copied if the aggregation fails
+                    beginRecord = indexRecord;
+                    indexRecord = indexRecords[indexRecords[0] == beginRecord ? 1 : 0];
+                }
                 long[] queueCosts = new long[3];
                 System.arraycopy(queueTypeCosts, 0, queueCosts, 0, 3);
                 String scene = AppMethodBeat.getVisibleScene();
-                MatrixHandlerThread.getDefaultHandler().post(new AnalyseTask(isForeground(), scene, data, queueCosts, cpuEndMs - cpuBeginMs, dispatchCost, endNs / Constants.TIME_MILLIS_TO_NANO));
+                MatrixHandlerThread.getDefaultHandler().post(new AnalyseTask(isForeground(), scene, data, beginRecord, token, endIndex, queueCosts, cpuEndMs - cpuBeginMs, dispatchCost,
+                        beginNs / Constants.TIME_MILLIS_TO_NANO, endNs / Constants.TIME_MILLIS_TO_NANO));
             }
         } finally {
-            indexRecord.release();
+            if (null == beginRecord) {
+                indexRecord.release();
+            }
             if (config.isDevEnv()) {
                 String usage = Utils.calculateCpuUsage(cpuEndMs - cpuBeginMs, dispatchCost);
                 MatrixLog.v(TAG, "[dispatchEnd] token:%s cost:%sms cpu:%sms usage:%s innerCost:%s",
@@ -112,19 +138,36 @@ public class EvilMethodTracer extends Tracer {
     private class AnalyseTask implements Runnable {
         long[] queueCost;
         long[] data;
+        AppMethodBeat.IndexRecord beginRecord;
+        // the record may be marked again for a later message once this task is behind, it's only used if unchanged
+        int generation;
+        int beginIndex;
+        int bufferVersion;
+        long token;
+        int endIndex;
         long cpuCost;
         long cost;
+        long beginMs;
         long endMs;
         String scene;
         boolean isForeground;
 
-        AnalyseTask(boolean isForeground, String scene, long[] data, long[] queueCost, long cpuCost, long cost, long endMs) {
+        AnalyseTask(boolean isForeground, String scene, long[] data, AppMethodBeat.IndexRecord beginRecord, long token, int endIndex, long[] queueCost, long cpuCost, long cost, long beginMs, long endMs) {
             this.isForeground = isForeground;
             this.scene = scene;
             this.cost = cost;
             this.cpuCost = cpuCost;
             this.data = data;
+            this.beginRecord = beginRecord;
+            if (null != beginRecord) {
+                this.generation = beginRecord.getGeneration();
+                this.beginIndex = beginRecord.index;
+            }
+            this.bufferVersion = AppMethodBeat.getInstance().getBufferVersion();
+            this.token = token;
+            this.endIndex = endIndex;
             this.queueCost = queueCost;
+            this.beginMs = beginMs;
             this.endMs = endMs;
         }
 
@@ -134,8 +177,19 @@ public class EvilMethodTracer extends Tracer {
             int[] processStat = Utils.getProcessPriority(Process.myPid());
             String usage = Utils.calculateCpuUsage(cpuCost, cost);
             LinkedList<MethodItem> stack = new LinkedList();
-            if (data.length > 0) {
+            if (null != beginRecord) {
+                try {
+                    if (!DispatchStackAggregator.getInstance().getStack(token, endIndex, stack, endMs)) {
+                        data = copyData();
+                    }
+                } finally {
+                    beginRecord.release(generation);
+                }
+            }
+            if (null != data && data.length > 0) {
                 TraceDataUtils.structuredDataToStack(data, stack, true, endMs);
+            }
+            if (!stack.isEmpty()) {
                 TraceDataUtils.trimStack(stack, Constants.TARGET_EVIL_METHOD_STACK, new TraceDataUtils.IStructuredDataFilter() {
                     @Override
                     public boolean isFilter(long during, int filterCount) {
@@ -182,6 +236,10 @@ public class EvilMethodTracer extends Tracer {
                 jsonObject.put(SharePluginInfo.ISSUE_SCENE, scene);
                 jsonObject.put(SharePluginInfo.ISSUE_TRACE_STACK, reportBuilder.toString());
                 jsonObject.put(SharePluginInfo.ISSUE_STACK_KEY, stackKey);
+                JSONArray threadTraces = dumpThreadTraces(beginMs, endMs);
+                if (null != threadTraces) {
+                    jsonObject.put(SharePluginInfo.ISSUE_THREAD_TRACES, threadTraces);
+                }
 
                 Issue issue = new Issue();
                 issue.setTag(SharePluginInfo.TAG_PLUGIN_EVIL_METHOD);
@@ -194,6 +252,23 @@ public class EvilMethodTracer extends Tracer {
 
         }
 
+        /**
+         * copy the records of the dispatch from beginRecord, it's still held so they're there unless overwritten,
+         * or it has been marked again for another message.
+         */
+        private long[] copyData() {
+            long[] copied = null;
+            if (endIndex >= 0 && bufferVersion == AppMethodBeat.getInstance().getBufferVersion()
+                    && generation == beginRecord.getGeneration()) {
+                copied = AppMethodBeat.getInstance().copyData(beginRecord, Math.max(0, beginIndex), endIndex);
+                if (generation != beginRecord.getGeneration()) {
+                    copied = null;
+                }
+            }
+            MatrixLog.w(TAG, "[analyse] the stack of token[%s] isn't aggregated, copied:%s", token, null == copied ? -1 : copied.length);
+            return copied;
+        }
+
         @Override
         public void run() {
             analyse();
@@ -11,19 +11,26 @@ import com.tencent.matrix.trace.config.TraceConfig;
 import com.tencent.matrix.trace.constants.Constants;
 import com.tencent.matrix.trace.core.UIThreadMonitor;
 import com.tencent.matrix.trace.listeners.IDoFrameListener;
+import com.tencent.matrix.trace.util.CopyOnWriteArray;
+import com.tencent.matrix.trace.util.FrameRingBuffer;
+import com.tencent.matrix.trace.util.LatencyHistogram;
 import com.tencent.matrix.trace.util.Utils;
 import com.tencent.matrix.util.DeviceUtil;
 import com.tencent.matrix.util.MatrixHandlerThread;
 import com.tencent.matrix.util.MatrixLog;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  scene：当前可见的activity
@@ -31,50 +38,52 @@ import java.util.concurrent.Executor;
  "DROPPED_MIDDLE":18，表示时间阈值内共有 18此时 DROPPED_MIDDLE的情况
  dropSum：记录各个卡段级别掉帧总数，例：
  "DROPPED_MIDDLE":218, 表示时间阈值内共有 218帧是 位于 DROPPED_MIDDLE
- fps：时间阈值内的平均帧率
+ fps：时间阈值内的平均帧率，不超过刷新率
+ refreshRates：按刷新率统计，key 为刷新率 Hz，包含 frames 帧数和 fps 平均帧率。卡顿级别按 60Hz 下的掉帧耗时划分，与刷新率无关
  dropTaskFrameSum：不太清楚
+
+ 开启 enableFrameHistogram 后改为上报 Trace_FrameHistogram，每个时间段一条：
+ duration：统计时长，ms
+ scenes：每个可见 activity 一项，包含 scene、frames 帧数、jankyRatio 掉帧（超过一个刷新周期）的比例，
+ 以及 frameTime 帧耗时分布，单位 us，格式同 Trace_Dispatch。不常见的 activity 合并为 other
  */
 public class FrameTracer extends Tracer {
 
     private static final String TAG = "Matrix.FrameTracer";
-    private final HashSet<IDoFrameListener> listeners = new HashSet<>();
-    private final long frameIntervalNs;
+    private final CopyOnWriteArray<FrameConsumer> listeners = new CopyOnWriteArray<>(new FrameConsumer[0]);
+    private final FrameRingBuffer frameBuffer = new FrameRingBuffer(Constants.FRAME_RING_BUFFER_SIZE);
     private final TraceConfig config;
     private long timeSliceMs;
     private boolean isFPSEnable;
-    private long frozenThreshold;
-    private long highThreshold;
-    private long middleThreshold;
-    private long normalThreshold;
+    // the drop levels are configured by frames of 60Hz, they're taken as time budgets on any refresh rate
+    private long frozenThresholdNs;
+    private long highThresholdNs;
+    private long middleThresholdNs;
+    private long normalThresholdNs;
     private int droppedSum = 0;
     private long durationSum = 0;
 
     public FrameTracer(TraceConfig config) {
         this.config = config;
-        this.frameIntervalNs = UIThreadMonitor.getMonitor().getFrameIntervalNanos();//每帧间隔时间 一般就是16.7
         this.timeSliceMs = config.getTimeSliceMs();//fps 的上报时间阈值
         this.isFPSEnable = config.isFPSEnable();//FPS 监控是否开启
-        this.frozenThreshold = config.getFrozenThreshold();//一秒钟 掉帧 42帧 为 FROZEN
-        this.highThreshold = config.getHighThreshold();//一秒钟 掉帧 24帧 为 HIGH
-        this.normalThreshold = config.getNormalThreshold();//一秒钟 掉帧 3帧 为 NORMAL
-        this.middleThreshold = config.getMiddleThreshold();//一秒钟 掉帧 9帧 为 MIDDLE
+        this.frozenThresholdNs = config.getFrozenThreshold() * Constants.DEFAULT_FRAME_DURATION;//一秒钟 掉帧 42帧 为 FROZEN
+        this.highThresholdNs = config.getHighThreshold() * Constants.DEFAULT_FRAME_DURATION;//一秒钟 掉帧 24帧 为 HIGH
+        this.normalThresholdNs = config.getNormalThreshold() * Constants.DEFAULT_FRAME_DURATION;//一秒钟 掉帧 3帧 为 NORMAL
+        this.middleThresholdNs = config.getMiddleThreshold() * Constants.DEFAULT_FRAME_DURATION;//一秒钟 掉帧 9帧 为 MIDDLE
 
-        MatrixLog.i(TAG, "[init] frameIntervalMs:%s isFPSEnable:%s", frameIntervalNs, isFPSEnable);
+        MatrixLog.i(TAG, "[init] frameIntervalNs:%s isFPSEnable:%s", UIThreadMonitor.getMonitor().getFrameIntervalNanos(), isFPSEnable);
         if (isFPSEnable) {
-            addListener(new FPSCollector());
+            addListener(config.isFrameHistogramEnable() ? new FrameHistogramCollector() : new FPSCollector());
         }
     }
 
     public void addListener(IDoFrameListener listener) {
-        synchronized (listeners) {
-            listeners.add(listener);
-        }
+        listeners.add(new FrameConsumer(listener));
     }
 
     public void removeListener(IDoFrameListener listener) {
-        synchronized (listeners) {
-            listeners.remove(listener);
-        }
+        listeners.remove(new FrameConsumer(listener));
     }
 
     @Override
@@ -107,35 +116,30 @@ public class FrameTracer extends Tracer {
     private void notifyListener(final String focusedActivity, final long startNs, final long endNs, final boolean isVsyncFrame,
                                 final long intendedFrameTimeNs, final long inputCostNs, final long animationCostNs, final long traversalCostNs) {//notifyListener就是计算出当前事件（任务）消耗的帧数（事件总耗时/每帧间隔）然后将这些数据通过同步或者异步的方式传递给各个IDoFrameListener
         long traceBegin = System.currentTimeMillis();
+        // 每帧间隔时间随刷新率变化，60Hz 为 16.7ms
+        final long frameIntervalNs = UIThreadMonitor.getMonitor().getFrameIntervalNanos();
         try {
             final long jiter = endNs - intendedFrameTimeNs;
             final int dropFrame = (int) (jiter / frameIntervalNs);//当前事件 消耗的帧数
             droppedSum += dropFrame;
             durationSum += Math.max(jiter, frameIntervalNs);
 
-            synchronized (listeners) {
-                for (final IDoFrameListener listener : listeners) {
+            // written once for all the async listeners, which read it in batch on their own executor
+            frameBuffer.write(focusedActivity, startNs, endNs, dropFrame, isVsyncFrame,
+                    intendedFrameTimeNs, inputCostNs, animationCostNs, traversalCostNs, frameIntervalNs);
+            long published = frameBuffer.getSequence();
+
+            for (FrameConsumer consumer : listeners.get()) {
+                IDoFrameListener listener = consumer.listener;
+                Executor executor = listener.getExecutor();
+                if (null != executor) {
+                    consumer.onPublished(executor, published);
+                } else {
                     if (config.isDevEnv()) {
                         listener.time = SystemClock.uptimeMillis();
                     }
-                    if (null != listener.getExecutor()) {
-                        if (listener.getIntervalFrameReplay() > 0) {
-                            listener.collect(focusedActivity, startNs, endNs, dropFrame, isVsyncFrame,
-                                    intendedFrameTimeNs, inputCostNs, animationCostNs, traversalCostNs);
-                        } else {
-                            listener.getExecutor().execute(new Runnable() {
-                                @Override
-                                public void run() {
-                                    listener.doFrameAsync(focusedActivity, startNs, endNs, dropFrame, isVsyncFrame,
-                                            intendedFrameTimeNs, inputCostNs, animationCostNs, traversalCostNs);
-                                }
-                            });
-                        }
-                    } else {
-                        listener.doFrameSync(focusedActivity, startNs, endNs, dropFrame, isVsyncFrame,
-                                intendedFrameTimeNs, inputCostNs, animationCostNs, traversalCostNs);
-                    }
-
+                    listener.doFrameSync(focusedActivity, startNs, endNs, dropFrame, isVsyncFrame,
+                            intendedFrameTimeNs, inputCostNs, animationCostNs, traversalCostNs);
                     if (config.isDevEnv()) {
                         listener.time = SystemClock.uptimeMillis() - listener.time;
                         MatrixLog.d(TAG, "[notifyListener] cost:%sms listener:%s", listener.time, listener);
@@ -150,6 +154,92 @@ public class FrameTracer extends Tracer {
         }
     }
 
+    /**
+     * Delivers the frames of {@link #frameBuffer} to an async listener. It's scheduled on the executor of the
+     * listener once {@link IDoFrameListener#getIntervalFrameReplay()} frames are pending, or once any is pending
+     * if the listener takes frames one by one, and it's never scheduled twice before it runs, so both main thread
+     * and the executor see one {@link Runnable} per batch instead of one per frame.
+     */
+    private final class FrameConsumer implements Runnable {
+        final IDoFrameListener listener;
+        private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+        private volatile long cursor;
+        // only touched on the executor
+        private final ArrayList<IDoFrameListener.FrameReplay> batch = new ArrayList<>();
+        private final ArrayList<IDoFrameListener.FrameReplay> replays = new ArrayList<>();
+
+        FrameConsumer(IDoFrameListener listener) {
+            this.listener = listener;
+            this.cursor = frameBuffer.getSequence();
+        }
+
+        /**
+         * it's called in main thread after a frame is written.
+         */
+        void onPublished(Executor executor, long published) {
+            int batchSize = Math.min(Math.max(listener.getIntervalFrameReplay(), 1), frameBuffer.getCapacity() / 2);
+            if (published - cursor >= batchSize && isScheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            // reset before reading the sequence, so the frames published meanwhile schedule it again
+            isScheduled.set(false);
+            long begin = config.isDevEnv() ? SystemClock.uptimeMillis() : 0;
+            long published = frameBuffer.getSequence();
+            long seq = cursor;
+            final long from = seq;
+            int lost = 0;
+            boolean isReplay = listener.getIntervalFrameReplay() > 0;
+            batch.clear();
+            while (seq < published) {
+                IDoFrameListener.FrameReplay replay = obtain(isReplay ? batch.size() : 0);
+                if (!frameBuffer.read(seq, replay)) {
+                    long oldest = frameBuffer.getOldestSequence(frameBuffer.getSequence());
+                    lost += oldest - seq;
+                    seq = oldest;
+                    continue;
+                }
+                seq++;
+                if (isReplay) {
+                    batch.add(replay);
+                } else {
+                    listener.doFrameAsync(replay.focusedActivity, replay.startNs, replay.endNs, replay.dropFrame, replay.isVsyncFrame,
+                            replay.intendedFrameTimeNs, replay.inputCostNs, replay.animationCostNs, replay.traversalCostNs);
+                }
+            }
+            cursor = seq;
+            if (lost > 0) {
+                MatrixLog.w(TAG, "[FrameConsumer] lost %s frames, listener:%s is too slow", lost, listener);
+            }
+            if (isReplay && !batch.isEmpty()) {
+                listener.doReplay(batch);
+            }
+            if (config.isDevEnv()) {
+                MatrixLog.d(TAG, "[FrameConsumer] cost:%sms frames:%s listener:%s", SystemClock.uptimeMillis() - begin, seq - from - lost, listener);
+            }
+        }
+
+        private IDoFrameListener.FrameReplay obtain(int index) {
+            while (replays.size() <= index) {
+                replays.add(new IDoFrameListener.FrameReplay());
+            }
+            return replays.get(index);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FrameConsumer && ((FrameConsumer) o).listener.equals(listener);
+        }
+
+        @Override
+        public int hashCode() {
+            return listener.hashCode();
+        }
+    }
+
     private class FPSCollector extends IDoFrameListener {
 
         private Handler frameHandler = new Handler(MatrixHandlerThread.getDefaultHandlerThread().getLooper());
@@ -178,13 +268,13 @@ public class FrameTracer extends Tracer {
             super.doReplay(list);
             for (FrameReplay replay : list) {
                 doReplayInner(replay.focusedActivity, replay.startNs, replay.endNs, replay.dropFrame, replay.isVsyncFrame,
-                        replay.intendedFrameTimeNs, replay.inputCostNs, replay.animationCostNs, replay.traversalCostNs);
+                        replay.intendedFrameTimeNs, replay.inputCostNs, replay.animationCostNs, replay.traversalCostNs, replay.frameIntervalNs);
             }
         }
 
         public void doReplayInner(String visibleScene, long startNs, long endNs, int droppedFrames,
                                   boolean isVsyncFrame, long intendedFrameTimeNs, long inputCostNs,
-                                  long animationCostNs, long traversalCostNs) {
+                                  long animationCostNs, long traversalCostNs, long frameIntervalNs) {
 
             if (Utils.isEmpty(visibleScene)) return;
             if (!isVsyncFrame) return;
@@ -195,7 +285,7 @@ public class FrameTracer extends Tracer {
                 map.put(visibleScene, item);
             }
 
-            item.collect(droppedFrames);
+            item.collect(droppedFrames, frameIntervalNs);
 
             if (item.sumFrameCost >= timeSliceMs) { // report
                 map.remove(visibleScene);
@@ -204,34 +294,197 @@ public class FrameTracer extends Tracer {
         }
     }
 
+    /**
+     * Keeps the frame time distribution of each visible scene in a {@link LatencyHistogram}, which replaces the
+     * drop levels of {@link FPSCollector}. The scenes are kept in LRU order, the least recently seen one is merged
+     * into {@link #OTHER_SCENE} once there're more than {@link Constants#MAX_FRAME_HISTOGRAM_SCENES}, so the memory
+     * is bounded however many scenes are opened. All the scenes are reported in one issue every
+     * {@link TraceConfig#getFrameHistogramFlushMs()}.
+     */
+    private class FrameHistogramCollector extends IDoFrameListener {
+
+        private static final String OTHER_SCENE = "other";
+        private Handler frameHandler = new Handler(MatrixHandlerThread.getDefaultHandlerThread().getLooper());
+        private final long flushNs = (long) config.getFrameHistogramFlushMs() * Constants.TIME_MILLIS_TO_NANO;
+        private final SceneHistogram other = new SceneHistogram(OTHER_SCENE);
+        private final LinkedHashMap<String, SceneHistogram> scenes = new LinkedHashMap<String, SceneHistogram>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SceneHistogram> eldest) {
+                if (size() > Constants.MAX_FRAME_HISTOGRAM_SCENES) {
+                    other.add(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        private long lastFlushNs = 0;
+
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                frameHandler.post(command);
+            }
+        };
+
+        @Override
+        public Executor getExecutor() {
+            return executor;
+        }
+
+        @Override
+        public int getIntervalFrameReplay() {
+            return 200;
+        }
+
+        @Override
+        public void doReplay(List<FrameReplay> list) {
+            super.doReplay(list);
+            for (FrameReplay replay : list) {
+                if (0 == lastFlushNs) {
+                    lastFlushNs = replay.endNs;
+                }
+                if (!Utils.isEmpty(replay.focusedActivity) && replay.isVsyncFrame) {
+                    SceneHistogram histogram = scenes.get(replay.focusedActivity);
+                    if (null == histogram) {
+                        histogram = new SceneHistogram(replay.focusedActivity);
+                        scenes.put(replay.focusedActivity, histogram);
+                    }
+                    histogram.record((replay.endNs - replay.intendedFrameTimeNs) / 1000, replay.dropFrame > 0);
+                }
+                if (replay.endNs - lastFlushNs >= flushNs) {
+                    report(replay.endNs - lastFlushNs);
+                    lastFlushNs = replay.endNs;
+                }
+            }
+        }
+
+        private void report(long durationNs) {
+            try {
+                TracePlugin plugin = Matrix.with().getPluginByClass(TracePlugin.class);
+                if (null == plugin || (scenes.isEmpty() && other.frameTime.getTotalCount() == 0)) {
+                    return;
+                }
+                JSONArray sceneArray = new JSONArray();
+                for (SceneHistogram histogram : scenes.values()) {
+                    sceneArray.put(histogram.toJson());
+                }
+                if (other.frameTime.getTotalCount() > 0) {
+                    sceneArray.put(other.toJson());
+                }
+
+                JSONObject resultObject = new JSONObject();
+                resultObject = DeviceUtil.getDeviceInfo(resultObject, plugin.getApplication());
+                resultObject.put(SharePluginInfo.ISSUE_FRAME_DURATION, durationNs / Constants.TIME_MILLIS_TO_NANO);
+                resultObject.put(SharePluginInfo.ISSUE_FRAME_SCENES, sceneArray);
+
+                MatrixLog.i(TAG, "[FrameHistogramCollector#report] duration:%sms scenes:%s", durationNs / Constants.TIME_MILLIS_TO_NANO, sceneArray.length());
+
+                Issue issue = new Issue();
+                issue.setTag(SharePluginInfo.TAG_PLUGIN_FRAME_HISTOGRAM);
+                issue.setContent(resultObject);
+                plugin.onDetectIssue(issue);
+
+            } catch (JSONException e) {
+                MatrixLog.e(TAG, "json error", e);
+            } finally {
+                scenes.clear();
+                other.reset();
+            }
+        }
+    }
+
+    private static final class SceneHistogram {
+        final String scene;
+        // us
+        final LatencyHistogram frameTime = new LatencyHistogram();
+        int jankyCount;
+
+        SceneHistogram(String scene) {
+            this.scene = scene;
+        }
+
+        void record(long frameTimeUs, boolean isJanky) {
+            frameTime.record(frameTimeUs);
+            if (isJanky) {
+                jankyCount++;
+            }
+        }
+
+        void add(SceneHistogram other) {
+            frameTime.add(other.frameTime);
+            jankyCount += other.jankyCount;
+        }
+
+        void reset() {
+            frameTime.reset();
+            jankyCount = 0;
+        }
+
+        JSONObject toJson() throws JSONException {
+            long frames = frameTime.getTotalCount();
+            JSONObject timeObject = new JSONObject();
+            timeObject.put(SharePluginInfo.ISSUE_DISPATCH_P50, frameTime.getValueAtPercentile(50));
+            timeObject.put(SharePluginInfo.ISSUE_DISPATCH_P90, frameTime.getValueAtPercentile(90));
+            timeObject.put(SharePluginInfo.ISSUE_DISPATCH_P99, frameTime.getValueAtPercentile(99));
+            timeObject.put(SharePluginInfo.ISSUE_DISPATCH_MAX, frameTime.getMax());
+            timeObject.put(SharePluginInfo.ISSUE_DISPATCH_MEAN, frameTime.getMean());
+            StringBuilder buckets = new StringBuilder();
+            frameTime.toCompactString(buckets);
+            timeObject.put(SharePluginInfo.ISSUE_DISPATCH_BUCKETS, buckets.toString());
+
+            JSONObject object = new JSONObject();
+            object.put(SharePluginInfo.ISSUE_SCENE, scene);
+            object.put(SharePluginInfo.ISSUE_FRAMES, frames);
+            object.put(SharePluginInfo.ISSUE_FRAME_JANKY_RATIO, frames == 0 ? 0 : 1.0 * jankyCount / frames);
+            object.put(SharePluginInfo.ISSUE_FRAME_TIME, timeObject);
+            return object;
+        }
+    }
+
     private class FrameCollectItem {
         String visibleScene;
-        long sumFrameCost;
+        float sumFrameCost;
         int sumFrame = 0;
         int sumDroppedFrames;
         // record the level of frames dropped each time
         int[] dropLevel = new int[DropStatus.values().length];
         int[] dropSum = new int[DropStatus.values().length];
+        // the frames and cost by refresh rate, for the devices switching refresh rate
+        int[] refreshRates = new int[Constants.MAX_FPS_REFRESH_RATES];
+        int[] refreshRateFrames = new int[Constants.MAX_FPS_REFRESH_RATES];
+        float[] refreshRateCost = new float[Constants.MAX_FPS_REFRESH_RATES];
+        int refreshRateCount = 0;
 
         FrameCollectItem(String visibleScene) {
             this.visibleScene = visibleScene;
         }
 
-        void collect(int droppedFrames) {//计算并记录当前页面一段时间内累积的执行任务时间，使用帧数，并对使用帧数进行分级记录和记录在dropLevel和dropSum中
-            float frameIntervalCost = 1f * UIThreadMonitor.getMonitor().getFrameIntervalNanos() / Constants.TIME_MILLIS_TO_NANO;
-            sumFrameCost += (droppedFrames + 1) * frameIntervalCost;//积累的 总时间 ms值 ,这里不够一帧当一帧计算
+        void collect(int droppedFrames, long frameIntervalNs) {//计算并记录当前页面一段时间内累积的执行任务时间，使用帧数，并对使用帧数进行分级记录和记录在dropLevel和dropSum中
+            if (frameIntervalNs <= 0) {
+                frameIntervalNs = Constants.DEFAULT_FRAME_DURATION;
+            }
+            float frameIntervalCost = 1f * frameIntervalNs / Constants.TIME_MILLIS_TO_NANO;
+            float frameCost = (droppedFrames + 1) * frameIntervalCost;
+            sumFrameCost += frameCost;//积累的 总时间 ms值 ,这里不够一帧当一帧计算，保留小数以免每帧截断
             sumDroppedFrames += droppedFrames;//下降的总帧数
             sumFrame++;//doFrameAsync 回调次数
-            if (droppedFrames >= frozenThreshold) {
+
+            int index = indexOfRefreshRate(Math.round(1f * Constants.TIME_SECOND_TO_NANO / frameIntervalNs));
+            refreshRateFrames[index]++;
+            refreshRateCost[index] += frameCost;
+
+            // 按掉帧耗时分级，高刷新率下掉同样的帧数耗时更短
+            long droppedNs = droppedFrames * frameIntervalNs;
+            if (droppedNs >= frozenThresholdNs) {
                 dropLevel[DropStatus.DROPPED_FROZEN.index]++;
                 dropSum[DropStatus.DROPPED_FROZEN.index] += droppedFrames;
-            } else if (droppedFrames >= highThreshold) {
+            } else if (droppedNs >= highThresholdNs) {
                 dropLevel[DropStatus.DROPPED_HIGH.index]++;
                 dropSum[DropStatus.DROPPED_HIGH.index] += droppedFrames;
-            } else if (droppedFrames >= middleThreshold) {
+            } else if (droppedNs >= middleThresholdNs) {
                 dropLevel[DropStatus.DROPPED_MIDDLE.index]++;
                 dropSum[DropStatus.DROPPED_MIDDLE.index] += droppedFrames;
-            } else if (droppedFrames >= normalThreshold) {
+            } else if (droppedNs >= normalThresholdNs) {
                 dropLevel[DropStatus.DROPPED_NORMAL.index]++;
                 dropSum[DropStatus.DROPPED_NORMAL.index] += droppedFrames;
             } else {
@@ -240,8 +493,36 @@ public class FrameTracer extends Tracer {
             }
         }
 
+        /**
+         * @return the index of the refresh rate, it's merged into the closest one if there're too many
+         */
+        private int indexOfRefreshRate(int refreshRate) {
+            int closest = 0;
+            for (int i = 0; i < refreshRateCount; i++) {
+                if (refreshRates[i] == refreshRate) {
+                    return i;
+                }
+                if (Math.abs(refreshRates[i] - refreshRate) < Math.abs(refreshRates[closest] - refreshRate)) {
+                    closest = i;
+                }
+            }
+            if (refreshRateCount < refreshRates.length) {
+                refreshRates[refreshRateCount] = refreshRate;
+                return refreshRateCount++;
+            }
+            return closest;
+        }
+
+        private int getMaxRefreshRate() {
+            int max = 0;
+            for (int i = 0; i < refreshRateCount; i++) {
+                max = Math.max(max, refreshRates[i]);
+            }
+            return max > 0 ? max : 60;
+        }
+
         void report() {//这个方法中会计算出 具体的FPS值，并组建成Json通过TracePlugin进行上报。
-            float fps = Math.min(60.f, 1000.f * sumFrame / sumFrameCost);//计算 fps 一秒内的平均帧率
+            float fps = Math.min(getMaxRefreshRate(), 1000.f * sumFrame / sumFrameCost);//计算 fps 一秒内的平均帧率，不超过刷新率
             MatrixLog.i(TAG, "[report] FPS:%s %s", fps, toString());
 
             try {
@@ -263,6 +544,15 @@ public class FrameTracer extends Tracer {
                 dropSumObject.put(DropStatus.DROPPED_NORMAL.name(), dropSum[DropStatus.DROPPED_NORMAL.index]);
                 dropSumObject.put(DropStatus.DROPPED_BEST.name(), dropSum[DropStatus.DROPPED_BEST.index]);
 
+                JSONObject refreshRateObject = new JSONObject();//按刷新率统计的帧数和帧率
+                for (int i = 0; i < refreshRateCount; i++) {
+                    JSONObject object = new JSONObject();
+                    object.put(SharePluginInfo.ISSUE_FRAMES, refreshRateFrames[i]);
+                    object.put(SharePluginInfo.ISSUE_FPS, refreshRateCost[i] <= 0 ? 0
+                            : Math.min(refreshRates[i], 1000.f * refreshRateFrames[i] / refreshRateCost[i]));
+                    refreshRateObject.put(String.valueOf(refreshRates[i]), object);
+                }
+
                 JSONObject resultObject = new JSONObject();
                 resultObject = DeviceUtil.getDeviceInfo(resultObject, plugin.getApplication());
 
@@ -270,6 +560,7 @@ public class FrameTracer extends Tracer {
                 resultObject.put(SharePluginInfo.ISSUE_DROP_LEVEL, dropLevelObject);//dropLevel：记录各个卡段级别出现的次数，卡顿级别可分为DROPPED_FROZEN,DROPPED_HIGH,DROPPED_MIDDLE,DROPPED_NORMAL,DROPPED_BEST;例："DROPPED_MIDDLE":18，表示时间阈值内共有 18此时 DROPPED_MIDDLE的情况
                 resultObject.put(SharePluginInfo.ISSUE_DROP_SUM, dropSumObject);//dropSum：记录各个卡段级别掉帧总数，例："DROPPED_MIDDLE":218, 表示时间阈值内共有 218帧是 位于 DROPPED_MIDDLE
                 resultObject.put(SharePluginInfo.ISSUE_FPS, fps);//fps：时间阈值内的平均帧率
+                resultObject.put(SharePluginInfo.ISSUE_REFRESH_RATES, refreshRateObject);//refreshRates：各刷新率下的帧数 frames 和平均帧率 fps
 
                 Issue issue = new Issue();
                 issue.setTag(SharePluginInfo.TAG_PLUGIN_FPS);
@@ -292,7 +583,8 @@ public class FrameTracer extends Tracer {
                     + ", sumFrame=" + sumFrame
                     + ", sumDroppedFrames=" + sumDroppedFrames
                     + ", sumFrameCost=" + sumFrameCost
-                    + ", dropLevel=" + Arrays.toString(dropLevel);
+                    + ", dropLevel=" + Arrays.toString(dropLevel)
+                + ", refreshRates=" + Arrays.toString(Arrays.copyOf(refreshRates, refreshRateCount));
         }
     }
 
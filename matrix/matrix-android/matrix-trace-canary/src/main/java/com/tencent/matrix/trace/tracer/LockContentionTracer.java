@@ -0,0 +1,157 @@
+package com.tencent.matrix.trace.tracer;
+
+import com.tencent.matrix.Matrix;
+import com.tencent.matrix.report.Issue;
+import com.tencent.matrix.trace.TracePlugin;
+import com.tencent.matrix.trace.config.SharePluginInfo;
+import com.tencent.matrix.trace.config.TraceConfig;
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.core.LockMonitor;
+import com.tencent.matrix.trace.core.UIThreadMonitor;
+import com.tencent.matrix.trace.util.LockSiteTable;
+import com.tencent.matrix.util.DeviceUtil;
+import com.tencent.matrix.util.MatrixHandlerThread;
+import com.tencent.matrix.util.MatrixLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Reports the lock sites waited most, which are measured by {@link LockMonitor} with the probes inserted by
+ * matrix-gradle-plugin (trace { lockTraceEnable true }), a slow method waiting for a monitor held by a
+ * background thread is told from one busy itself then.
+ * <p>
+ * The table is flushed in main thread every {@link TraceConfig#getLockContentionFlushMs()}, and the top
+ * {@link Constants#LOCK_CONTENTION_TOP_N} sites by wait time are reported.
+ * </p>
+ * tag: Trace_LockContention
+ * duration：统计时长，ms
+ * dropped：锁点表已满而未统计的次数
+ * locks：按等待时长降序，每个 item 包含
+ * site：锁所在方法的 methodId，可由 methodMapping.txt 还原
+ * waitCount、waitTime、maxWaitTime：等锁超过阈值的次数、耗时之和、最长耗时，ms
+ * holdCount、holdTime、maxHoldTime：持锁超过阈值的次数、耗时之和、最长耗时，ms
+ */
+public class LockContentionTracer extends Tracer {
+
+    private static final String TAG = "Matrix.LockContentionTracer";
+
+    private final boolean isLockContentionEnable;
+    private final boolean isAllThreads;
+    private final long flushMs;
+    private final int[] dropped = new int[1];
+    private long lastFlushMs = 0;
+
+    public LockContentionTracer(TraceConfig config) {
+        this.isLockContentionEnable = config.isLockContentionEnable();
+        this.isAllThreads = config.isLockContentionAllThreads();
+        this.flushMs = config.getLockContentionFlushMs();
+    }
+
+    @Override
+    public void onAlive() {
+        super.onAlive();
+        if (isLockContentionEnable) {
+            LockMonitor.enable(isAllThreads);
+            UIThreadMonitor.getMonitor().addObserver(this);
+        }
+    }
+
+    @Override
+    public void onDead() {
+        super.onDead();
+        if (isLockContentionEnable) {
+            LockMonitor.disable();
+            UIThreadMonitor.getMonitor().removeObserver(this);
+        }
+    }
+
+    @Override
+    public void dispatchBegin(long beginNs, long cpuBeginMs, long token) {
+        super.dispatchBegin(beginNs, cpuBeginMs, token);
+        LockMonitor.resetMainThread();
+    }
+
+    @Override
+    public void dispatchEnd(long beginNs, long cpuBeginMs, long endNs, long cpuEndMs, long token, boolean isVsyncFrame) {
+        super.dispatchEnd(beginNs, cpuBeginMs, endNs, cpuEndMs, token, isVsyncFrame);
+        long endMs = endNs / Constants.TIME_MILLIS_TO_NANO;
+        if (0 == lastFlushMs) {
+            lastFlushMs = endMs;
+        } else if (endMs - lastFlushMs >= flushMs) {
+            LockSiteTable.Entry[] sites = LockMonitor.flush(dropped);
+            if (sites.length > 0) {
+                MatrixHandlerThread.getDefaultHandler().post(new ReportTask(endMs - lastFlushMs, dropped[0], sites));
+            }
+            lastFlushMs = endMs;
+        }
+    }
+
+    private static class ReportTask implements Runnable {
+        final long duration;
+        final int dropped;
+        final LockSiteTable.Entry[] sites;
+
+        ReportTask(long duration, int dropped, LockSiteTable.Entry[] sites) {
+            this.duration = duration;
+            this.dropped = dropped;
+            this.sites = sites;
+        }
+
+        @Override
+        public void run() {
+            try {
+                TracePlugin plugin = Matrix.with().getPluginByClass(TracePlugin.class);
+                if (null == plugin) {
+                    return;
+                }
+                Arrays.sort(sites, new Comparator<LockSiteTable.Entry>() {
+                    @Override
+                    public int compare(LockSiteTable.Entry o1, LockSiteTable.Entry o2) {
+                        if (o1.waitNs != o2.waitNs) {
+                            return o1.waitNs > o2.waitNs ? -1 : 1;
+                        }
+                        return o1.holdNs == o2.holdNs ? 0 : (o1.holdNs > o2.holdNs ? -1 : 1);
+                    }
+                });
+
+                JSONObject jsonObject = new JSONObject();
+                jsonObject = DeviceUtil.getDeviceInfo(jsonObject, Matrix.with().getApplication());
+                jsonObject.put(SharePluginInfo.ISSUE_DISPATCH_DURATION, duration);
+                jsonObject.put(SharePluginInfo.ISSUE_LOCK_DROPPED, dropped);
+                jsonObject.put(SharePluginInfo.ISSUE_LOCK_SITES, toJson(sites, Constants.LOCK_CONTENTION_TOP_N));
+
+                MatrixLog.i(TAG, "[report] duration:%sms sites:%s dropped:%s", duration, sites.length, dropped);
+
+                Issue issue = new Issue();
+                issue.setTag(SharePluginInfo.TAG_PLUGIN_LOCK_CONTENTION);
+                issue.setContent(jsonObject);
+                plugin.onDetectIssue(issue);
+
+            } catch (JSONException e) {
+                MatrixLog.e(TAG, "[JSONException error: %s", e);
+            }
+        }
+
+        private JSONArray toJson(LockSiteTable.Entry[] entries, int topN) throws JSONException {
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < entries.length && i < topN; i++) {
+                LockSiteTable.Entry entry = entries[i];
+                JSONObject object = new JSONObject();
+                object.put(SharePluginInfo.ISSUE_LOCK_SITE, entry.site);
+                object.put(SharePluginInfo.ISSUE_LOCK_WAIT_COUNT, entry.waitCount);
+                object.put(SharePluginInfo.ISSUE_LOCK_WAIT_TIME, entry.waitNs / Constants.TIME_MILLIS_TO_NANO);
+                object.put(SharePluginInfo.ISSUE_LOCK_MAX_WAIT_TIME, entry.maxWaitNs / Constants.TIME_MILLIS_TO_NANO);
+                object.put(SharePluginInfo.ISSUE_LOCK_HOLD_COUNT, entry.holdCount);
+                object.put(SharePluginInfo.ISSUE_LOCK_HOLD_TIME, entry.holdNs / Constants.TIME_MILLIS_TO_NANO);
+                object.put(SharePluginInfo.ISSUE_LOCK_MAX_HOLD_TIME, entry.maxHoldNs / Constants.TIME_MILLIS_TO_NANO);
+                array.put(object);
+            }
+            return array;
+        }
+    }
+}
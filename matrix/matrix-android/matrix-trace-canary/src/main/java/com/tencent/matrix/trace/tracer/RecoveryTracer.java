@@ -0,0 +1,127 @@
+package com.tencent.matrix.trace.tracer;
+
+import com.tencent.matrix.Matrix;
+import com.tencent.matrix.report.Issue;
+import com.tencent.matrix.trace.TracePlugin;
+import com.tencent.matrix.trace.config.SharePluginInfo;
+import com.tencent.matrix.trace.config.TraceConfig;
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.core.AppMethodBeat;
+import com.tencent.matrix.trace.core.MappedTraceBuffer;
+import com.tencent.matrix.trace.items.MethodItem;
+import com.tencent.matrix.trace.util.TraceDataUtils;
+import com.tencent.matrix.util.DeviceUtil;
+import com.tencent.matrix.util.MatrixHandlerThread;
+import com.tencent.matrix.util.MatrixLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Reports the trace which last process was recording in a {@link MappedTraceBuffer} when it died in the
+ * middle of a message dispatching, that's usually killed by ANR or watchdog, or a crash.
+ * <p>
+ * tag: Trace_EvilMethod
+ * detail：固定为RECOVERED
+ * cost：从 dispatch 开始到最后一条记录的耗时
+ * stack：方法栈信息，格式同 EvilMethod
+ * stackKey：主要耗时方法 的methodId
+ * lastProcessPid：上个进程的pid
+ * lastProcessStartTime：上个进程开始记录的时间
+ * </p>
+ */
+public class RecoveryTracer extends Tracer {
+
+    private static final String TAG = "Matrix.RecoveryTracer";
+    private final TraceConfig config;
+    private final File bufferFile;
+    private boolean hasRecovered = false;
+
+    public RecoveryTracer(TraceConfig config, File bufferFile) {
+        this.config = config;
+        this.bufferFile = bufferFile;
+    }
+
+    @Override
+    protected void onAlive() {
+        super.onAlive();
+        if (config.isMappedTraceBufferEnable() && !hasRecovered) {
+            hasRecovered = true;
+            MatrixHandlerThread.getDefaultHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    MappedTraceBuffer.Recovery recovery = MappedTraceBuffer.recover(bufferFile);
+                    if (null != recovery) {
+                        report(recovery);
+                    }
+                }
+            });
+        }
+    }
+
+    private void report(MappedTraceBuffer.Recovery recovery) {
+        LinkedList<MethodItem> stack = new LinkedList<>();
+        if (recovery.data.length > 0) {
+            // the methods never out are counted till the last record
+            TraceDataUtils.structuredDataToStack(recovery.data, stack, true, AppMethodBeat.recordTimeToMillis(recovery.getLastTime()) + AppMethodBeat.getDiffTime());
+            TraceDataUtils.trimStack(stack, Constants.TARGET_EVIL_METHOD_STACK, new TraceDataUtils.IStructuredDataFilter() {
+                @Override
+                public boolean isFilter(long during, int filterCount) {
+                    return during < filterCount * Constants.TIME_UPDATE_CYCLE_MS;
+                }
+
+                @Override
+                public int getFilterMaxCount() {
+                    return Constants.FILTER_STACK_MAX_COUNT;
+                }
+
+                @Override
+                public void fallback(List<MethodItem> stack, int size) {
+                    MatrixLog.w(TAG, "[fallback] size:%s targetSize:%s stack:%s", size, Constants.TARGET_EVIL_METHOD_STACK, stack);
+                    Iterator iterator = stack.listIterator(Math.min(size, Constants.TARGET_EVIL_METHOD_STACK));
+                    while (iterator.hasNext()) {
+                        iterator.next();
+                        iterator.remove();
+                    }
+                }
+            });
+        }
+
+        StringBuilder reportBuilder = new StringBuilder();
+        StringBuilder logcatBuilder = new StringBuilder();
+        long stackCost = Math.max(recovery.getCost(), TraceDataUtils.stackToString(stack, reportBuilder, logcatBuilder));
+        String stackKey = TraceDataUtils.getTreeKey(stack, stackCost);
+
+        MatrixLog.w(TAG, "last process[%s] died while dispatching! cost:%sms stackKey:%s\n%s", recovery.pid, stackCost, stackKey, logcatBuilder.toString());
+
+        // report
+        try {
+            TracePlugin plugin = Matrix.with().getPluginByClass(TracePlugin.class);
+            if (null == plugin) {
+                return;
+            }
+            JSONObject jsonObject = new JSONObject();
+            jsonObject = DeviceUtil.getDeviceInfo(jsonObject, Matrix.with().getApplication());
+            jsonObject.put(SharePluginInfo.ISSUE_STACK_TYPE, Constants.Type.RECOVERED);
+            jsonObject.put(SharePluginInfo.ISSUE_COST, stackCost);
+            jsonObject.put(SharePluginInfo.ISSUE_STACK_KEY, stackKey);
+            jsonObject.put(SharePluginInfo.ISSUE_TRACE_STACK, reportBuilder.toString());
+            jsonObject.put(SharePluginInfo.ISSUE_LAST_PROCESS_PID, recovery.pid);
+            jsonObject.put(SharePluginInfo.ISSUE_LAST_PROCESS_START_TIME, recovery.startTime);
+
+            Issue issue = new Issue();
+            issue.setKey(recovery.pid + "_" + recovery.startTime);
+            issue.setTag(SharePluginInfo.TAG_PLUGIN_EVIL_METHOD);
+            issue.setContent(jsonObject);
+            plugin.onDetectIssue(issue);
+
+        } catch (JSONException e) {
+            MatrixLog.e(TAG, "[JSONException error: %s", e);
+        }
+    }
+}
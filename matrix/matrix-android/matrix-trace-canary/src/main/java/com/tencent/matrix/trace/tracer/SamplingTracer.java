@@ -0,0 +1,296 @@
+package com.tencent.matrix.trace.tracer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import com.tencent.matrix.Matrix;
+import com.tencent.matrix.report.Issue;
+import com.tencent.matrix.trace.TracePlugin;
+import com.tencent.matrix.trace.config.SharePluginInfo;
+import com.tencent.matrix.trace.config.TraceConfig;
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.core.AppMethodBeat;
+import com.tencent.matrix.trace.core.UIThreadMonitor;
+import com.tencent.matrix.util.DeviceUtil;
+import com.tencent.matrix.util.MatrixHandlerThread;
+import com.tencent.matrix.util.MatrixLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Samples the stack of main thread from a dedicated thread while a message is dispatching for long, and
+ * merges the samples into a call tree, which works without {@link AppMethodBeat} instrumentation.
+ * <p>
+ * Sampling begins after a dispatch has lasted {@link TraceConfig#getSamplingThresholdMs()} and stops at its
+ * end or after {@link Constants#MAX_SAMPLING_COUNT} samples, so the overhead is bounded and idle messages
+ * cost nothing but two posts. The tree is only touched by the sampler thread.
+ * </p>
+ * tag: Trace_EvilMethod
+ * detail：固定为SAMPLING
+ * cost：dispatch 总耗时
+ * scene：当前可见Activity名称
+ * stack：调用树， 每个item之间用“\n”隔开，每个item的含义为，调用深度，栈帧，采样次数，估算耗时
+ * 比如：0,android.os.Handler.dispatchMessage,12,120 -> 调用深度为0，采样到12次，估算耗时120ms
+ * stackKey：主要耗时的栈帧
+ * sampleCount：采样次数
+ * sampleInterval：采样间隔
+ */
+public class SamplingTracer extends Tracer {
+
+    private static final String TAG = "Matrix.SamplingTracer";
+    private static final String LOOPER_CLASS = "android.os.Looper";
+    private final TraceConfig config;
+    private final boolean isSamplingTraceEnable;
+    private final long intervalMs;
+    private final long thresholdMs;
+    private final long reportThresholdMs;
+    private final int maxDepth;
+    private HandlerThread samplerThread;
+    private Handler samplerHandler;
+    private final Thread mainThread = Looper.getMainLooper().getThread();
+    private final SampleNode root = new SampleNode(null);
+    private long sampledToken = 0;
+    private volatile long dispatchToken = 0;
+    // reused for every dispatch, it's bound to the dispatch by dispatchToken
+    private final SampleTask sampleTask = new SampleTask();
+
+    public SamplingTracer(TraceConfig config) {
+        this.config = config;
+        this.isSamplingTraceEnable = config.isSamplingTraceEnable();
+        this.intervalMs = Math.max(1, config.getSamplingIntervalMs());
+        this.thresholdMs = config.getSamplingThresholdMs();
+        this.reportThresholdMs = config.getEvilThresholdMs();
+        this.maxDepth = config.getSamplingMaxDepth();
+    }
+
+    @Override
+    public void onAlive() {
+        super.onAlive();
+        if (isSamplingTraceEnable) {
+            samplerThread = MatrixHandlerThread.getNewHandlerThread("matrix_sampler_thread", Thread.NORM_PRIORITY);
+            samplerHandler = new Handler(samplerThread.getLooper());
+            UIThreadMonitor.getMonitor().addObserver(this);
+        }
+    }
+
+    @Override
+    public void onDead() {
+        super.onDead();
+        if (isSamplingTraceEnable) {
+            UIThreadMonitor.getMonitor().removeObserver(this);
+            dispatchToken = 0;
+            samplerHandler.removeCallbacksAndMessages(null);
+            samplerThread.quit();
+        }
+    }
+
+    @Override
+    public void dispatchBegin(long beginNs, long cpuBeginMs, long token) {
+        super.dispatchBegin(beginNs, cpuBeginMs, token);
+        dispatchToken = token;
+        samplerHandler.postDelayed(sampleTask, thresholdMs);
+    }
+
+    @Override
+    public void dispatchEnd(long beginNs, long cpuBeginMs, long endNs, long cpuEndMs, long token, boolean isVsyncFrame) {
+        super.dispatchEnd(beginNs, cpuBeginMs, endNs, cpuEndMs, token, isVsyncFrame);
+        synchronized (sampleTask) {
+            dispatchToken = 0;
+            samplerHandler.removeCallbacks(sampleTask);
+        }
+        long cost = (endNs - beginNs) / Constants.TIME_MILLIS_TO_NANO;
+        if (cost >= reportThresholdMs) {
+            samplerHandler.post(new ReportTask(token, AppMethodBeat.getVisibleScene(), cost));
+        }
+    }
+
+    private class SampleTask implements Runnable {
+
+        @Override
+        public void run() {
+            long token = dispatchToken;
+            if (0 == token) {
+                return;
+            }
+            StackTraceElement[] trace = mainThread.getStackTrace();
+            if (token != dispatchToken) {// the stack may belong to the next message already
+                return;
+            }
+            if (sampledToken != token) {
+                reset();
+                sampledToken = token;
+            }
+            root.count++;
+            SampleNode node = root;
+            // 去掉 Looper 以外的栈帧，超过 maxDepth 时保留最内层的
+            int begin = Math.min(getDispatchFrame(trace), maxDepth - 1);
+            for (int i = begin; i >= 0; i--) {
+                node = node.child(trace[i].getClassName() + "." + trace[i].getMethodName());
+                node.count++;
+            }
+            if (root.count < Constants.MAX_SAMPLING_COUNT) {
+                // dispatchEnd removes the callbacks under the same lock, so a dispatch never gets two chains
+                synchronized (this) {
+                    if (token == dispatchToken) {
+                        samplerHandler.postDelayed(this, intervalMs);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return index of the outermost frame of the message being dispatched, the frames of Looper and its
+     * callers are the same for every sample
+     */
+    private static int getDispatchFrame(StackTraceElement[] trace) {
+        for (int i = 0; i < trace.length; i++) {
+            if (LOOPER_CLASS.equals(trace[i].getClassName())) {
+                return i - 1;
+            }
+        }
+        return trace.length - 1;
+    }
+
+    private void reset() {
+        root.children = null;
+        root.count = 0;
+        sampledToken = 0;
+    }
+
+    private class ReportTask implements Runnable {
+        final long token;
+        final String scene;
+        final long cost;
+
+        ReportTask(long token, String scene, long cost) {
+            this.token = token;
+            this.scene = scene;
+            this.cost = cost;
+        }
+
+        @Override
+        public void run() {
+            if (token != sampledToken) {
+                return;
+            }
+            try {
+                if (root.count > 0) {
+                    report();
+                }
+            } finally {
+                reset();
+            }
+        }
+
+        private void report() {
+            StringBuilder reportBuilder = new StringBuilder();
+            StringBuilder logcatBuilder = new StringBuilder();
+            treeToString(root, -1, reportBuilder, logcatBuilder);
+            String stackKey = getTreeKey(root);
+            MatrixLog.w(TAG, "[report] scene:%s cost:%sms samples:%s interval:%sms stackKey:%s\n%s",
+                    scene, cost, root.count, intervalMs, stackKey, logcatBuilder.toString());
+
+            try {
+                TracePlugin plugin = Matrix.with().getPluginByClass(TracePlugin.class);
+                if (null == plugin) {
+                    return;
+                }
+                JSONObject jsonObject = new JSONObject();
+                jsonObject = DeviceUtil.getDeviceInfo(jsonObject, Matrix.with().getApplication());
+                jsonObject.put(SharePluginInfo.ISSUE_STACK_TYPE, Constants.Type.SAMPLING);
+                jsonObject.put(SharePluginInfo.ISSUE_COST, cost);
+                jsonObject.put(SharePluginInfo.ISSUE_SCENE, scene);
+                jsonObject.put(SharePluginInfo.ISSUE_TRACE_STACK, reportBuilder.toString());
+                jsonObject.put(SharePluginInfo.ISSUE_STACK_KEY, stackKey);
+                jsonObject.put(SharePluginInfo.ISSUE_SAMPLE_COUNT, root.count);
+                jsonObject.put(SharePluginInfo.ISSUE_SAMPLE_INTERVAL, intervalMs);
+
+                Issue issue = new Issue();
+                issue.setTag(SharePluginInfo.TAG_PLUGIN_EVIL_METHOD);
+                issue.setContent(jsonObject);
+                plugin.onDetectIssue(issue);
+
+            } catch (JSONException e) {
+                MatrixLog.e(TAG, "[JSONException error: %s", e);
+            }
+        }
+
+        private void treeToString(SampleNode node, int depth, StringBuilder reportBuilder, StringBuilder logcatBuilder) {
+            if (depth >= 0) {
+                reportBuilder.append(depth).append(",").append(node.frame).append(",").append(node.count)
+                        .append(",").append(node.count * intervalMs).append("\n");
+                for (int i = 0; i < depth; i++) {
+                    logcatBuilder.append('.');
+                }
+                logcatBuilder.append(node.frame).append(" [").append(node.count).append("]\n");
+            }
+            for (SampleNode child : node.sortedChildren()) {
+                treeToString(child, depth + 1, reportBuilder, logcatBuilder);
+            }
+        }
+
+        /**
+         * follow the heaviest child as long as it takes a good part of the samples.
+         */
+        private String getTreeKey(SampleNode root) {
+            SampleNode node = root;
+            while (true) {
+                SampleNode heaviest = null;
+                for (SampleNode child : node.sortedChildren()) {
+                    heaviest = child;
+                    break;
+                }
+                if (null == heaviest || heaviest.count < root.count * Constants.FILTER_STACK_KEY_PATENT_PERCENT) {
+                    break;
+                }
+                node = heaviest;
+            }
+            return node == root ? "" : node.frame;
+        }
+    }
+
+    private static final class SampleNode {
+        final String frame;
+        int count;
+        HashMap<String, SampleNode> children;
+
+        SampleNode(String frame) {
+            this.frame = frame;
+        }
+
+        SampleNode child(String frame) {
+            if (null == children) {
+                children = new HashMap<>();
+            }
+            SampleNode child = children.get(frame);
+            if (null == child) {
+                child = new SampleNode(frame);
+                children.put(frame, child);
+            }
+            return child;
+        }
+
+        List<SampleNode> sortedChildren() {
+            List<SampleNode> list = new ArrayList<>();
+            if (null != children) {
+                list.addAll(children.values());
+                Collections.sort(list, new Comparator<SampleNode>() {
+                    @Override
+                    public int compare(SampleNode o1, SampleNode o2) {
+                        return Integer.compare(o2.count, o1.count);
+                    }
+                });
+            }
+            return list;
+        }
+    }
+}
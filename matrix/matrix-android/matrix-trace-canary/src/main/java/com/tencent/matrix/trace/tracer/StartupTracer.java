@@ -16,14 +16,17 @@ import com.tencent.matrix.trace.core.AppMethodBeat;
 import com.tencent.matrix.trace.hacker.ActivityThreadHacker;
 import com.tencent.matrix.trace.items.MethodItem;
 import com.tencent.matrix.trace.listeners.IAppMethodBeatListener;
+import com.tencent.matrix.trace.util.StartupProfile;
 import com.tencent.matrix.trace.util.TraceDataUtils;
 import com.tencent.matrix.util.DeviceUtil;
 import com.tencent.matrix.util.MatrixHandlerThread;
 import com.tencent.matrix.util.MatrixLog;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -65,6 +68,18 @@ import static android.os.SystemClock.uptimeMillis;
  *     * 比如：0,118,1,5 -> 调用深度为0，methodId=118，调用次数=1，耗时5ms
  * stackKey：主要耗时方法 的methodId
  * subType：2：暖启动，1：冷启动
+ *
+ * phases：冷启动分阶段耗时（需开启 {@link TraceConfig#isStartupPhaseEnable()}），阶段依次为
+ *     * process：进程 fork 到 Application.attachBaseContext，N 以下无法获取
+ *     * provider：Application.attachBaseContext 到 ContentProvider 初始化完成，见 {@link com.tencent.matrix.trace.hacker.StartupProbeProvider}
+ *     * application：Application.onCreate 开始 到 第一次启动Activity或者Service或者广播
+ *     * activity：第一个 Activity 创建 到 onResume
+ *     * first_frame：第一个 Activity onResume 到 冷启动结束（Activity获取焦点）
+ *     开始时间未知的阶段合并到前一个阶段中，每个阶段包含
+ *     * name：阶段名，begin：相对进程启动的开始时间，cost：耗时
+ *     * methods：该阶段主线程自身耗时最多的方法，每个item之间用“\n”隔开，每个item的含义为，methodId，调用次数，自身耗时，总耗时
+ *
+ * 开启 {@link TraceConfig#isStartupProfileEnable()} 后，冷启动时将首帧之前首次执行的方法按顺序写入 {@link StartupProfile}，供编译期优化 dex 布局
  */
 
 public class StartupTracer extends Tracer implements IAppMethodBeatListener, ActivityThreadHacker.IApplicationCreateListener, Application.ActivityLifecycleCallbacks {
@@ -81,15 +96,25 @@ public class StartupTracer extends Tracer implements IAppMethodBeatListener, Act
     private long coldStartupThresholdMs;
     private long warmStartupThresholdMs;
     private boolean isHasActivity;
+    private boolean isStartupPhaseEnable;
+    private long firstActivityResumedTime = 0L;
+    private final AppMethodBeat.IndexRecord firstActivityResumedRecord = new AppMethodBeat.IndexRecord();
+    private boolean isStartupProfileEnable;
+    private final File profileFile;
+    private boolean hasMarkedFirstFrame;
+    private final AppMethodBeat.IndexRecord firstFrameRecord = new AppMethodBeat.IndexRecord();
 
 
-    public StartupTracer(TraceConfig config) {
+    public StartupTracer(TraceConfig config, File profileFile) {
         this.config = config;
+        this.profileFile = profileFile;
+        this.isStartupProfileEnable = config.isStartupProfileEnable();
         this.isStartupEnable = config.isStartupEnable();//是否可用
         this.splashActivities = config.getSplashActivities();//SplashActivities
         this.coldStartupThresholdMs = config.getColdStartupThresholdMs();
         this.warmStartupThresholdMs = config.getWarmStartupThresholdMs();
         this.isHasActivity = config.isHasActivity();
+        this.isStartupPhaseEnable = config.isStartupPhaseEnable();
         ActivityThreadHacker.addListener(this);
     }
 
@@ -97,6 +122,7 @@ public class StartupTracer extends Tracer implements IAppMethodBeatListener, Act
     protected void onAlive() {
         super.onAlive();
         MatrixLog.i(TAG, "[onAlive] isStartupEnable:%s", isStartupEnable);
+        ActivityThreadHacker.setStartupPhaseEnable(isStartupEnable && isStartupPhaseEnable);
         if (isStartupEnable) {
             AppMethodBeat.getInstance().addListener(this);//注册全局Activity生命周期监听
             Matrix.with().getApplication().registerActivityLifecycleCallbacks(this);//添加监听 可以感知 activity获得焦点 和 activity的生命周期
@@ -145,6 +171,10 @@ public class StartupTracer extends Tracer implements IAppMethodBeatListener, Act
             }
             createdTimeMap.put(key, uptimeMillis() - createdTime);
 
+            if (isStartupProfileEnable && !hasMarkedFirstFrame) {
+                hasMarkedFirstFrame = true;
+                AppMethodBeat.getInstance().maskIndex(firstFrameRecord, "FirstFrameMethodIndex");
+            }
             if (firstScreenCost == 0) {
                 this.firstScreenCost = uptimeMillis() - ActivityThreadHacker.getEggBrokenTime();//首屏启动时间=当前时间点-APP启动时间点
             }
@@ -210,17 +240,143 @@ public class StartupTracer extends Tracer implements IAppMethodBeatListener, Act
         MatrixLog.i(TAG, "[report] applicationCost:%s firstScreenCost:%s allCost:%s isWarmStartUp:%s, createScene:%d",
                 applicationCost, firstScreenCost, allCost, isWarmStartUp, ActivityThreadHacker.sApplicationCreateScene);
         long[] data = new long[0];
-        if (!isWarmStartUp && allCost >= coldStartupThresholdMs) { // for cold startup 冷启动时间>阈值
-            data = AppMethodBeat.getInstance().copyData(ActivityThreadHacker.sApplicationCreateBeginMethodIndex);//获取 AppMethodBeat.sBuffer 中记录的数据
+        StartupPhases phases = null;
+        if (!isWarmStartUp) {
+            if (allCost >= coldStartupThresholdMs || isStartupPhaseEnable || isStartupProfileEnable) { // for cold startup 冷启动时间>阈值
+                data = AppMethodBeat.getInstance().copyData(ActivityThreadHacker.sApplicationCreateBeginMethodIndex);//获取 AppMethodBeat.sBuffer 中记录的数据
+                if (isStartupPhaseEnable) {
+                    phases = new StartupPhases(data.length, firstScreenCost > 0 ? uptimeMillis()
+                            : ActivityThreadHacker.getApplicationCreateEndTime());
+                }
+                if (isStartupProfileEnable && data.length > 0) {
+                    int offset = getRecordOffset(firstFrameRecord, data.length);
+                    MatrixHandlerThread.getDefaultHandler().post(new ProfileTask(data, offset < 0 ? data.length : offset));
+                }
+            }
+            // 冷启动只分析一次，不论是否上报都释放这些节点
+            firstFrameRecord.release();
             ActivityThreadHacker.sApplicationCreateBeginMethodIndex.release();//移除 sApplicationCreateBeginMethodIndex 节点
+            firstActivityResumedRecord.release();
 
-        } else if (isWarmStartUp && allCost >= warmStartupThresholdMs) {//暖启动时间>阈值
+        } else if (allCost >= warmStartupThresholdMs) {//暖启动时间>阈值
             data = AppMethodBeat.getInstance().copyData(ActivityThreadHacker.sLastLaunchActivityMethodIndex);
             ActivityThreadHacker.sLastLaunchActivityMethodIndex.release();//移除 sApplicationCreateBeginMethodIndex 节点
         }
+        // 阶段节点只在冷启动时使用，暖启动或没有达到阈值时同样释放
+        ActivityThreadHacker.sProviderInstalledMethodIndex.release();
+        ActivityThreadHacker.sApplicationCreateEndMethodIndex.release();
         //执行 AnalyseTask
-        MatrixHandlerThread.getDefaultHandler().post(new AnalyseTask(data, applicationCost, firstScreenCost, allCost, isWarmStartUp, ActivityThreadHacker.sApplicationCreateScene));
+        MatrixHandlerThread.getDefaultHandler().post(new AnalyseTask(data, applicationCost, firstScreenCost, allCost, isWarmStartUp, ActivityThreadHacker.sApplicationCreateScene, phases));
+
+    }
+
+    /**
+     * it must be called right after copying, before the records are released.
+     *
+     * @param length the count of records copied since {@link ActivityThreadHacker#sApplicationCreateBeginMethodIndex}
+     * @return the offset in the copy of the records after record, -1 if it's not marked or lost
+     */
+    private static int getRecordOffset(AppMethodBeat.IndexRecord record, int length) {
+        if (!record.isValid) {
+            return -1;
+        }
+        int start = Math.max(0, ActivityThreadHacker.sApplicationCreateBeginMethodIndex.index);
+        int offset = record.index + 1 - start;
+        if (offset < 0) {
+            offset += AppMethodBeat.getInstance().getBufferSize();
+        }
+        return Math.min(offset, length);
+    }
+
+    private class ProfileTask implements Runnable {
+        final long[] data;
+        final int end;
+
+        ProfileTask(long[] data, int end) {
+            this.data = data;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            StartupProfile.write(profileFile, data, end);
+        }
+    }
+
+    /**
+     * The boundaries of cold startup phases, both in time and in offset of the records copied since
+     * {@link ActivityThreadHacker#sApplicationCreateBeginMethodIndex}, which are taken in main thread right after
+     * copying, so the phases share the one copy.
+     */
+    private class StartupPhases {
+        final String[] names = {"process", "provider", "application", "activity", "first_frame"};
+        final long[] times = new long[names.length + 1];
+        final int[] offsets = new int[names.length + 1];
+        final long processStartTime;
+
+        /**
+         * @param length  the count of records copied
+         * @param endTime the time startup ends, the phases after it are dropped
+         */
+        StartupPhases(int length, long endTime) {
+            long processStartTime = ActivityThreadHacker.getProcessStartTime();
+            this.processStartTime = processStartTime > 0 ? processStartTime : ActivityThreadHacker.getEggBrokenTime();
+            times[0] = processStartTime;
+            times[1] = ActivityThreadHacker.getEggBrokenTime();
+            times[2] = ActivityThreadHacker.getProviderInstalledTime();
+            times[3] = ActivityThreadHacker.getApplicationCreateEndTime();
+            times[4] = firstActivityResumedTime;
+            times[5] = endTime;
+            offsets[0] = 0;
+            offsets[1] = 0;
+            offsets[2] = getRecordOffset(ActivityThreadHacker.sProviderInstalledMethodIndex, length);
+            offsets[3] = getRecordOffset(ActivityThreadHacker.sApplicationCreateEndMethodIndex, length);
+            offsets[4] = getRecordOffset(firstActivityResumedRecord, length);
+            offsets[5] = length;
+            for (int i = 1; i < times.length; i++) {
+                if (times[i] > endTime) {
+                    times[i] = 0;
+                }
+            }
+        }
 
+        JSONArray toJson(long[] data) throws JSONException {
+            // a phase of unknown begin is merged into the one before
+            int[] phases = new int[names.length];
+            int count = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (times[i] > 0 && (count == 0 || times[i] < times[times.length - 1])) {
+                    phases[count++] = i;
+                }
+            }
+            int[] bounds = new int[count + 1];
+            for (int i = 0; i < count; i++) {
+                int offset = offsets[phases[i]];
+                bounds[i] = Math.max(offset, i > 0 ? bounds[i - 1] : 0);
+            }
+            bounds[count] = offsets[offsets.length - 1];
+            List<List<TraceDataUtils.MethodCost>> costs = TraceDataUtils.rangeMethodCosts(data, bounds, Constants.STARTUP_PHASE_TOP_METHODS);
+
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < count; i++) {
+                int phase = phases[i];
+                long end = i + 1 < count ? times[phases[i + 1]] : times[times.length - 1];
+                StringBuilder methods = new StringBuilder();
+                // the records of the phase are lost if its begin isn't marked, the methods are left empty then
+                if (phase < 2 || offsets[phase] >= 0) {
+                    for (TraceDataUtils.MethodCost cost : costs.get(i)) {
+                        methods.append(cost.toString()).append('\n');
+                    }
+                }
+                JSONObject object = new JSONObject();
+                object.put(SharePluginInfo.STAGE_PHASE_NAME, names[phase]);
+                object.put(SharePluginInfo.STAGE_PHASE_BEGIN, times[phase] - processStartTime);
+                object.put(SharePluginInfo.STAGE_PHASE_COST, Math.max(0, end - times[phase]));
+                object.put(SharePluginInfo.STAGE_PHASE_METHODS, methods.toString());
+                array.put(object);
+            }
+            return array;
+        }
     }
 
     private class AnalyseTask implements Runnable {
@@ -231,9 +387,11 @@ public class StartupTracer extends Tracer implements IAppMethodBeatListener, Act
         long allCost;
         boolean isWarmStartUp;
         int scene;
+        StartupPhases phases;
 
-        AnalyseTask(long[] data, long applicationCost, long firstScreenCost, long allCost, boolean isWarmStartUp, int scene) {
+        AnalyseTask(long[] data, long applicationCost, long firstScreenCost, long allCost, boolean isWarmStartUp, int scene, StartupPhases phases) {
             this.data = data;
+            this.phases = phases;
             this.scene = scene;
             this.applicationCost = applicationCost;
             this.firstScreenCost = firstScreenCost;
@@ -243,8 +401,10 @@ public class StartupTracer extends Tracer implements IAppMethodBeatListener, Act
 
         @Override
         public void run() {
+            boolean isOverThreshold = (allCost >= coldStartupThresholdMs && !isWarmStartUp)
+                    || (allCost >= warmStartupThresholdMs && isWarmStartUp);
             LinkedList<MethodItem> stack = new LinkedList();
-            if (data.length > 0) {
+            if (data.length > 0 && isOverThreshold) {
                 TraceDataUtils.structuredDataToStack(data, stack, false, -1);//根据之前 data 查到的 methodId ，拿到对应插桩函数的执行时间、执行深度，将每个函数的信息封装成 MethodItem，然后存储到 stack 集合当中
                 TraceDataUtils.trimStack(stack, Constants.TARGET_EVIL_METHOD_STACK, new TraceDataUtils.IStructuredDataFilter() {//根据规则 裁剪 stack 中的数据
                     @Override
@@ -310,6 +470,9 @@ public class StartupTracer extends Tracer implements IAppMethodBeatListener, Act
                 costObject.put(SharePluginInfo.STAGE_FIRST_ACTIVITY_CREATE, firstScreenCost);//首屏启动时间
                 costObject.put(SharePluginInfo.STAGE_STARTUP_DURATION, allCost);//冷启动时间 或者 暖启动时间
                 costObject.put(SharePluginInfo.ISSUE_IS_WARM_START_UP, isWarmStartUp);//冷启动 or 暖启动
+                if (null != phases) {
+                    costObject.put(SharePluginInfo.STAGE_PHASES, phases.toJson(data));//冷启动分阶段耗时
+                }
                 Issue issue = new Issue();
                 issue.setTag(SharePluginInfo.TAG_PLUGIN_STARTUP);
                 issue.setContent(costObject);
@@ -373,7 +536,10 @@ public class StartupTracer extends Tracer implements IAppMethodBeatListener, Act
 
     @Override
     public void onActivityResumed(Activity activity) {
-
+        if (isStartupPhaseEnable && isColdStartup() && 0 == firstActivityResumedTime) {
+            firstActivityResumedTime = uptimeMillis();
+            AppMethodBeat.getInstance().maskIndex(firstActivityResumedRecord, "FirstActivityResumedMethodIndex");
+        }
     }
 
     @Override
@@ -0,0 +1,370 @@
+package com.tencent.matrix.trace.tracer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.tencent.matrix.Matrix;
+import com.tencent.matrix.report.Issue;
+import com.tencent.matrix.trace.TracePlugin;
+import com.tencent.matrix.trace.config.SharePluginInfo;
+import com.tencent.matrix.trace.config.TraceConfig;
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.core.AppMethodBeat;
+import com.tencent.matrix.trace.core.UIThreadMonitor;
+import com.tencent.matrix.trace.util.ThreadStat;
+import com.tencent.matrix.util.DeviceUtil;
+import com.tencent.matrix.util.MatrixHandlerThread;
+import com.tencent.matrix.util.MatrixLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Tells why a long message of main thread is slow, by where its wall time goes:
+ * <p>
+ * schedstat of main thread is read at dispatch begin and end, the wall time is split into running on cpu,
+ * waiting in the run queue and the rest, which is blocked. The state in stat is sampled from a dedicated
+ * thread every {@link Constants#THREAD_STATE_CHECKPOINT_MS} once a dispatch lasts
+ * {@link Constants#DEFAULT_THREAD_STATE_THRESHOLD_MS}, it tells blocking on locks or binder (S) from IO (D).
+ * A message over the threshold is counted as one of
+ * cpu: 运行时间占一半以上，preempted: 就绪等待比阻塞更久，blocked: 其它
+ * The counters are kept per visible scene in main thread, and reported every
+ * {@link TraceConfig#getThreadStateFlushMs()}. On the kernels without schedstat, cpu time falls back to
+ * SystemClock.currentThreadTimeMillis and the run queue time is unknown.
+ * </p>
+ * tag: Trace_ThreadState
+ * duration：统计时长，ms
+ * scenes：按可见 Activity 统计，每个 item 包含
+ * key：scene，count：超过阈值的消息数，cpu、preempted、blocked：三类消息数
+ * wallTime、cpuTime、runnableTime、blockedTime：耗时之和，ms
+ * running、sleeping、diskSleep：采样到 R、S、D 状态的次数
+ */
+public class ThreadStateTracer extends Tracer {
+
+    private static final String TAG = "Matrix.ThreadStateTracer";
+    private static final String OTHER = "other";
+    private static final String UNKNOWN = "unknown";
+    private static final int TYPE_CPU = 0;
+    private static final int TYPE_PREEMPTED = 1;
+    private static final int TYPE_BLOCKED = 2;
+    private static final int STATE_RUNNING = 0;
+    private static final int STATE_SLEEPING = 1;
+    private static final int STATE_DISK_SLEEP = 2;
+
+    private final TraceConfig config;
+    private final boolean isThreadStateEnable;
+    private final long flushMs;
+    private final long thresholdMs = Constants.DEFAULT_THREAD_STATE_THRESHOLD_MS;
+    private final SceneCounters counters = new SceneCounters(Constants.MAX_THREAD_STATE_SCENES);
+    private final CheckpointTask checkpointTask = new CheckpointTask();
+    // only read in main thread
+    private final int[] samples = new int[3];
+    private ThreadStat mainThreadStat;
+    private long beginRunNs;
+    private long beginWaitNs;
+    private boolean isSchedStatBegin;
+    private long lastFlushMs = 0;
+    private HandlerThread checkpointThread;
+    private Handler checkpointHandler;
+
+    public ThreadStateTracer(TraceConfig config) {
+        this.config = config;
+        this.isThreadStateEnable = config.isThreadStateEnable();
+        this.flushMs = config.getThreadStateFlushMs();
+    }
+
+    @Override
+    public void onAlive() {
+        super.onAlive();
+        if (isThreadStateEnable) {
+            // main thread's tid is the pid
+            mainThreadStat = new ThreadStat(Process.myPid());
+            checkpointTask.stat = new ThreadStat(Process.myPid());
+            checkpointThread = MatrixHandlerThread.getNewHandlerThread("matrix_thread_state", Thread.NORM_PRIORITY);
+            checkpointHandler = new Handler(checkpointThread.getLooper());
+            UIThreadMonitor.getMonitor().addObserver(this);
+        }
+    }
+
+    @Override
+    public void onDead() {
+        super.onDead();
+        if (isThreadStateEnable) {
+            UIThreadMonitor.getMonitor().removeObserver(this);
+            checkpointHandler.removeCallbacksAndMessages(null);
+            checkpointHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    checkpointTask.stat.close();
+                    checkpointThread.quit();
+                }
+            });
+            mainThreadStat.close();
+        }
+    }
+
+    @Override
+    public void dispatchBegin(long beginNs, long cpuBeginMs, long token) {
+        super.dispatchBegin(beginNs, cpuBeginMs, token);
+        isSchedStatBegin = mainThreadStat.readSchedStat();
+        beginRunNs = mainThreadStat.runNs;
+        beginWaitNs = mainThreadStat.waitNs;
+        checkpointTask.begin(token);
+        checkpointHandler.postDelayed(checkpointTask, thresholdMs);
+    }
+
+    @Override
+    public void dispatchEnd(long beginNs, long cpuBeginMs, long endNs, long cpuEndMs, long token, boolean isVsyncFrame) {
+        super.dispatchEnd(beginNs, cpuBeginMs, endNs, cpuEndMs, token, isVsyncFrame);
+        checkpointTask.end(samples);
+
+        long wallNs = endNs - beginNs;
+        if (wallNs >= thresholdMs * Constants.TIME_MILLIS_TO_NANO) {
+            long cpuNs;
+            long runnableNs;
+            if (isSchedStatBegin && mainThreadStat.readSchedStat()) {
+                cpuNs = mainThreadStat.runNs - beginRunNs;
+                runnableNs = mainThreadStat.waitNs - beginWaitNs;
+            } else {
+                cpuNs = (cpuEndMs - cpuBeginMs) * Constants.TIME_MILLIS_TO_NANO;
+                runnableNs = 0;
+            }
+            cpuNs = Math.min(Math.max(0, cpuNs), wallNs);
+            runnableNs = Math.min(Math.max(0, runnableNs), wallNs - cpuNs);
+            long blockedNs = wallNs - cpuNs - runnableNs;
+            int type;
+            if (cpuNs * 2 >= wallNs) {
+                type = TYPE_CPU;
+            } else if (runnableNs >= blockedNs) {
+                type = TYPE_PREEMPTED;
+            } else {
+                type = TYPE_BLOCKED;
+            }
+
+            String scene = AppMethodBeat.getVisibleScene();
+            counters.record(null == scene ? UNKNOWN : scene, type, wallNs, cpuNs, runnableNs, blockedNs,
+                    samples[STATE_RUNNING], samples[STATE_SLEEPING], samples[STATE_DISK_SLEEP]);
+        }
+
+        long endMs = endNs / Constants.TIME_MILLIS_TO_NANO;
+        if (0 == lastFlushMs) {
+            lastFlushMs = endMs;
+        } else if (endMs - lastFlushMs >= flushMs) {
+            Entry[] scenes = counters.flush();
+            if (scenes.length > 0) {
+                MatrixHandlerThread.getDefaultHandler().post(new ReportTask(endMs - lastFlushMs, scenes));
+            }
+            lastFlushMs = endMs;
+        }
+    }
+
+    /**
+     * samples the state of main thread on the checkpoint thread, it's reused for every message. The samples
+     * are guarded by the task itself and only counted while the token is the one of the current message, so
+     * a checkpoint running late never leaks into the next message.
+     */
+    private final class CheckpointTask implements Runnable {
+        ThreadStat stat;
+        private long token;
+        private final int[] samples = new int[3];
+
+        /**
+         * called in main thread while the task isn't posted.
+         */
+        void begin(long token) {
+            synchronized (this) {
+                samples[STATE_RUNNING] = 0;
+                samples[STATE_SLEEPING] = 0;
+                samples[STATE_DISK_SLEEP] = 0;
+                this.token = token;
+            }
+        }
+
+        /**
+         * called in main thread, stops sampling and copies the samples of the message into out.
+         */
+        void end(int[] out) {
+            synchronized (this) {
+                token = 0;
+                checkpointHandler.removeCallbacks(this);
+                System.arraycopy(samples, 0, out, 0, samples.length);
+            }
+        }
+
+        @Override
+        public void run() {
+            long token;
+            synchronized (this) {
+                token = this.token;
+            }
+            // 读 /proc 在锁外，之后只在 token 未变时计数
+            if (0 == token || !stat.readState()) {
+                return;
+            }
+            synchronized (this) {
+                if (token != this.token) {
+                    return;
+                }
+                switch (stat.state) {
+                    case 'R':
+                        samples[STATE_RUNNING]++;
+                        break;
+                    case 'S':
+                        samples[STATE_SLEEPING]++;
+                        break;
+                    case 'D':
+                        samples[STATE_DISK_SLEEP]++;
+                        break;
+                    default:
+                        break;
+                }
+                checkpointHandler.postDelayed(this, Constants.THREAD_STATE_CHECKPOINT_MS);
+            }
+        }
+    }
+
+    /**
+     * The counters of scenes in parallel arrays, allocated only the first time a scene is seen. The count of
+     * scenes is limited and the rest are counted as {@link #OTHER}. Only touched by main thread.
+     */
+    private static final class SceneCounters {
+        final String[] keys;
+        final long[][] values;
+        int size = 0;
+
+        // the columns of values
+        static final int COUNT = 0;
+        static final int TYPES = 1; // cpu, preempted, blocked
+        static final int WALL = 4;
+        static final int CPU = 5;
+        static final int RUNNABLE = 6;
+        static final int BLOCKED = 7;
+        static final int SAMPLES = 8; // running, sleeping, diskSleep
+        static final int COLUMNS = 11;
+
+        SceneCounters(int capacity) {
+            keys = new String[capacity + 1];
+            values = new long[capacity + 1][];
+        }
+
+        void record(String scene, int type, long wallNs, long cpuNs, long runnableNs, long blockedNs,
+                    int running, int sleeping, int diskSleep) {
+            int index = -1;
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(scene)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (-1 == index) {
+                // the last slot is for the others
+                index = size < keys.length - 1 ? size++ : keys.length - 1;
+                if (null == keys[index]) {
+                    keys[index] = index == keys.length - 1 ? OTHER : scene;
+                    values[index] = new long[COLUMNS];
+                }
+            }
+            long[] value = values[index];
+            value[COUNT]++;
+            value[TYPES + type]++;
+            value[WALL] += wallNs;
+            value[CPU] += cpuNs;
+            value[RUNNABLE] += runnableNs;
+            value[BLOCKED] += blockedNs;
+            value[SAMPLES + STATE_RUNNING] += running;
+            value[SAMPLES + STATE_SLEEPING] += sleeping;
+            value[SAMPLES + STATE_DISK_SLEEP] += diskSleep;
+        }
+
+        /**
+         * @return a copy of the counters of the scenes recorded, which are reset then
+         */
+        Entry[] flush() {
+            int count = 0;
+            for (long[] value : values) {
+                if (null != value && value[COUNT] > 0) {
+                    count++;
+                }
+            }
+            Entry[] entries = new Entry[count];
+            for (int i = 0, j = 0; i < values.length; i++) {
+                long[] value = values[i];
+                if (null != value && value[COUNT] > 0) {
+                    entries[j++] = new Entry(keys[i], value.clone());
+                    for (int k = 0; k < value.length; k++) {
+                        value[k] = 0;
+                    }
+                }
+            }
+            return entries;
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        final long[] value;
+
+        Entry(String key, long[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static class ReportTask implements Runnable {
+        final long duration;
+        final Entry[] scenes;
+
+        ReportTask(long duration, Entry[] scenes) {
+            this.duration = duration;
+            this.scenes = scenes;
+        }
+
+        @Override
+        public void run() {
+            try {
+                TracePlugin plugin = Matrix.with().getPluginByClass(TracePlugin.class);
+                if (null == plugin) {
+                    return;
+                }
+                JSONObject jsonObject = new JSONObject();
+                jsonObject = DeviceUtil.getDeviceInfo(jsonObject, Matrix.with().getApplication());
+                jsonObject.put(SharePluginInfo.ISSUE_DISPATCH_DURATION, duration);
+                jsonObject.put(SharePluginInfo.ISSUE_DISPATCH_SCENES, toJson(scenes));
+
+                MatrixLog.i(TAG, "[report] duration:%sms scenes:%s", duration, scenes.length);
+
+                Issue issue = new Issue();
+                issue.setTag(SharePluginInfo.TAG_PLUGIN_THREAD_STATE);
+                issue.setContent(jsonObject);
+                plugin.onDetectIssue(issue);
+
+            } catch (JSONException e) {
+                MatrixLog.e(TAG, "[JSONException error: %s", e);
+            }
+        }
+
+        private JSONArray toJson(Entry[] entries) throws JSONException {
+            JSONArray array = new JSONArray();
+            for (Entry entry : entries) {
+                long[] value = entry.value;
+                JSONObject object = new JSONObject();
+                object.put(SharePluginInfo.ISSUE_DISPATCH_KEY, entry.key);
+                object.put(SharePluginInfo.ISSUE_DISPATCH_COUNT, value[SceneCounters.COUNT]);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_CPU, value[SceneCounters.TYPES + TYPE_CPU]);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_PREEMPTED, value[SceneCounters.TYPES + TYPE_PREEMPTED]);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_BLOCKED, value[SceneCounters.TYPES + TYPE_BLOCKED]);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_WALL_TIME, value[SceneCounters.WALL] / Constants.TIME_MILLIS_TO_NANO);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_CPU_TIME, value[SceneCounters.CPU] / Constants.TIME_MILLIS_TO_NANO);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_RUNNABLE_TIME, value[SceneCounters.RUNNABLE] / Constants.TIME_MILLIS_TO_NANO);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_BLOCKED_TIME, value[SceneCounters.BLOCKED] / Constants.TIME_MILLIS_TO_NANO);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_RUNNING, value[SceneCounters.SAMPLES + STATE_RUNNING]);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_SLEEPING, value[SceneCounters.SAMPLES + STATE_SLEEPING]);
+                object.put(SharePluginInfo.ISSUE_THREAD_STATE_DISK_SLEEP, value[SceneCounters.SAMPLES + STATE_DISK_SLEEP]);
+                array.put(object);
+            }
+            return array;
+        }
+    }
+}
@@ -3,9 +3,25 @@ package com.tencent.matrix.trace.tracer;
 import android.support.annotation.CallSuper;
 
 import com.tencent.matrix.AppActiveMatrixDelegate;
+import com.tencent.matrix.trace.config.SharePluginInfo;
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.core.AppMethodBeat;
+import com.tencent.matrix.trace.core.ThreadTraceBuffer;
+import com.tencent.matrix.trace.items.MethodItem;
 import com.tencent.matrix.trace.listeners.LooperObserver;
+import com.tencent.matrix.trace.util.TraceDataUtils;
 import com.tencent.matrix.util.MatrixLog;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
 public abstract class Tracer extends LooperObserver implements ITracer {
 
     private volatile boolean isAlive = false;
@@ -51,4 +67,72 @@ public abstract class Tracer extends LooperObserver implements ITracer {
     public boolean isForeground() {
         return AppActiveMatrixDelegate.INSTANCE.isAppForeground();
     }
+
+    /**
+     * the traces of the threads other than main thread between startMs and endMs (uptime), which are recorded
+     * once {@link AppMethodBeat#setMultiThreadTraceEnable} is on. Only the {@link Constants#MAX_THREAD_TRACE_REPORT}
+     * threads of the most cost are kept, each item has threadId, threadName, cost, stack and stackKey.
+     *
+     * @return null if no other thread is traced in the time
+     */
+    protected static JSONArray dumpThreadTraces(long startMs, long endMs) throws JSONException {
+        if (!AppMethodBeat.isMultiThreadTraceEnable()) {
+            return null;
+        }
+        List<JSONObject> traces = new ArrayList<>();
+        for (ThreadTraceBuffer buffer : AppMethodBeat.getInstance().getThreadTraceBuffers()) {
+            long[] data = AppMethodBeat.getInstance().copyThreadData(buffer.getThreadId(), startMs, endMs);
+            if (data.length == 0) {
+                continue;
+            }
+            LinkedList<MethodItem> stack = new LinkedList<>();
+            TraceDataUtils.structuredDataToStack(data, stack, false, endMs);
+            if (stack.isEmpty()) {
+                continue;
+            }
+            TraceDataUtils.trimStack(stack, Constants.TARGET_EVIL_METHOD_STACK, new TraceDataUtils.IStructuredDataFilter() {
+                @Override
+                public boolean isFilter(long during, int filterCount) {
+                    return during < filterCount * Constants.TIME_UPDATE_CYCLE_MS;
+                }
+
+                @Override
+                public int getFilterMaxCount() {
+                    return Constants.FILTER_STACK_MAX_COUNT;
+                }
+
+                @Override
+                public void fallback(List<MethodItem> stack, int size) {
+                    while (stack.size() > Math.min(size, Constants.TARGET_EVIL_METHOD_STACK)) {
+                        stack.remove(stack.size() - 1);
+                    }
+                }
+            });
+            StringBuilder reportBuilder = new StringBuilder();
+            long stackCost = TraceDataUtils.stackToString(stack, reportBuilder, new StringBuilder());
+            JSONObject object = new JSONObject();
+            object.put(SharePluginInfo.ISSUE_THREAD_ID, buffer.getThreadId());
+            object.put(SharePluginInfo.ISSUE_THREAD_NAME, buffer.getThreadName());
+            object.put(SharePluginInfo.ISSUE_COST, stackCost);
+            object.put(SharePluginInfo.ISSUE_TRACE_STACK, reportBuilder.toString());
+            object.put(SharePluginInfo.ISSUE_STACK_KEY, TraceDataUtils.getTreeKey(stack, stackCost));
+            traces.add(object);
+        }
+        if (traces.isEmpty()) {
+            return null;
+        }
+        Collections.sort(traces, new Comparator<JSONObject>() {
+            @Override
+            public int compare(JSONObject o1, JSONObject o2) {
+                long cost1 = o1.optLong(SharePluginInfo.ISSUE_COST);
+                long cost2 = o2.optLong(SharePluginInfo.ISSUE_COST);
+                return cost1 == cost2 ? 0 : (cost1 > cost2 ? -1 : 1);
+            }
+        });
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < traces.size() && i < Constants.MAX_THREAD_TRACE_REPORT; i++) {
+            array.put(traces.get(i));
+        }
+        return array;
+    }
 }
@@ -0,0 +1,81 @@
+package com.tencent.matrix.trace.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of listeners for the fan-out on main thread hot path, such as every message dispatching.
+ * <p>
+ * The listeners are kept in an array which is never modified once published, add and remove copy it, so
+ * {@link #get()} is a volatile read with neither lock nor iterator, and the array can be iterated by index
+ * while others are changing the set. Like {@link java.util.HashSet}, a listener is added at most once.
+ * </p>
+ */
+public final class CopyOnWriteArray<T> {
+
+    private final T[] empty;
+    private volatile T[] array;
+
+    /**
+     * @param empty an empty array of the listener type, the arrays are created after it
+     */
+    public CopyOnWriteArray(T[] empty) {
+        this.empty = empty;
+        this.array = empty;
+    }
+
+    /**
+     * @return the current listeners, it must not be modified
+     */
+    public T[] get() {
+        return array;
+    }
+
+    public synchronized boolean add(T listener) {
+        T[] current = array;
+        if (indexOf(current, listener) >= 0) {
+            return false;
+        }
+        T[] newArray = Arrays.copyOf(current, current.length + 1);
+        newArray[current.length] = listener;
+        array = newArray;
+        return true;
+    }
+
+    public synchronized boolean remove(T listener) {
+        T[] current = array;
+        int index = indexOf(current, listener);
+        if (index < 0) {
+            return false;
+        }
+        if (current.length == 1) {
+            array = empty;
+            return true;
+        }
+        T[] newArray = Arrays.copyOf(empty, current.length - 1);
+        System.arraycopy(current, 0, newArray, 0, index);
+        System.arraycopy(current, index + 1, newArray, index, current.length - index - 1);
+        array = newArray;
+        return true;
+    }
+
+    public synchronized void clear() {
+        array = empty;
+    }
+
+    public boolean isEmpty() {
+        return array.length == 0;
+    }
+
+    public int size() {
+        return array.length;
+    }
+
+    private static int indexOf(Object[] array, Object listener) {
+        for (int i = 0; i < array.length; i++) {
+            if (null == listener ? null == array[i] : listener.equals(array[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,113 @@
+package com.tencent.matrix.trace.util;
+
+import com.tencent.matrix.trace.listeners.IDoFrameListener;
+
+/**
+ * A single-producer, multi-consumer ring of frame records, written once per frame by main thread.
+ * <p>
+ * The records are kept in primitive arrays, so {@link #write} neither allocates nor locks. Every consumer
+ * keeps its own sequence and reads on its own thread by {@link #read(long, IDoFrameListener.FrameReplay)}.
+ * A consumer more than {@link #getCapacity()} records behind loses the oldest ones, they are detected by
+ * the sequence published and skipped rather than read half-written.
+ * </p>
+ */
+public final class FrameRingBuffer {
+
+    private final int capacity;
+    private final int mask;
+    private final String[] scenes;
+    private final long[] startNs;
+    private final long[] endNs;
+    private final int[] dropFrames;
+    private final boolean[] isVsyncFrames;
+    private final long[] intendedFrameTimeNs;
+    private final long[] inputCostNs;
+    private final long[] animationCostNs;
+    private final long[] traversalCostNs;
+    private final long[] frameIntervalNs;
+    // the count of records published, the record of sequence s is in slot s & mask
+    private volatile long sequence = 0;
+
+    /**
+     * @param capacity it's rounded up to a power of two
+     */
+    public FrameRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.scenes = new String[size];
+        this.startNs = new long[size];
+        this.endNs = new long[size];
+        this.dropFrames = new int[size];
+        this.isVsyncFrames = new boolean[size];
+        this.intendedFrameTimeNs = new long[size];
+        this.inputCostNs = new long[size];
+        this.animationCostNs = new long[size];
+        this.traversalCostNs = new long[size];
+        this.frameIntervalNs = new long[size];
+    }
+
+    /**
+     * it must be only called by the producer thread.
+     */
+    public void write(String focusedActivity, long startNs, long endNs, int dropFrame, boolean isVsyncFrame,
+                      long intendedFrameTimeNs, long inputCostNs, long animationCostNs, long traversalCostNs, long frameIntervalNs) {
+        long next = sequence;
+        int slot = (int) (next & mask);
+        this.scenes[slot] = focusedActivity;
+        this.startNs[slot] = startNs;
+        this.endNs[slot] = endNs;
+        this.dropFrames[slot] = dropFrame;
+        this.isVsyncFrames[slot] = isVsyncFrame;
+        this.intendedFrameTimeNs[slot] = intendedFrameTimeNs;
+        this.inputCostNs[slot] = inputCostNs;
+        this.animationCostNs[slot] = animationCostNs;
+        this.traversalCostNs[slot] = traversalCostNs;
+        this.frameIntervalNs[slot] = frameIntervalNs;
+        sequence = next + 1; // publish
+    }
+
+    /**
+     * @return the count of records ever written, the records readable are
+     * [{@link #getOldestSequence(long)}, sequence)
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param published the value of {@link #getSequence()}
+     * @return the oldest sequence which won't be overwritten by the record being written
+     */
+    public long getOldestSequence(long published) {
+        return Math.max(0, published - capacity + 1);
+    }
+
+    /**
+     * copy the record of seq into out.
+     *
+     * @return false if the record has been overwritten, out is undefined then
+     */
+    public boolean read(long seq, IDoFrameListener.FrameReplay out) {
+        if (seq < getOldestSequence(sequence)) {
+            return false;
+        }
+        int slot = (int) (seq & mask);
+        out.focusedActivity = scenes[slot];
+        out.startNs = startNs[slot];
+        out.endNs = endNs[slot];
+        out.dropFrame = dropFrames[slot];
+        out.isVsyncFrame = isVsyncFrames[slot];
+        out.intendedFrameTimeNs = intendedFrameTimeNs[slot];
+        out.inputCostNs = inputCostNs[slot];
+        out.animationCostNs = animationCostNs[slot];
+        out.traversalCostNs = traversalCostNs[slot];
+        out.frameIntervalNs = frameIntervalNs[slot];
+        // the producer may have lapped us while copying
+        return seq >= getOldestSequence(sequence);
+    }
+}
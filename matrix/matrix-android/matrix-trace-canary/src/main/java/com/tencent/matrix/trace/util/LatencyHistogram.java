@@ -0,0 +1,139 @@
+package com.tencent.matrix.trace.util;
+
+/**
+ * A log-linear histogram of latency in fixed memory, in the way of HdrHistogram with 3 significant bits.
+ * <p>
+ * Values below 16 have a bucket each, above that every power of two is split into 8 buckets, so a value is
+ * counted with a relative error under 12.5%. Values over {@link #MAX_VALUE} are counted in the last bucket.
+ * {@link #record(long)} neither allocates nor locks, the histogram is meant to be used by one thread.
+ * </p>
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_COUNT = SUB_BUCKET_COUNT << 1;
+    private static final int MAX_MAGNITUDE = 26;
+    public static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+    public static final int BUCKET_COUNT = LINEAR_COUNT + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final int[] counts = new int[BUCKET_COUNT];
+    private long totalCount;
+    private long sum;
+    private long max;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[getBucketIndex(Math.min(value, MAX_VALUE))]++;
+        totalCount++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * @param percentile in (0, 100]
+     * @return the highest value of the bucket where the percentile falls, no more than {@link #getMax()}
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(totalCount * percentile / 100));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts[i];
+            if (count >= target) {
+                return Math.min(getBucketHighest(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * add the counts of other into this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public void copyTo(LatencyHistogram other) {
+        System.arraycopy(counts, 0, other.counts, 0, BUCKET_COUNT);
+        other.totalCount = totalCount;
+        other.sum = sum;
+        other.max = max;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * the non-empty buckets as "index:count" separated by ',', the lowest value of a bucket is given by
+     * {@link #getBucketLowest(int)}.
+     */
+    public void toCompactString(StringBuilder builder) {
+        boolean isFirst = true;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] != 0) {
+                if (!isFirst) {
+                    builder.append(',');
+                }
+                builder.append(i).append(':').append(counts[i]);
+                isFirst = false;
+            }
+        }
+    }
+
+    public static int getBucketIndex(long value) {
+        if (value < LINEAR_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return LINEAR_COUNT + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    public static long getBucketLowest(int index) {
+        if (index < LINEAR_COUNT) {
+            return index;
+        }
+        int magnitude = (index - LINEAR_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS + 1;
+        int subBucket = (index - LINEAR_COUNT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return (long) subBucket << (magnitude - SUB_BUCKET_BITS);
+    }
+
+    public static long getBucketHighest(int index) {
+        if (index < LINEAR_COUNT) {
+            return index;
+        }
+        int magnitude = (index - LINEAR_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS + 1;
+        return getBucketLowest(index) + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
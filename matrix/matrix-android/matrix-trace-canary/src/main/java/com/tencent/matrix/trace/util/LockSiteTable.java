@@ -0,0 +1,142 @@
+package com.tencent.matrix.trace.util;
+
+/**
+ * The contention counters of lock sites, keyed by the method id of the site.
+ * <p>
+ * It's an open addressing table in primitive arrays of a fixed capacity, so {@link #recordWait} and
+ * {@link #recordHold} neither allocate nor rehash. Once it's full the new sites are only counted by
+ * {@link #getDropped()} until the next {@link #flush()}. Not thread safe, the caller locks if needed.
+ * </p>
+ */
+public final class LockSiteTable {
+
+    private final int mask;
+    private final int[] sites;
+    private final long[] waitCounts;
+    private final long[] waitNs;
+    private final long[] maxWaitNs;
+    private final long[] holdCounts;
+    private final long[] holdNs;
+    private final long[] maxHoldNs;
+    private int size = 0;
+    private int dropped = 0;
+
+    /**
+     * @param capacity it's rounded up to a power of two
+     */
+    public LockSiteTable(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = length - 1;
+        this.sites = new int[length];
+        this.waitCounts = new long[length];
+        this.waitNs = new long[length];
+        this.maxWaitNs = new long[length];
+        this.holdCounts = new long[length];
+        this.holdNs = new long[length];
+        this.maxHoldNs = new long[length];
+    }
+
+    /**
+     * @param site greater than 0
+     */
+    public void recordWait(int site, long ns) {
+        int slot = slot(site);
+        if (slot < 0) {
+            return;
+        }
+        waitCounts[slot]++;
+        waitNs[slot] += ns;
+        if (ns > maxWaitNs[slot]) {
+            maxWaitNs[slot] = ns;
+        }
+    }
+
+    /**
+     * @param site greater than 0
+     */
+    public void recordHold(int site, long ns) {
+        int slot = slot(site);
+        if (slot < 0) {
+            return;
+        }
+        holdCounts[slot]++;
+        holdNs[slot] += ns;
+        if (ns > maxHoldNs[slot]) {
+            maxHoldNs[slot] = ns;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the count of events of the sites not kept since the table was full
+     */
+    public int getDropped() {
+        return dropped;
+    }
+
+    private int slot(int site) {
+        int slot = (site * 0x9E3779B9) >>> 16 & mask;
+        while (true) {
+            if (sites[slot] == site) {
+                return slot;
+            }
+            if (sites[slot] == 0) {
+                // keep a quarter free, or the probing gets long
+                if (size >= (mask + 1) - ((mask + 1) >> 2)) {
+                    dropped++;
+                    return -1;
+                }
+                sites[slot] = site;
+                size++;
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return a copy of the sites recorded, the table is cleared then
+     */
+    public Entry[] flush() {
+        Entry[] entries = new Entry[size];
+        for (int slot = 0, i = 0; slot < sites.length; slot++) {
+            if (sites[slot] != 0) {
+                entries[i++] = new Entry(sites[slot], waitCounts[slot], waitNs[slot], maxWaitNs[slot],
+                        holdCounts[slot], holdNs[slot], maxHoldNs[slot]);
+                sites[slot] = 0;
+                waitCounts[slot] = 0;
+                waitNs[slot] = 0;
+                maxWaitNs[slot] = 0;
+                holdCounts[slot] = 0;
+                holdNs[slot] = 0;
+                maxHoldNs[slot] = 0;
+            }
+        }
+        size = 0;
+        dropped = 0;
+        return entries;
+    }
+
+    public static final class Entry {
+        public final int site;
+        public final long waitCount;
+        public final long waitNs;
+        public final long maxWaitNs;
+        public final long holdCount;
+        public final long holdNs;
+        public final long maxHoldNs;
+
+        Entry(int site, long waitCount, long waitNs, long maxWaitNs, long holdCount, long holdNs, long maxHoldNs) {
+            this.site = site;
+            this.waitCount = waitCount;
+            this.waitNs = waitNs;
+            this.maxWaitNs = maxWaitNs;
+            this.holdCount = holdCount;
+            this.holdNs = holdNs;
+            this.maxHoldNs = maxHoldNs;
+        }
+    }
+}
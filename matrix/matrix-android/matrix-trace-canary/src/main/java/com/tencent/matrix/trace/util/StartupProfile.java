@@ -0,0 +1,68 @@
+package com.tencent.matrix.trace.util;
+
+import com.tencent.matrix.util.MatrixLog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The startup method-order profile, that's the ids of instrumented methods in the order they are first entered
+ * during cold startup. matrix-gradle-plugin turns it into the startup class list and baseline profile with the
+ * methodMapping.txt of the same build, see {@code StartupProfileProcessor}.
+ * <p>
+ * format, big-endian: magic(int) version(int) count(int), then count ids each as an unsigned LEB128 varint,
+ * which takes 3 bytes at most as the ids are below 2^20.
+ * </p>
+ */
+public final class StartupProfile {
+
+    private static final String TAG = "Matrix.StartupProfile";
+    public static final int MAGIC = 0x4D535450; // "MSTP"
+    public static final int VERSION = 1;
+
+    private StartupProfile() {
+    }
+
+    /**
+     * @param buffer the records of main thread since application created
+     * @param end    the records after it are not counted
+     * @return false if it fails to write
+     */
+    public static boolean write(File file, long[] buffer, int end) {
+        int[] ids = TraceDataUtils.firstEnteredMethods(buffer, end);
+        File parent = file.getParentFile();
+        if (null != parent && !parent.exists() && !parent.mkdirs()) {
+            MatrixLog.e(TAG, "[write] fail to create %s", parent);
+            return false;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.length);
+            for (int id : ids) {
+                while ((id & ~0x7F) != 0) {
+                    out.write((id & 0x7F) | 0x80);
+                    id >>>= 7;
+                }
+                out.write(id);
+            }
+            MatrixLog.i(TAG, "[write] %s methods into %s, %s bytes", ids.length, file, out.size());
+            return true;
+        } catch (IOException e) {
+            MatrixLog.e(TAG, "[write] %s", e);
+            return false;
+        } finally {
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.tencent.matrix.trace.util;
+
+import com.tencent.matrix.util.MatrixLog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads /proc/self/task/[tid]/stat and schedstat of a thread. The files are kept open and read again from
+ * the start into a reused buffer, and the fields are parsed in place, so a read allocates nothing.
+ * <p>
+ * stat：state 为第 3 列，R 运行或就绪，S 可中断睡眠（锁、binder、futex 等），D 不可中断睡眠（多为 IO）。
+ * schedstat：依次为 在 CPU 上运行的时间(ns)，在运行队列中等待的时间(ns)，时间片数。
+ * Not thread safe, every reading thread keeps its own instance.
+ * </p>
+ */
+public final class ThreadStat {
+
+    private static final String TAG = "Matrix.ThreadStat";
+    public static final char STATE_UNKNOWN = '?';
+
+    private final String statPath;
+    private final String schedStatPath;
+    private final byte[] buffer = new byte[512];
+    private RandomAccessFile statFile;
+    private RandomAccessFile schedStatFile;
+    private boolean isSchedStatSupported = true;
+
+    public char state = STATE_UNKNOWN;
+    public long runNs;
+    public long waitNs;
+    public long timeSlices;
+
+    public ThreadStat(int tid) {
+        this.statPath = "/proc/self/task/" + tid + "/stat";
+        this.schedStatPath = "/proc/self/task/" + tid + "/schedstat";
+    }
+
+    /**
+     * @return false if it fails, {@link #state} is {@link #STATE_UNKNOWN} then
+     */
+    public boolean readState() {
+        state = STATE_UNKNOWN;
+        try {
+            if (null == statFile) {
+                statFile = new RandomAccessFile(statPath, "r");
+            }
+            int length = read(statFile);
+            // the name of thread may contain spaces and ')', the state follows the last ')'
+            for (int i = length - 1; i >= 0; i--) {
+                if (buffer[i] == ')') {
+                    if (i + 2 < length) {
+                        state = (char) buffer[i + 2];
+                        return true;
+                    }
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            MatrixLog.e(TAG, "[readState] %s", e);
+            close();
+        }
+        return false;
+    }
+
+    /**
+     * @return false if it fails or the kernel isn't built with schedstats, the values are left unchanged then
+     */
+    public boolean readSchedStat() {
+        if (!isSchedStatSupported) {
+            return false;
+        }
+        try {
+            if (null == schedStatFile) {
+                schedStatFile = new RandomAccessFile(schedStatPath, "r");
+            }
+            int length = read(schedStatFile);
+            int index = 0;
+            long run = 0;
+            long wait = 0;
+            long slices = 0;
+            for (int field = 0; field < 3; field++) {
+                while (index < length && buffer[index] == ' ') {
+                    index++;
+                }
+                if (index >= length || buffer[index] < '0' || buffer[index] > '9') {
+                    return false;
+                }
+                long value = 0;
+                while (index < length && buffer[index] >= '0' && buffer[index] <= '9') {
+                    value = value * 10 + (buffer[index++] - '0');
+                }
+                if (field == 0) {
+                    run = value;
+                } else if (field == 1) {
+                    wait = value;
+                } else {
+                    slices = value;
+                }
+            }
+            runNs = run;
+            waitNs = wait;
+            timeSlices = slices;
+            return true;
+        } catch (IOException e) {
+            MatrixLog.e(TAG, "[readSchedStat] %s", e);
+            isSchedStatSupported = false;
+            close();
+            return false;
+        }
+    }
+
+    private int read(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        int length = 0;
+        int count;
+        while (length < buffer.length && (count = file.read(buffer, length, buffer.length - length)) > 0) {
+            length += count;
+        }
+        return length;
+    }
+
+    public void close() {
+        try {
+            if (null != statFile) {
+                statFile.close();
+            }
+            if (null != schedStatFile) {
+                schedStatFile.close();
+            }
+        } catch (IOException e) {
+            MatrixLog.e(TAG, "[close] %s", e);
+        }
+        statFile = null;
+        schedStatFile = null;
+    }
+}
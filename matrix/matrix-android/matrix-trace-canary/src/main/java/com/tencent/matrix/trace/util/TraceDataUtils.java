@@ -7,8 +7,12 @@ import com.tencent.matrix.trace.core.AppMethodBeat;
 import com.tencent.matrix.trace.items.MethodItem;
 import com.tencent.matrix.util.MatrixLog;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -26,91 +30,14 @@ public class TraceDataUtils {
         void fallback(List<MethodItem> stack, int size);
     }
 
-    public static void structuredDataToStack(long[] buffer, LinkedList<MethodItem> result, boolean isStrict, long endTime) {//这个方法主要是根据之前 data 查到的 methodId ，拿到对应插桩函数的执行时间、执行深度，将每个函数的信息封装成 MethodItem，然后存储到 stack 链表当中
-        long lastInId = 0L;
-        int depth = 0; //记录调用栈深度
-        LinkedList<Long> rawData = new LinkedList<>();
-        boolean isBegin = !isStrict;
-
-        for (long trueId : buffer) {
-            if (0 == trueId) {
-                continue;
-            }
-            if (isStrict) {
-                if (isIn(trueId) && AppMethodBeat.METHOD_ID_DISPATCH == getMethodId(trueId)) {
-                    isBegin = true;
-                }
-
-                if (!isBegin) {
-                    MatrixLog.d(TAG, "never begin! pass this method[%s]", getMethodId(trueId));
-                    continue;
-                }
-
-            }
-            if (isIn(trueId)) {
-                lastInId = getMethodId(trueId);
-                if (lastInId == AppMethodBeat.METHOD_ID_DISPATCH) {//如果是 handler 的 dispatchMessage 方法 depth 置为0
-                    depth = 0;
-                }
-                depth++;
-                rawData.push(trueId);//加入到链表中
-            } else {// 如果是 0 方法记录的数据
-                int outMethodId = getMethodId(trueId);
-                if (!rawData.isEmpty()) {
-                    long in = rawData.pop();//拿到i 方法中记录的数据
-                    depth--;
-                    int inMethodId;
-                    LinkedList<Long> tmp = new LinkedList<>();
-                    tmp.add(in);
-                    while ((inMethodId = getMethodId(in)) != outMethodId && !rawData.isEmpty()) {//如果  inMethodId 不等于 outMethodId 调用深度建议
-                        MatrixLog.w(TAG, "pop inMethodId[%s] to continue match ouMethodId[%s]", inMethodId, outMethodId);
-                        in = rawData.pop();
-                        depth--;
-                        tmp.add(in);
-                    }
-
-                    if (inMethodId != outMethodId && inMethodId == AppMethodBeat.METHOD_ID_DISPATCH) {//如果是 handler的 dispatchMessage方法
-                        MatrixLog.e(TAG, "inMethodId[%s] != outMethodId[%s] throw this outMethodId!", inMethodId, outMethodId);
-                        rawData.addAll(tmp);
-                        depth += rawData.size();
-                        continue;
-                    }
-
-                    long outTime = getTime(trueId);//获取到 方法执行完的时间
-                    long inTime = getTime(in);// 获取方法开始执行的时间
-                    long during = outTime - inTime;//该方法执行时间
-                    if (during < 0) {
-                        MatrixLog.e(TAG, "[structuredDataToStack] trace during invalid:%d", during);
-                        rawData.clear();
-                        result.clear();
-                        return;
-                    }
-                    MethodItem methodItem = new MethodItem(outMethodId, (int) during, depth);//创建一个 methodItem 并加入
-                    addMethodItem(result, methodItem);
-                } else {
-                    MatrixLog.w(TAG, "[structuredDataToStack] method[%s] not found in! ", outMethodId);
-                }
-            }
-        }
-
-        while (!rawData.isEmpty() && isStrict) {
-            long trueId = rawData.pop();
-            int methodId = getMethodId(trueId);
-            boolean isIn = isIn(trueId);
-            long inTime = getTime(trueId) + AppMethodBeat.getDiffTime();
-            MatrixLog.w(TAG, "[structuredDataToStack] has never out method[%s], isIn:%s, inTime:%s, endTime:%s,rawData size:%s",
-                    methodId, isIn, inTime, endTime, rawData.size());
-            if (!isIn) {
-                MatrixLog.e(TAG, "[structuredDataToStack] why has out Method[%s]? is wrong! ", methodId);
-                continue;
-            }
-            MethodItem methodItem = new MethodItem(methodId, (int) (endTime - inTime), rawData.size());
-            addMethodItem(result, methodItem);
-        }
-        TreeNode root = new TreeNode(null, null);
-        stackToTree(result, root);//将链表转为树 进行整理数据，root是根节点
-        result.clear();//清空 result
-        treeToStack(root, result);//将 整理过的 数据 保存到 result中
+    /**
+     * 根据 buffer 中记录的 i/o 数据，拿到每个插桩函数的执行时间、执行深度，封装成 MethodItem 按调用树先序存入 result。
+     * the records are matched and merged in primitive arrays, only the MethodItem of result are allocated.
+     */
+    public static void structuredDataToStack(long[] buffer, LinkedList<MethodItem> result, boolean isStrict, long endTime) {
+        StackAggregator aggregator = new StackAggregator(isStrict, buffer.length);
+        aggregator.feed(buffer);
+        aggregator.toStack(result, endTime);
     }
 
     private static boolean isIn(long trueId) {
@@ -125,24 +52,6 @@ public class TraceDataUtils {
         return (int) ((trueId >> 43) & 0xFFFFFL);
     }
 
-    private static int addMethodItem(LinkedList<MethodItem> resultStack, MethodItem item) {
-        if (AppMethodBeat.isDev) {
-            Log.v(TAG, "method:" + item);
-        }
-        MethodItem last = null;
-        if (!resultStack.isEmpty()) {
-            last = resultStack.peek();
-        }
-        if (null != last && last.methodId == item.methodId && last.depth == item.depth && 0 != item.depth) {
-            item.durTime = item.durTime == Constants.DEFAULT_ANR ? last.durTime : item.durTime;
-            last.mergeMore(item.durTime);
-            return last.durTime;
-        } else {
-            resultStack.push(item);
-            return item.durTime;
-        }
-    }
-
     private static void rechange(TreeNode root) {
         if (root.children.isEmpty()) {
             return;
@@ -380,4 +289,452 @@ public class TraceDataUtils {
     }
 
 
+    /**
+     * the deque of LinkedList used as the stack of unmatched in records, without boxing.
+     * {@link #restoreLast(int)} puts the last popped records back to the bottom as LinkedList#addAll did.
+     */
+    private static final class LongDeque {
+        private long[] elements;
+        private int head;
+        private int size;
+
+        LongDeque(int capacity) {
+            elements = new long[Math.max(16, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1)];
+        }
+
+        void push(long value) {
+            if (size == elements.length) {
+                grow();
+            }
+            head = (head - 1) & (elements.length - 1);
+            elements[head] = value;
+            size++;
+        }
+
+        long pop() {
+            long value = elements[head];
+            head = (head + 1) & (elements.length - 1);
+            size--;
+            return value;
+        }
+
+        /**
+         * move the last count popped records to the tail, in the order they were popped.
+         */
+        void restoreLast(int count) {
+            int mask = elements.length - 1;
+            long[] tmp = new long[count];
+            for (int i = 0; i < count; i++) {
+                tmp[i] = elements[(head - count + i) & mask];
+            }
+            for (int i = 0; i < count; i++) {
+                elements[(head + size + i) & mask] = tmp[i];
+            }
+            size += count;
+        }
+
+        /**
+         * @return the i-th record from the top
+         */
+        long get(int i) {
+            return elements[(head + i) & (elements.length - 1)];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            long[] newElements = new long[elements.length << 1];
+            for (int i = 0; i < size; i++) {
+                newElements[i] = elements[(head + i) & (elements.length - 1)];
+            }
+            elements = newElements;
+            head = 0;
+        }
+    }
+
+    /**
+     * The stateful form of {@link #structuredDataToStack(long[], LinkedList, boolean, long)}, the records of a
+     * dispatch can be fed in chunks as they are produced, and the stack can be taken at any point without
+     * touching the state, so a long dispatch is parsed while it's still running.
+     * <p>
+     * The matched methods are kept in parallel arrays, and the stack tree is built in them by index.
+     * Not thread safe, it's meant to be fed and read by one thread.
+     * </p>
+     */
+    public static final class StackAggregator {
+        private final boolean isStrict;
+        private final boolean isPreciseClock;
+        private final long diffTime;
+        private boolean isDev = false;
+        private final LongDeque rawData;
+        private int[] methodIds;
+        private int[] durTimes;
+        private int[] depths;
+        private int[] counts;
+        private int size;
+        private int stackDepth = 0; //记录调用栈深度
+        private boolean isBegin;
+        private boolean isInvalid = false;
+        private int recordCount = 0;
+
+        public StackAggregator(boolean isStrict, int capacity) {
+            this(isStrict, capacity, AppMethodBeat.isPreciseClock(), AppMethodBeat.getDiffTime());
+            this.isDev = AppMethodBeat.isDev;
+        }
+
+        /**
+         * the clock of records is given instead of read from {@link AppMethodBeat}, which can't be loaded
+         * without android runtime, for the unit tests.
+         */
+        public StackAggregator(boolean isStrict, int capacity, boolean isPreciseClock, long diffTime) {
+            int initial = Math.max(16, Math.min(capacity, 1024));
+            this.isStrict = isStrict;
+            this.isPreciseClock = isPreciseClock;
+            this.diffTime = diffTime;
+            this.isBegin = !isStrict;
+            rawData = new LongDeque(initial);
+            methodIds = new int[initial];
+            durTimes = new int[initial];
+            depths = new int[initial];
+            counts = new int[initial];
+        }
+
+        /**
+         * @return the count of records fed so far
+         */
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * feed the next records of the dispatch, in the order they were recorded.
+         */
+        public void feed(long[] buffer) {
+            recordCount += buffer.length;
+            if (isInvalid) {
+                return;
+            }
+            for (long trueId : buffer) {
+                if (0 == trueId) {
+                    continue;
+                }
+                if (isStrict) {
+                    if (isIn(trueId) && AppMethodBeat.METHOD_ID_DISPATCH == getMethodId(trueId)) {
+                        isBegin = true;
+                    }
+
+                    if (!isBegin) {
+                        MatrixLog.d(TAG, "never begin! pass this method[%s]", getMethodId(trueId));
+                        continue;
+                    }
+
+                }
+                if (isIn(trueId)) {
+                    if (getMethodId(trueId) == AppMethodBeat.METHOD_ID_DISPATCH) {//如果是 handler 的 dispatchMessage 方法 depth 置为0
+                        stackDepth = 0;
+                    }
+                    stackDepth++;
+                    rawData.push(trueId);
+                } else {// 如果是 o 方法记录的数据
+                    int outMethodId = getMethodId(trueId);
+                    if (!rawData.isEmpty()) {
+                        int popped = 1;
+                        long in = rawData.pop();//拿到i 方法中记录的数据
+                        stackDepth--;
+                        int inMethodId;
+                        while ((inMethodId = getMethodId(in)) != outMethodId && !rawData.isEmpty()) {//如果  inMethodId 不等于 outMethodId 调用深度建议
+                            MatrixLog.w(TAG, "pop inMethodId[%s] to continue match ouMethodId[%s]", inMethodId, outMethodId);
+                            in = rawData.pop();
+                            stackDepth--;
+                            popped++;
+                        }
+
+                        if (inMethodId != outMethodId && inMethodId == AppMethodBeat.METHOD_ID_DISPATCH) {//如果是 handler的 dispatchMessage方法
+                            MatrixLog.e(TAG, "inMethodId[%s] != outMethodId[%s] throw this outMethodId!", inMethodId, outMethodId);
+                            rawData.restoreLast(popped);
+                            stackDepth += rawData.size();
+                            continue;
+                        }
+
+                        long during = toMillis(getTime(trueId) - getTime(in));//该方法执行时间
+                        if (during < 0) {
+                            MatrixLog.e(TAG, "[structuredDataToStack] trace during invalid:%d", during);
+                            isInvalid = true;
+                            return;
+                        }
+                        addItem(outMethodId, (int) during, stackDepth);
+                    } else {
+                        MatrixLog.w(TAG, "[structuredDataToStack] method[%s] not found in! ", outMethodId);
+                    }
+                }
+            }
+        }
+
+        /**
+         * put the stack of the records fed so far into result, the methods never out are counted till endTime
+         * in strict mode. The aggregator can be fed on afterwards.
+         */
+        public void toStack(List<MethodItem> result, long endTime) {
+            result.clear();
+            if (isInvalid) {
+                return;
+            }
+            // the unmatched methods are added temporarily, the last item may be merged into as well
+            int itemSize = size;
+            int lastDurTime = size > 0 ? durTimes[size - 1] : 0;
+            int lastCount = size > 0 ? counts[size - 1] : 0;
+            if (isStrict) {
+                for (int i = 0, pending = rawData.size(); i < pending; i++) {
+                    long trueId = rawData.get(i);
+                    int methodId = getMethodId(trueId);
+                    boolean isIn = isIn(trueId);
+                    long inTime = toMillis(getTime(trueId)) + diffTime;
+                    MatrixLog.w(TAG, "[structuredDataToStack] has never out method[%s], isIn:%s, inTime:%s, endTime:%s,rawData size:%s",
+                            methodId, isIn, inTime, endTime, pending - 1 - i);
+                    if (!isIn) {
+                        MatrixLog.e(TAG, "[structuredDataToStack] why has out Method[%s]? is wrong! ", methodId);
+                        continue;
+                    }
+                    addItem(methodId, (int) (endTime - inTime), pending - 1 - i);
+                }
+            }
+            buildStack(result);//将 item 整理为树，再按先序保存到 result 中
+            size = itemSize;
+            if (size > 0) {
+                durTimes[size - 1] = lastDurTime;
+                counts[size - 1] = lastCount;
+            }
+        }
+
+        /**
+         * the same as {@link AppMethodBeat#recordTimeToMillis(long)}
+         */
+        private long toMillis(long time) {
+            return isPreciseClock ? time / 1000 : time;
+        }
+
+        /**
+         * merge into the last item if it's the same method at the same depth
+         */
+        private void addItem(int methodId, int durTime, int depth) {
+            if (isDev) {
+                Log.v(TAG, "method:" + depth + "," + methodId + "," + 1 + "," + durTime);
+            }
+            int last = size - 1;
+            if (last >= 0 && methodIds[last] == methodId && depths[last] == depth && 0 != depth) {
+                durTimes[last] += durTime == Constants.DEFAULT_ANR ? durTimes[last] : durTime;
+                counts[last]++;
+                return;
+            }
+            if (size == methodIds.length) {
+                int length = size << 1;
+                methodIds = Arrays.copyOf(methodIds, length);
+                durTimes = Arrays.copyOf(durTimes, length);
+                depths = Arrays.copyOf(depths, length);
+                counts = Arrays.copyOf(counts, length);
+            }
+            methodIds[size] = methodId;
+            durTimes[size] = durTime;
+            depths[size] = depth;
+            counts[size] = 1;
+            size++;
+        }
+
+        /**
+         * the same as {@link #stackToTree(LinkedList, TreeNode)} and {@link #treeToStack(TreeNode, LinkedList)},
+         * the items are visited from the last one, and the children are linked by index.
+         */
+        private void buildStack(List<MethodItem> result) {
+            int[] father = new int[size];
+            int[] firstChild = new int[size];
+            int[] nextSibling = new int[size];
+            int rootFirst = -1;
+            int lastNode = -1;
+            for (int node = size - 1; node >= 0; node--) {
+                int depth = depths[node];
+                father[node] = lastNode;
+                firstChild[node] = -1;
+                if (-1 == lastNode && depth != 0) {
+                    MatrixLog.e(TAG, "[stackToTree] begin error! why the first node'depth is not 0!");
+                    return;
+                }
+                if (-1 == lastNode || depth == 0) {
+                    nextSibling[node] = rootFirst;
+                    rootFirst = node;
+                } else if (depths[lastNode] >= depth) {
+                    while (-1 != lastNode && depths[lastNode] > depth) {
+                        lastNode = father[lastNode];
+                    }
+                    if (-1 != lastNode && -1 != father[lastNode]) {
+                        int parent = father[lastNode];
+                        father[node] = parent;
+                        nextSibling[node] = firstChild[parent];
+                        firstChild[parent] = node;
+                    }
+                } else {
+                    nextSibling[node] = firstChild[lastNode];
+                    firstChild[lastNode] = node;
+                }
+                lastNode = node;
+            }
+
+            // 先序遍历，栈中保存 回溯时要访问的兄弟节点
+            int[] pending = new int[size];
+            int top = 0;
+            int node = rootFirst;
+            while (-1 != node) {
+                MethodItem item = new MethodItem(methodIds[node], durTimes[node], depths[node]);
+                item.count = counts[node];
+                result.add(item);
+                if (-1 != firstChild[node]) {
+                    pending[top++] = nextSibling[node];
+                    node = firstChild[node];
+                } else {
+                    node = nextSibling[node];
+                    while (-1 == node && top > 0) {
+                        node = pending[--top];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * the cost of a method within a range of records, see {@link #rangeMethodCosts(long[], int[], int)}.
+     */
+    public static final class MethodCost {
+        public final int methodId;
+        public int count;
+        public long selfTime;
+        public long totalTime;
+
+        MethodCost(int methodId) {
+            this.methodId = methodId;
+        }
+
+        @Override
+        public String toString() {
+            return methodId + "," + count + "," + selfTime + "," + totalTime;
+        }
+    }
+
+    /**
+     * 按 bounds 将 buffer 切分为多段，统计每段中自身耗时（不含其调用的插桩方法）最多的 topN 个方法，即主线程关键路径上值得优化的方法。
+     * buffer is walked once for all the ranges. the self cost is counted in the range it's spent, while the count
+     * and the total cost of a call are counted in the range it's entered.
+     *
+     * @param bounds ascending offsets in buffer, the range i is [bounds[i], bounds[i + 1])
+     * @return the top methods of every range by self cost descending, the costs are in milliseconds
+     */
+    public static List<List<MethodCost>> rangeMethodCosts(long[] buffer, int[] bounds, int topN) {
+        int rangeCount = bounds.length - 1;
+        List<HashMap<Integer, MethodCost>> costs = new ArrayList<>(rangeCount);
+        for (int i = 0; i < rangeCount; i++) {
+            costs.add(new HashMap<Integer, MethodCost>());
+        }
+        long[] stack = new long[64];
+        int[] stackRanges = new int[64];
+        int top = 0;
+        int range = 0;
+        long lastTime = -1;
+        int end = Math.min(bounds[rangeCount], buffer.length);
+        for (int i = Math.max(0, bounds[0]); i < end; i++) {
+            while (range < rangeCount - 1 && i >= bounds[range + 1]) {
+                range++;
+            }
+            long trueId = buffer[i];
+            if (0 == trueId) {
+                continue;
+            }
+            long time = getTime(trueId);
+            if (top > 0 && lastTime >= 0 && time > lastTime) {
+                getCost(costs.get(range), getMethodId(stack[top - 1])).selfTime += time - lastTime;
+            }
+            lastTime = time;
+            int methodId = getMethodId(trueId);
+            if (isIn(trueId)) {
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top << 1);
+                    stackRanges = Arrays.copyOf(stackRanges, top << 1);
+                }
+                stack[top] = trueId;
+                stackRanges[top++] = range;
+            } else {
+                // the methods never out in the middle are popped as well, the outs entered before bounds[0] are ignored
+                int match = top - 1;
+                while (match >= 0 && getMethodId(stack[match]) != methodId) {
+                    match--;
+                }
+                if (match < 0) {
+                    continue;
+                }
+                MethodCost cost = getCost(costs.get(stackRanges[match]), methodId);
+                cost.count++;
+                cost.totalTime += Math.max(0, time - getTime(stack[match]));
+                top = match;
+            }
+        }
+
+        List<List<MethodCost>> result = new ArrayList<>(rangeCount);
+        for (HashMap<Integer, MethodCost> map : costs) {
+            map.remove(AppMethodBeat.METHOD_ID_DISPATCH);
+            List<MethodCost> list = new ArrayList<>(map.values());
+            Collections.sort(list, new Comparator<MethodCost>() {
+                @Override
+                public int compare(MethodCost o1, MethodCost o2) {
+                    return Long.compare(o2.selfTime, o1.selfTime);
+                }
+            });
+            if (list.size() > topN) {
+                list = new ArrayList<>(list.subList(0, topN));
+            }
+            for (MethodCost cost : list) {
+                cost.selfTime = AppMethodBeat.recordTimeToMillis(cost.selfTime);
+                cost.totalTime = AppMethodBeat.recordTimeToMillis(cost.totalTime);
+            }
+            result.add(list);
+        }
+        return result;
+    }
+
+    private static MethodCost getCost(HashMap<Integer, MethodCost> costs, int methodId) {
+        MethodCost cost = costs.get(methodId);
+        if (null == cost) {
+            cost = new MethodCost(methodId);
+            costs.put(methodId, cost);
+        }
+        return cost;
+    }
+
+    /**
+     * @param end the records after it are not counted
+     * @return the distinct ids of the methods entered in buffer[0, end), in the order they are first entered
+     */
+    public static int[] firstEnteredMethods(long[] buffer, int end) {
+        BitSet entered = new BitSet();
+        int[] ids = new int[1024];
+        int count = 0;
+        for (int i = 0, n = Math.min(end, buffer.length); i < n; i++) {
+            long trueId = buffer[i];
+            if (0 == trueId || !isIn(trueId)) {
+                continue;
+            }
+            int methodId = getMethodId(trueId);
+            if (methodId == AppMethodBeat.METHOD_ID_DISPATCH || entered.get(methodId)) {
+                continue;
+            }
+            entered.set(methodId);
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count << 1);
+            }
+            ids[count++] = methodId;
+        }
+        return Arrays.copyOf(ids, count);
+    }
 }
@@ -0,0 +1,109 @@
+package com.tencent.matrix.trace.core;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class CompactTraceBufferTestCase extends TestCase {
+
+    private static final int BLOCK = CompactTraceBuffer.BLOCK_SIZE;
+
+    @Test
+    public void testRoundUpSize() {
+        assertEquals(BLOCK, new CompactTraceBuffer(1).size());
+        assertEquals(BLOCK * 2, new CompactTraceBuffer(BLOCK + 1).size());
+        assertEquals(BLOCK * 2, new CompactTraceBuffer(BLOCK * 2).size());
+    }
+
+    /**
+     * 每个 slot 都能单独还原出 isIn、methodId 和时间
+     */
+    @Test
+    public void testEncodeDecode() {
+        CompactTraceBuffer buffer = new CompactTraceBuffer(BLOCK * 2);
+        long time = 100000L;
+        for (int i = 0; i < BLOCK * 2; i++) {
+            int methodId = i == 1 ? 0xFFFFE : i * 1000;
+            boolean isIn = i % 2 == 0;
+            time += 7;
+            assertEquals(i, buffer.write(i, methodId, isIn, time));
+            assertEquals(TraceBuffer.merge(methodId, isIn, time), buffer.get(i));
+        }
+    }
+
+    /**
+     * 每个 block 的第一个 slot 是关键帧，block 之间的时间差不受 11 位的限制
+     */
+    @Test
+    public void testKeyframePerBlock() {
+        CompactTraceBuffer buffer = new CompactTraceBuffer(BLOCK * 3);
+        for (int i = 0; i < BLOCK * 3; i++) {
+            // every block starts 100s later, within a block the delta keeps small
+            long time = (i / BLOCK) * 100000L + (i % BLOCK);
+            assertEquals(i, buffer.write(i, i + 1, true, time));
+        }
+        for (int i = 0; i < BLOCK * 3; i++) {
+            assertEquals(TraceBuffer.merge(i + 1, true, (i / BLOCK) * 100000L + (i % BLOCK)), buffer.get(i));
+        }
+    }
+
+    /**
+     * 时间差超过 11 位时，block 剩余的 slot 填充 PAD，记录从下一个 block 的关键帧开始
+     */
+    @Test
+    public void testPadOnLargeDelta() {
+        CompactTraceBuffer buffer = new CompactTraceBuffer(BLOCK * 2);
+        assertEquals(0, buffer.write(0, 1, true, 1000));
+        assertEquals(1, buffer.write(1, 2, true, 1000 + 2047));
+        assertEquals(BLOCK, buffer.write(2, 3, false, 1000 + 2048));
+
+        assertEquals(TraceBuffer.merge(1, true, 1000), buffer.get(0));
+        assertEquals(TraceBuffer.merge(2, true, 3047), buffer.get(1));
+        for (int i = 2; i < BLOCK; i++) {
+            assertEquals(TraceBuffer.INVALID, buffer.get(i));
+        }
+        assertEquals(TraceBuffer.merge(3, false, 3048), buffer.get(BLOCK));
+
+        long[] data = buffer.copy(0, BLOCK);
+        assertEquals(3, data.length);
+        assertEquals(TraceBuffer.merge(3, false, 3048), data[2]);
+    }
+
+    /**
+     * 时间回退时记为关键帧的时间，而不是产生负的时间差
+     */
+    @Test
+    public void testTimeStepBack() {
+        CompactTraceBuffer buffer = new CompactTraceBuffer(BLOCK);
+        buffer.write(0, 1, true, 1000);
+        assertEquals(1, buffer.write(1, 2, false, 990));
+        assertEquals(TraceBuffer.merge(2, false, 1000), buffer.get(1));
+    }
+
+    /**
+     * 写到末尾需要换 block 时回到 0，上一轮留在该 block 中的记录被丢弃
+     */
+    @Test
+    public void testWrapAround() {
+        int size = BLOCK * 2;
+        CompactTraceBuffer buffer = new CompactTraceBuffer(size);
+        for (int i = 0; i < size; i++) {
+            buffer.write(i, i + 1, true, 5000 + i);
+        }
+        assertEquals(0, buffer.write(size - 1, 100, false, 5000 + size + 4096));
+        assertEquals(TraceBuffer.INVALID, buffer.get(size - 1));
+        assertEquals(TraceBuffer.merge(100, false, 5000 + size + 4096), buffer.get(0));
+        for (int i = 1; i < BLOCK; i++) {
+            assertEquals(TraceBuffer.INVALID, buffer.get(i));
+        }
+        // the second block is still decoded with its own keyframe
+        assertEquals(TraceBuffer.merge(BLOCK + 1, true, 5000 + BLOCK), buffer.get(BLOCK));
+
+        assertEquals(1, buffer.write(1, 101, true, 5000 + size + 4100));
+        long[] data = buffer.copy(size - 2, 1);
+        assertEquals(3, data.length);
+        assertEquals(TraceBuffer.merge(size - 1, true, 5000 + size - 2), data[0]);
+        assertEquals(TraceBuffer.merge(100, false, 5000 + size + 4096), data[1]);
+        assertEquals(TraceBuffer.merge(101, true, 5000 + size + 4100), data[2]);
+    }
+}
@@ -0,0 +1,155 @@
+package com.tencent.matrix.trace.core;
+
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.items.MethodItem;
+import com.tencent.matrix.trace.util.TraceDataUtils;
+import com.tencent.matrix.util.MatrixLog;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+
+public class DispatchStackAggregatorTestCase extends TestCase {
+
+    private static final int DISPATCH = 0xFFFFF - 1;
+    private static final int SIZE = 64;
+
+    private MatrixLog.MatrixLogImp logImp;
+    private FakeSource source;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // android.util.Log isn't there on JVM
+        logImp = MatrixLog.getImpl();
+        MatrixLog.setMatrixLogImp(null);
+        source = new FakeSource();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        MatrixLog.setMatrixLogImp(logImp);
+        super.tearDown();
+    }
+
+    /**
+     * 开始记录标记的是 dispatchMessage 的 i，分两次消费后仍能从它开始得到完整的栈
+     */
+    @Test
+    public void testSessionStack() {
+        source.write(true, 5, 0); // the last message
+        source.write(false, 5, 1);
+        DispatchStackAggregator.Session session = begin(1);
+
+        source.write(true, 1, 2);
+        source.write(true, 2, 3);
+        assertTrue(session.consume(source.getCurrentIndex()));
+        source.write(false, 2, 8);
+        source.write(false, 1, 9);
+        source.write(false, DISPATCH, 10);
+
+        assertTrue(session.end(source.getCurrentIndex()));
+        List<MethodItem> stack = new LinkedList<>();
+        assertTrue(session.getStack(source.getCurrentIndex(), stack, 10));
+        assertEquals("[0," + DISPATCH + ",1,9, 1,1,1,7, 2,2,1,5]", stack.toString());
+    }
+
+    /**
+     * dispatchMessage 的 i 在 buffer 的第 0 个 slot 时，游标从末尾开始
+     */
+    @Test
+    public void testSessionWrapAround() {
+        while (source.index < SIZE) {
+            source.write(true, 5, 0);
+        }
+        DispatchStackAggregator.Session session = begin(0);
+        source.write(true, 1, 1);
+        source.write(false, 1, 4);
+        source.write(false, DISPATCH, 5);
+
+        session.end(source.getCurrentIndex());
+        List<MethodItem> stack = new LinkedList<>();
+        assertTrue(session.getStack(source.getCurrentIndex(), stack, 5));
+        assertEquals("[0," + DISPATCH + ",1,5, 1,1,1,3]", stack.toString());
+    }
+
+    /**
+     * 耗时不够时不开始，消息结束后不再开始
+     */
+    @Test
+    public void testTryStart() {
+        source.write(true, DISPATCH, 0);
+        DispatchStackAggregator.Session session = mark(new DispatchStackAggregator(source).new Session());
+        assertEquals(1, session.tryStart((Constants.STREAMING_STACK_INTERVAL_MS - 1) * Constants.TIME_MILLIS_TO_NANO));
+        assertFalse(session.end(source.getCurrentIndex()));
+        assertEquals(-1, session.tryStart(Constants.STREAMING_STACK_INTERVAL_MS * Constants.TIME_MILLIS_TO_NANO));
+        assertFalse(session.isStarted(1));
+    }
+
+    /**
+     * write the i of dispatchMessage at the time, and start the session marked there like dispatchBegin.
+     */
+    private DispatchStackAggregator.Session begin(long time) {
+        source.write(true, DISPATCH, time);
+        DispatchStackAggregator.Session session = mark(new DispatchStackAggregator(source).new Session());
+        assertEquals(0, session.tryStart(Constants.STREAMING_STACK_INTERVAL_MS * Constants.TIME_MILLIS_TO_NANO));
+        assertTrue(session.isStarted(1));
+        return session;
+    }
+
+    /**
+     * mark the current index into the begin record of session as maskIndex does, and begin the message.
+     */
+    private DispatchStackAggregator.Session mark(DispatchStackAggregator.Session session) {
+        session.beginRecord.index = source.getCurrentIndex();
+        session.beginRecord.isValid = true;
+        session.begin(1, 0, session.beginRecord);
+        return session;
+    }
+
+    private static final class FakeSource implements DispatchStackAggregator.RecordSource {
+        final long[] buffer = new long[SIZE];
+        int index = 0;
+
+        void write(boolean isIn, int methodId, long time) {
+            buffer[index++ % SIZE] = (isIn ? 1L << 63 : 0) | ((long) methodId << 43) | (time & 0x7FFFFFFFFFFL);
+        }
+
+        @Override
+        public int getBufferSize() {
+            return SIZE;
+        }
+
+        @Override
+        public int getBufferVersion() {
+            return 0;
+        }
+
+        @Override
+        public int getCurrentIndex() {
+            return (index - 1) % SIZE;
+        }
+
+        @Override
+        public long[] copyData(AppMethodBeat.IndexRecord beginRecord, int start, int end) {
+            int count = end >= start ? end - start + 1 : SIZE - start + end + 1;
+            long[] data = new long[count];
+            for (int i = 0; i < count; i++) {
+                data[i] = buffer[(start + i) % SIZE];
+            }
+            return data;
+        }
+
+        @Override
+        public TraceDataUtils.StackAggregator newAggregator(int capacity) {
+            return new TraceDataUtils.StackAggregator(true, capacity, false, 0);
+        }
+    }
+}
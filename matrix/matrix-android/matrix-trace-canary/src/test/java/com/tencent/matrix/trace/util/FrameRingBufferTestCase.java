@@ -0,0 +1,54 @@
+package com.tencent.matrix.trace.util;
+
+import com.tencent.matrix.trace.listeners.IDoFrameListener;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class FrameRingBufferTestCase extends TestCase {
+
+    @Test
+    public void testReadWrite() {
+        FrameRingBuffer buffer = new FrameRingBuffer(100);
+        assertEquals(128, buffer.getCapacity());
+        for (int i = 0; i < 10; i++) {
+            write(buffer, i);
+        }
+        assertEquals(10, buffer.getSequence());
+        IDoFrameListener.FrameReplay replay = new IDoFrameListener.FrameReplay();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(buffer.read(i, replay));
+            assertEquals("scene" + (i % 3), replay.focusedActivity);
+            assertEquals(i, replay.startNs);
+            assertEquals(i * 2, replay.endNs);
+            assertEquals(i, replay.dropFrame);
+            assertEquals(i % 2 == 0, replay.isVsyncFrame);
+            assertEquals(i * 6, replay.traversalCostNs);
+            assertEquals(i * 7, replay.frameIntervalNs);
+        }
+    }
+
+    /**
+     * 消费者落后超过一圈时，被覆盖的记录读取失败
+     */
+    @Test
+    public void testOverwritten() {
+        FrameRingBuffer buffer = new FrameRingBuffer(16);
+        for (int i = 0; i < 40; i++) {
+            write(buffer, i);
+        }
+        IDoFrameListener.FrameReplay replay = new IDoFrameListener.FrameReplay();
+        long oldest = buffer.getOldestSequence(buffer.getSequence());
+        assertEquals(25, oldest);
+        assertFalse(buffer.read(oldest - 1, replay));
+        for (long seq = oldest; seq < buffer.getSequence(); seq++) {
+            assertTrue(buffer.read(seq, replay));
+            assertEquals(seq, replay.startNs);
+        }
+    }
+
+    private static void write(FrameRingBuffer buffer, int i) {
+        buffer.write("scene" + (i % 3), i, i * 2, i, i % 2 == 0, i * 3, i * 4, i * 5, i * 6, i * 7);
+    }
+}
@@ -0,0 +1,54 @@
+package com.tencent.matrix.trace.util;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class LatencyHistogramTestCase extends TestCase {
+
+    /**
+     * 每个值都落在自己的桶内，桶的相对误差不超过 1/8
+     */
+    @Test
+    public void testBucketBounds() {
+        for (long value = 0; value <= LatencyHistogram.MAX_VALUE; value = value * 3 / 2 + 1) {
+            int index = LatencyHistogram.getBucketIndex(value);
+            assertTrue(index < LatencyHistogram.BUCKET_COUNT);
+            long lowest = LatencyHistogram.getBucketLowest(index);
+            long highest = LatencyHistogram.getBucketHighest(index);
+            assertTrue(lowest <= value && value <= highest);
+            assertTrue((highest - lowest) * 8 <= Math.max(lowest, 1));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.getBucketIndex(LatencyHistogram.MAX_VALUE));
+        for (int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            assertEquals(LatencyHistogram.getBucketHighest(i - 1) + 1, LatencyHistogram.getBucketLowest(i));
+        }
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 100);
+        }
+        assertEquals(1000, histogram.getTotalCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50050, histogram.getMean());
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p50 >= 50000 && p50 <= 50000 * 9 / 8);
+        assertTrue(p99 >= 99000 && p99 <= 100000);
+
+        StringBuilder builder = new StringBuilder();
+        histogram.toCompactString(builder);
+        int sum = 0;
+        for (String bucket : builder.toString().split(",")) {
+            sum += Integer.parseInt(bucket.split(":")[1]);
+        }
+        assertEquals(1000, sum);
+
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,344 @@
+package com.tencent.matrix.trace.util;
+
+import com.tencent.matrix.trace.constants.Constants;
+import com.tencent.matrix.trace.items.MethodItem;
+import com.tencent.matrix.util.MatrixLog;
+
+import junit.framework.TestCase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+public class TraceDataUtilsTestCase extends TestCase {
+
+    private static final int DISPATCH = 0xFFFFF - 1;
+    private static final long DIFF_TIME = 1000;
+
+    private MatrixLog.MatrixLogImp logImp;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // android.util.Log isn't there on JVM
+        logImp = MatrixLog.getImpl();
+        MatrixLog.setMatrixLogImp(null);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        MatrixLog.setMatrixLogImp(logImp);
+        super.tearDown();
+    }
+
+    /**
+     * 同一深度连续调用的同一方法合并为一项，结果按调用树先序排列
+     */
+    @Test
+    public void testStructuredDataToStack() {
+        long[] buffer = new long[]{
+                merge(true, DISPATCH, 0),
+                merge(true, 1, 0),
+                merge(true, 2, 1),
+                merge(false, 2, 5),
+                merge(true, 2, 5),
+                merge(false, 2, 8),
+                merge(true, 3, 8),
+                merge(false, 3, 20),
+                merge(false, 1, 20),
+                merge(false, DISPATCH, 30),
+        };
+        assertStack(toStack(buffer, true, 0),
+                "0," + DISPATCH + ",1,30",
+                "1,1,1,20",
+                "2,2,2,7",
+                "2,3,1,12");
+    }
+
+    /**
+     * strict 模式下没有 o 的方法按 endTime 计算耗时，非 strict 模式下不补齐，栈不从深度 0 开始时为空
+     */
+    @Test
+    public void testNeverOut() {
+        long[] buffer = new long[]{
+                merge(true, DISPATCH, 0),
+                merge(true, 4, 2),
+                merge(true, 5, 3),
+                merge(false, 5, 6),
+        };
+        assertStack(toStack(buffer, true, DIFF_TIME + 50),
+                "0," + DISPATCH + ",1,50",
+                "1,4,1,48",
+                "2,5,1,3");
+        assertStack(toStack(buffer, false, DIFF_TIME + 50));
+    }
+
+    /**
+     * strict 模式下跳过 dispatch 之前的记录，时间倒退时结果为空
+     */
+    @Test
+    public void testStrictAndInvalid() {
+        long[] buffer = new long[]{
+                merge(true, 7, 0),
+                merge(false, 7, 1),
+                merge(true, DISPATCH, 1),
+                merge(true, 8, 2),
+                merge(false, 8, 4),
+                merge(false, DISPATCH, 4),
+        };
+        assertStack(toStack(buffer, true, 0),
+                "0," + DISPATCH + ",1,3",
+                "1,8,1,2");
+
+        buffer[4] = merge(false, 8, 1);
+        assertStack(toStack(buffer, true, 0));
+    }
+
+    /**
+     * 与原先基于 LinkedList 的实现逐项一致，包括缺失 i/o 和 o 不匹配的情况
+     */
+    @Test
+    public void testSameAsLinkedList() {
+        for (int seed = 0; seed < 200; seed++) {
+            long[] buffer = mockDispatch(new Random(seed), 500 + seed * 10);
+            for (boolean isStrict : new boolean[]{true, false}) {
+                long endTime = DIFF_TIME + 100000;
+                List<MethodItem> expected = referenceToStack(buffer, isStrict, endTime);
+                List<MethodItem> actual = toStack(buffer, isStrict, endTime);
+                assertEquals("seed:" + seed + " strict:" + isStrict, expected.toString(), actual.toString());
+            }
+        }
+    }
+
+    /**
+     * 像 DispatchStackAggregator 一样分块喂入，中途取栈不影响后续结果，最终与一次性解析一致
+     */
+    @Test
+    public void testFeedInChunks() {
+        for (int seed = 0; seed < 100; seed++) {
+            Random random = new Random(seed);
+            long[] buffer = mockDispatch(random, 2000 + seed * 20);
+            long endTime = DIFF_TIME + 100000;
+            List<MethodItem> expected = toStack(buffer, true, endTime);
+
+            TraceDataUtils.StackAggregator aggregator = new TraceDataUtils.StackAggregator(true, 64, false, DIFF_TIME);
+            List<MethodItem> result = new LinkedList<>();
+            for (int start = 0; start < buffer.length; ) {
+                int end = Math.min(buffer.length, start + 1 + random.nextInt(300));
+                aggregator.feed(Arrays.copyOfRange(buffer, start, end));
+                aggregator.toStack(result, endTime);
+                assertEquals(toStack(Arrays.copyOf(buffer, end), true, endTime).toString(), result.toString());
+                start = end;
+            }
+            assertEquals(buffer.length, aggregator.getRecordCount());
+            assertEquals("seed:" + seed, expected.toString(), result.toString());
+        }
+    }
+
+    /**
+     * 按 filterCount 逐轮去掉末尾的短耗时项，仍然超出时交给 fallback
+     */
+    @Test
+    public void testTrimStack() {
+        TraceDataUtils.IStructuredDataFilter filter = new TraceDataUtils.IStructuredDataFilter() {
+            @Override
+            public boolean isFilter(long during, int filterCount) {
+                return during < filterCount * Constants.TIME_UPDATE_CYCLE_MS;
+            }
+
+            @Override
+            public int getFilterMaxCount() {
+                return 2;
+            }
+
+            @Override
+            public void fallback(List<MethodItem> stack, int size) {
+                while (stack.size() > 3) {
+                    stack.remove(stack.size() - 1);
+                }
+            }
+        };
+        int cycle = Constants.TIME_UPDATE_CYCLE_MS;
+
+        List<MethodItem> stack = newStack(100, cycle - 1, 50, cycle - 1, cycle * 2 - 1, 30);
+        TraceDataUtils.trimStack(stack, 4, filter);
+        assertEquals("[0,0,1,100, 2,2,1,50, 4,4,1," + (cycle * 2 - 1) + ", 5,5,1,30]", stack.toString());
+
+        stack = newStack(100, cycle - 1, 50, cycle * 2 - 1, cycle * 2 - 1, 30);
+        TraceDataUtils.trimStack(stack, 3, filter);
+        assertEquals("[0,0,1,100, 2,2,1,50, 5,5,1,30]", stack.toString());
+
+        stack = newStack(100, 90, 80, 70, 60);
+        TraceDataUtils.trimStack(stack, 3, filter);
+        assertEquals("[0,0,1,100, 1,1,1,90, 2,2,1,80]", stack.toString());
+
+        stack = newStack(100);
+        TraceDataUtils.trimStack(stack, -1, filter);
+        assertTrue(stack.isEmpty());
+    }
+
+    private static List<MethodItem> newStack(int... durTimes) {
+        List<MethodItem> stack = new LinkedList<>();
+        for (int i = 0; i < durTimes.length; i++) {
+            stack.add(new MethodItem(i, durTimes[i], i));
+        }
+        return stack;
+    }
+
+    private static List<MethodItem> toStack(long[] buffer, boolean isStrict, long endTime) {
+        TraceDataUtils.StackAggregator aggregator = new TraceDataUtils.StackAggregator(isStrict, buffer.length, false, DIFF_TIME);
+        aggregator.feed(buffer);
+        List<MethodItem> result = new LinkedList<>();
+        aggregator.toStack(result, endTime);
+        return result;
+    }
+
+    private static void assertStack(List<MethodItem> stack, String... expected) {
+        assertEquals(expected.length, stack.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], stack.get(i).toString());
+        }
+    }
+
+    static long merge(boolean isIn, int methodId, long time) {
+        return (isIn ? 1L << 63 : 0) | ((long) methodId << 43) | (time & 0x7FFFFFFFFFFL);
+    }
+
+    /**
+     * some dispatches of random calls, with the records lost or mismatched now and then.
+     */
+    static long[] mockDispatch(Random random, int size) {
+        long[] buffer = new long[size];
+        int[] stack = new int[64];
+        int depth = 0;
+        long time = 0;
+        for (int i = 0; i < size; i++) {
+            time += random.nextInt(3);
+            int dice = random.nextInt(100);
+            if (0 == depth || dice < 2) {
+                buffer[i] = merge(true, DISPATCH, time);
+                depth = 0;
+                stack[depth++] = DISPATCH;
+            } else if (dice < 4) {
+                buffer[i] = merge(false, random.nextInt(10), time); // out of nowhere
+            } else if (dice < 6) {
+                depth--; // lost out
+            } else if (depth < stack.length && dice < 55) {
+                int methodId = random.nextInt(10);
+                stack[depth++] = methodId;
+                buffer[i] = merge(true, methodId, time);
+            } else {
+                buffer[i] = merge(false, stack[--depth], time);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * structuredDataToStack before the records were parsed in primitive arrays.
+     */
+    private static List<MethodItem> referenceToStack(long[] buffer, boolean isStrict, long endTime) {
+        LinkedList<MethodItem> result = new LinkedList<>();
+        int depth = 0;
+        LinkedList<Long> rawData = new LinkedList<>();
+        boolean isBegin = !isStrict;
+
+        for (long trueId : buffer) {
+            if (0 == trueId) {
+                continue;
+            }
+            if (isStrict) {
+                if (isIn(trueId) && DISPATCH == getMethodId(trueId)) {
+                    isBegin = true;
+                }
+                if (!isBegin) {
+                    continue;
+                }
+            }
+            if (isIn(trueId)) {
+                if (getMethodId(trueId) == DISPATCH) {
+                    depth = 0;
+                }
+                depth++;
+                rawData.push(trueId);
+            } else {
+                int outMethodId = getMethodId(trueId);
+                if (!rawData.isEmpty()) {
+                    long in = rawData.pop();
+                    depth--;
+                    int inMethodId;
+                    LinkedList<Long> tmp = new LinkedList<>();
+                    tmp.add(in);
+                    while ((inMethodId = getMethodId(in)) != outMethodId && !rawData.isEmpty()) {
+                        in = rawData.pop();
+                        depth--;
+                        tmp.add(in);
+                    }
+                    if (inMethodId != outMethodId && inMethodId == DISPATCH) {
+                        rawData.addAll(tmp);
+                        depth += rawData.size();
+                        continue;
+                    }
+                    long during = getTime(trueId) - getTime(in);
+                    if (during < 0) {
+                        result.clear();
+                        return result;
+                    }
+                    addMethodItem(result, new MethodItem(outMethodId, (int) during, depth));
+                }
+            }
+        }
+
+        while (!rawData.isEmpty() && isStrict) {
+            long trueId = rawData.pop();
+            if (!isIn(trueId)) {
+                continue;
+            }
+            long inTime = getTime(trueId) + DIFF_TIME;
+            addMethodItem(result, new MethodItem(getMethodId(trueId), (int) (endTime - inTime), rawData.size()));
+        }
+        TraceDataUtils.TreeNode root = new TraceDataUtils.TreeNode(null, null);
+        TraceDataUtils.stackToTree(result, root);
+        result.clear();
+        treeToStack(root, result);
+        return result;
+    }
+
+    private static void addMethodItem(LinkedList<MethodItem> resultStack, MethodItem item) {
+        MethodItem last = resultStack.peek();
+        if (null != last && last.methodId == item.methodId && last.depth == item.depth && 0 != item.depth) {
+            item.durTime = item.durTime == Constants.DEFAULT_ANR ? last.durTime : item.durTime;
+            last.mergeMore(item.durTime);
+        } else {
+            resultStack.push(item);
+        }
+    }
+
+    private static void treeToStack(TraceDataUtils.TreeNode root, LinkedList<MethodItem> list) {
+        for (TraceDataUtils.TreeNode node : root.children) {
+            if (null != node.item) {
+                list.add(node.item);
+            }
+            treeToStack(node, list);
+        }
+    }
+
+    private static boolean isIn(long trueId) {
+        return ((trueId >> 63) & 0x1) == 1;
+    }
+
+    private static long getTime(long trueId) {
+        return trueId & 0x7FFFFFFFFFFL;
+    }
+
+    private static int getMethodId(long trueId) {
+        return (int) ((trueId >> 43) & 0xFFFFFL);
+    }
+}